@@ -239,6 +239,17 @@ public class BlackWhiteRaster extends TimeIntensiveOperation implements Greyscal
     return isBlack(x,y) ? 0 : 255;
   }
 
+  @Override
+  public void getGreyScaleRow(int y, int[] dst)
+  {
+    raster.getPixelRow(y, dst);
+    for (int x = 0, width = raster.getWidth(); x < width; x++)
+    {
+      // 1 is black, see isBlack()
+      dst[x] = dst[x] == 1 ? 0 : 255;
+    }
+  }
+
   @Override
   public void setGreyScale(int x, int y, int grey)
   {
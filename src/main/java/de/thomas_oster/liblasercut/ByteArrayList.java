@@ -22,7 +22,7 @@
 package de.thomas_oster.liblasercut;
 
 import java.util.AbstractList;
-import java.util.Collections;
+import java.util.Arrays;
 
 /**
  * A specialized class to support the usage of List<Byte> within this library.
@@ -47,12 +47,21 @@ public class ByteArrayList extends AbstractList<Byte> {
 
   /**
    * Most uses of ByteArrayList know their size up front, but some may add
-   * a few elements onto the beginning or end.  A small additive growth is 
-   * sufficient to support them.  It is preferred for callers to hold onto
-   * and reuse the ByteArrayList to avoid reallocation.
+   * a few elements onto the beginning or end.  The array grows by half its
+   * length, at least GROW_SIZE, so that adding many elements stays linear.
+   * It is preferred for callers to hold onto and reuse the ByteArrayList
+   * to avoid reallocation.
    */
   private static final int GROW_SIZE = 32;
 
+  /** REVERSED[b] is b with the bit order reversed */
+  private static final byte[] REVERSED = new byte[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+    }
+  }
+
   /**
    * Create a new list for the target expected size.
    */
@@ -70,25 +79,40 @@ public class ByteArrayList extends AbstractList<Byte> {
     return size;
   }
 
-  @Override
-  public void add(int index, Byte v) {
-    if (start + size >= data.length) {
-      // Grow at the end
-      byte[] newdata = new byte[data.length + GROW_SIZE];
-      System.arraycopy(data, 0, newdata, 0, data.length);
+  private int growSize(int needed) {
+    return Math.max(needed, Math.max(GROW_SIZE, data.length >> 1));
+  }
+
+  /**
+   * Make room for n more elements at the end
+   */
+  private void ensureBack(int n) {
+    if (start + size + n > data.length) {
+      data = Arrays.copyOf(data, data.length + growSize(n));
+    }
+  }
+
+  /**
+   * Make room for n more elements at the beginning
+   */
+  private void ensureFront(int n) {
+    if (start < n) {
+      int grow = growSize(n);
+      byte[] newdata = new byte[data.length + grow];
+      System.arraycopy(data, start, newdata, start + grow, size);
       data = newdata;
+      start += grow;
     }
+  }
+
+  @Override
+  public void add(int index, Byte v) {
+    ensureBack(1);
     if (index == size) {
       data[start + index] = v;
       size++;
     } else if (index == 0) {
-      if (start == 0) {
-	// Grow at the beginning
-	byte[] newdata = new byte[data.length + GROW_SIZE];
-	System.arraycopy(data, 0, newdata, GROW_SIZE, data.length);
-	data = newdata;
-	start = GROW_SIZE;
-      }
+      ensureFront(1);
       start--;
       data[start] = v;
       size++;
@@ -123,6 +147,59 @@ public class ByteArrayList extends AbstractList<Byte> {
     }
     return v;
   }
+
+  /**
+   * Remove all elements equal to value from the beginning of the list.
+   * @return number of removed elements
+   */
+  public int trimLeading(byte value) {
+    int n = 0;
+    while (n < size && data[start + n] == value) {
+      n++;
+    }
+    start += n;
+    size -= n;
+    return n;
+  }
+
+  /**
+   * Remove all elements equal to value from the end of the list.
+   * @return number of removed elements
+   */
+  public int trimTrailing(byte value) {
+    int n = 0;
+    while (n < size && data[start + size - 1 - n] == value) {
+      n++;
+    }
+    size -= n;
+    return n;
+  }
+
+  /**
+   * Add n zero bytes at the beginning of the list.
+   */
+  public void padFront(int n) {
+    if (n <= 0) {
+      return;
+    }
+    ensureFront(n);
+    start -= n;
+    size += n;
+    Arrays.fill(data, start, start + n, (byte) 0);
+  }
+
+  /**
+   * Add n zero bytes at the end of the list.
+   */
+  public void padBack(int n) {
+    if (n <= 0) {
+      return;
+    }
+    ensureBack(n);
+    Arrays.fill(data, start + size, start + size + n, (byte) 0);
+    size += n;
+  }
+
   /**
    * If the list is interpreted as a bitstring, shift it x bits to the left,
    * keeping the lenght constant.
@@ -137,37 +214,39 @@ public class ByteArrayList extends AbstractList<Byte> {
    */
   public void leftShiftBits(int shift) {
     if (shift >= 0) {
-      while (shift >= 8) {
-        // to shift 8 bits to the left, remove the first byte, and append a zero byte
-        remove(0);
-        add((byte) 0);
-        shift -= 8;
-      }
+      // whole bytes: move the data to the left and append zero bytes
+      int bytes = Math.min(shift / 8, size);
+      System.arraycopy(data, start + bytes, data, start, size - bytes);
+      Arrays.fill(data, start + size - bytes, start + size, (byte) 0);
+      shift %= 8;
       if (shift == 0) {
         // nothing left to do
         return;
       }
       // now shift the remaining 1 ... 7 bits to the left
-      assert 0 < shift && shift < 8;
-      ByteArrayList l = new ByteArrayList(data.length);
-      for (int i=0; i < size(); i++)
-      {
-        byte nextByte;
-        if (i +1 < size()) {
-          nextByte = get(i+1);
-        } else {
-          nextByte = 0;
-        }
-        l.add((byte) ((((get(i) & 0xFF) << shift) | ((nextByte & 0xFF) >> (8-shift)))&0xFF));
+      int end = start + size - 1;
+      for (int i = start; i < end; i++) {
+        data[i] = (byte) (((data[i] & 0xFF) << shift) | ((data[i + 1] & 0xFF) >> (8 - shift)));
+      }
+      if (size > 0) {
+        data[end] = (byte) ((data[end] & 0xFF) << shift);
       }
-      this.data = l.data;
-      this.size = l.size;
-      this.start = l.start;
     } else {
-      // this is stupid and inefficient, but it works and is currently not used.
-      reverseBits();
-      leftShiftBits(-shift);
-      reverseBits();
+      shift = -shift;
+      // whole bytes: move the data to the right and prepend zero bytes
+      int bytes = Math.min(shift / 8, size);
+      System.arraycopy(data, start, data, start + bytes, size - bytes);
+      Arrays.fill(data, start, start + bytes, (byte) 0);
+      shift %= 8;
+      if (shift == 0) {
+        return;
+      }
+      for (int i = start + size - 1; i > start; i--) {
+        data[i] = (byte) (((data[i] & 0xFF) >> shift) | ((data[i - 1] & 0xFF) << (8 - shift)));
+      }
+      if (size > 0) {
+        data[start] = (byte) ((data[start] & 0xFF) >> shift);
+      }
     }
   }
 
@@ -177,32 +256,36 @@ public class ByteArrayList extends AbstractList<Byte> {
    * The bit order is as defined in leftShiftBits.
    */
   public void reverseBits() {
-    // first, flip the bit order in-place
-      for (int i = 0; i < size(); i++)
-      {
-        byte b = get(i);
-        int bFlipped = 0;
-        for (int j = 0; j < 8; j++)
-        {
-          if ((b & (1 << j)) != 0)
-          {
-            bFlipped |= 1 << (7 - j);
-          }
-        }
-        set(i, (byte) bFlipped);
-      }
-      // then, flip the list order
-      Collections.reverse(this);
+    // swap from both ends, flipping the bit order of each byte
+    for (int i = start, j = start + size - 1; i <= j; i++, j--) {
+      byte b = data[i];
+      data[i] = REVERSED[data[j] & 0xFF];
+      data[j] = REVERSED[b & 0xFF];
+    }
   }
+
   /**
    * invert all bits.
    * For unsigned 8-bit integer, this means x becomes 255-x (binary complement).
    */
   public void invertBits() {
-      for (int i = 0; i < size(); i++)
-      {
-          set(i, (byte) ~get(i));
-      }
+    for (int i = start; i < start + size; i++) {
+      data[i] = (byte) ~data[i];
+    }
+  }
+
+  /**
+   * Copy the contents of the list into a byte array.
+   * @param buffer array to reuse if it is large enough, may be null
+   * @return buffer, or a newly allocated array if buffer was too small.
+   * Only the first size() bytes are valid.
+   */
+  public byte[] toByteArray(byte[] buffer) {
+    if (buffer == null || buffer.length < size) {
+      buffer = new byte[size];
+    }
+    System.arraycopy(data, start, buffer, 0, size);
+    return buffer;
   }
 
   @Override
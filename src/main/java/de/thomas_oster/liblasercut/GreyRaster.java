@@ -60,6 +60,12 @@ public class GreyRaster implements GreyscaleRaster, RasterElement.Provider
     this.raster.setPixel(x,y, grey);
   }
 
+  @Override
+  public void getGreyScaleRow(int y, int[] dst)
+  {
+    this.raster.getPixelRow(y, dst);
+  }
+
   @Override
   public int getHeight()
   {
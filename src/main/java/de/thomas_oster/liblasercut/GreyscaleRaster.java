@@ -46,5 +46,21 @@ public interface GreyscaleRaster
    */
   void setGreyScale(int x, int y, int grey);
 
+  /**
+   * get the greyscale values of a whole row of pixels. Implementations
+   * should override this if they can provide a row faster than getWidth()
+   * calls to getGreyScale().
+   * @param y row to read
+   * @param dst receives getGreyScale(x, y) at index x, has to be at least
+   * getWidth() long
+   */
+  default void getGreyScaleRow(int y, int[] dst)
+  {
+    for (int x = 0, width = getWidth(); x < width; x++)
+    {
+      dst[x] = getGreyScale(x, y);
+    }
+  }
+
   int getHeight();
 }
@@ -279,7 +279,8 @@ public abstract class LaserCutter implements Cloneable, Customizable {
       {
         double speed = vectorLineSpeed;
         VectorPart vp = (VectorPart) jp;
-        for (VectorCommand cmd : vp.getCommandList())
+        VectorPart.Cursor cmd = vp.cursor();
+        while (cmd.next())
         {
           switch (cmd.getType())
           {
@@ -344,71 +345,65 @@ public abstract class LaserCutter implements Cloneable, Customizable {
      */
     protected VectorPart convertRasterizableToVectorPart(RasterizableJobPart rp, LaserJob job, boolean bidirectional, boolean useMoveToForWhitePixels, boolean useMoveToForPadding)
     {
-      double resolution = rp.getDPI();
       // NOTE: The resolution of rp is also the resolution of the returned VectorPart.
-      VectorPart result = new VectorPart(rp.getLaserProperty(), resolution);
-
-      int leftLimitPx = 0;
-      int rightLimitPx = 0;
-      if (this.getRasterPaddingAllowOutsideMachineSpace())
-      {
-        leftLimitPx = (int) Util.mm2px(job.getTransformedOriginX() - this.getRasterPadding(), resolution);
-        rightLimitPx = (int) Util.mm2px(job.getTransformedOriginX() + getBedWidth() + this.getRasterPadding(), resolution);
-      }
-      else
+      VectorPart result = new VectorPart(rp.getLaserProperty(), rp.getDPI());
+      convertRasterizableToVectorCommands(rp, job, bidirectional, useMoveToForWhitePixels, useMoveToForPadding)
+        .forEachCommand(new VectorCommandVisitor<RuntimeException>()
       {
-        leftLimitPx = (int) Util.mm2px(job.getTransformedOriginX(), resolution);
-        rightLimitPx = (int) Util.mm2px(job.getTransformedOriginX() + getBedWidth(), resolution);
-      }
+        private boolean initialProperty = true;
 
-      for (int y = 0; y < rp.getRasterHeight(); y++)
-      {
-        if (rp.lineIsBlank(y)){
-          continue;
+        @Override
+        public void moveTo(double x, double y)
+        {
+          result.moveto(x, y);
         }
-        Point lineStart = rp.getStartPosition(y);
 
-        //move to prestart
-        int x = rp.firstNonWhitePixel(y);
-        int overscan = Math.round((float)Util.mm2px(this.getRasterPadding() * (rp.cutDirectionleftToRight ? 1 : -1), resolution));
-        double preStartX = lineStart.x + x + rp.cutCompensation() - overscan;
-        preStartX = Math.min(rightLimitPx, Math.max(leftLimitPx, preStartX));
-
-        result.moveto(preStartX, lineStart.y);
-
-        //move to the first point of the scanline
-        if (!useMoveToForPadding)
+        @Override
+        public void lineTo(double x, double y)
         {
-          result.setProperty(rp.getPowerSpeedFocusPropertyForColor(255)); 
+          result.lineto(x, y);
         }
-        result.linetoOrMoveto(lineStart.x + x + rp.cutCompensation(), lineStart.y, !useMoveToForPadding);
 
-
-        while(!rp.hasFinishedCuttingLine(x, y))
+        @Override
+        public void property(LaserProperty p)
         {
-          int color = rp.getImage().getGreyScale(x, y);
-          // for non-white pixels, we always need to use lineto(). For white pixels, respect useMoveToForWhitePixels.
-          boolean useLineto = color < 255 || !useMoveToForWhitePixels;
-          if (useLineto) 
+          // the VectorPart already starts with the initial property
+          if (initialProperty)
           {
-            result.setProperty(rp.getPowerSpeedFocusPropertyForColor(color));
+            initialProperty = false;
+            return;
           }
-          x = rp.nextColorChange(x, y);
-          result.linetoOrMoveto(lineStart.x + x + rp.cutCompensation(), lineStart.y, useLineto);
+          result.setProperty(p);
         }
+      });
+      return result;
+    }
 
-        // move to post-end
-        double postEndX = lineStart.x + x + rp.cutCompensation() + overscan;
-        postEndX = Math.min(rightLimitPx, Math.max(leftLimitPx, postEndX));
-        if (!useMoveToForPadding)
-        {
-          result.setProperty(rp.getPowerSpeedFocusPropertyForColor(255));
-        }
-        result.linetoOrMoveto(postEndX, lineStart.y, !useMoveToForPadding);
+    /**
+     * Like convertRasterizableToVectorPart(), but the commands are generated
+     * line by line while they are visited, so they never all exist at
+     * the same time. Drivers which only iterate the commands once should
+     * prefer this for big raster parts.
+     * @return the commands, with the bounding box of a VectorPart with the same commands
+     */
+    protected RasterVectorCommandSource convertRasterizableToVectorCommands(RasterizableJobPart rp, LaserJob job, boolean bidirectional, boolean useMoveToForWhitePixels, boolean useMoveToForPadding)
+    {
+      double resolution = rp.getDPI();
 
-        if (bidirectional) rp.toggleRasteringCutDirection();
+      int leftLimitPx = 0;
+      int rightLimitPx = 0;
+      if (this.getRasterPaddingAllowOutsideMachineSpace())
+      {
+        leftLimitPx = (int) Util.mm2px(job.getTransformedOriginX() - this.getRasterPadding(), resolution);
+        rightLimitPx = (int) Util.mm2px(job.getTransformedOriginX() + getBedWidth() + this.getRasterPadding(), resolution);
       }
-      return result;
+      else
+      {
+        leftLimitPx = (int) Util.mm2px(job.getTransformedOriginX(), resolution);
+        rightLimitPx = (int) Util.mm2px(job.getTransformedOriginX() + getBedWidth(), resolution);
+      }
+      return new RasterVectorCommandSource(rp, leftLimitPx, rightLimitPx, this.getRasterPadding(),
+        bidirectional, useMoveToForWhitePixels, useMoveToForPadding);
     }
     
     /**
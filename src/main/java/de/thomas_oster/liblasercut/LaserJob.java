@@ -158,7 +158,8 @@ public class LaserJob
       {
         if (p instanceof VectorPart)
         {
-          for (VectorCommand c : ((VectorPart) p).getCommandList())
+          VectorPart.Cursor c = ((VectorPart) p).cursor();
+          while (c.next())
           {
             if (c.getType().equals(VectorCommand.CmdType.LINETO) || c.getType().equals(VectorCommand.CmdType.MOVETO))
             {
@@ -61,10 +61,12 @@ public class Raster3dPart extends RasterizableJobPart
     } else {
       result.clear();
     }
-    for (int x = 0; x < image.getWidth(); x++)
+    int[] row = new int[image.getWidth()];
+    image.getGreyScaleRow(line, row);
+    for (int grey : row)
     {
       //TOTEST: Black white (byte converssion)
-      result.add((byte) image.getGreyScale(x, line));
+      result.add((byte) grey);
     }
   }
 
@@ -97,10 +99,12 @@ public class Raster3dPart extends RasterizableJobPart
     } else {
 	result.clear();
     }
-    for (int x = 0; x < image.getWidth(); x++)
+    int[] row = new int[image.getWidth()];
+    image.getGreyScaleRow(line, row);
+    for (int grey : row)
     {
       //TOTEST: Black white (byte converssion)
-      result.add((byte) (255 - image.getGreyScale(x, line)));
+      result.add((byte) (255 - grey));
     }
   }
 
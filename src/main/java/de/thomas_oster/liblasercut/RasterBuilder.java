@@ -574,12 +574,7 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
    */
   protected int leftMostNotEqual(int y, int v)
   {
-    for (int x = 0; x < image.getWidth(); x++)
-    {
-      int px = image.getPixel(x,y);
-      if (px != v) return x;
-    }
-    return -1;
+    return image.findFirstNot(y, v, 0);
   }
 
     /**
@@ -609,12 +604,8 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
    */
   protected int rightMostNotEqual(int y, int v)
   {
-    for (int x = image.getWidth()-1; x >= 0; x--)
-    {
-      int px = image.getPixel(x,y);
-      if (px != v) return x;
-    }
-    return image.getWidth();
+    int x = image.findLastNot(y, v, image.getWidth()-1);
+    return x == -1 ? image.getWidth() : x;
   }
 
   /**
@@ -651,13 +642,8 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
     if (image.getWidth() < x) return image.getWidth();
     
     
-    int v = image.getPixel(x,y);
-    for (int ix = x; ix >= 0; ix--)
-    {
-      int px = image.getPixel(ix,y);
-      if (px != v) return ix;
-    }
-    return 0;
+    int ix = image.findLastNot(y, image.getPixel(x,y), x-1);
+    return ix == -1 ? 0 : ix;
   }
 
     /**
@@ -702,13 +688,8 @@ public class RasterBuilder implements Iterable<VectorCommand>, Iterator<VectorCo
     if (x == image.getWidth()-1) return image.getWidth();
     if (image.getWidth() <= x) return def;
     
-    int v = image.getPixel(x,y);
-    for (int ix = x; ix < image.getWidth(); ix++)
-    {
-      int px = image.getPixel(ix,y);
-      if (px != v) return ix;
-    }
-    return image.getWidth()-1;
+    int ix = image.nextRunEnd(y, x);
+    return ix == image.getWidth() ? image.getWidth()-1 : ix;
   }
   
   
@@ -19,6 +19,9 @@
 
 package de.thomas_oster.liblasercut;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -28,12 +31,20 @@ import java.util.Arrays;
 public class RasterElement
 {
 
+  /**
+   * reads 8 bytes of imageData as one big endian long, so the leftmost pixel
+   * of the word ends up in its most significant bits
+   */
+  private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
   private final byte[] imageData;
   private final int stride;
   private final int width;
   private final int height;
   private final int bitDepth;
   private final int samplesPerPixel;
+  // bumped once per bulk write, never per pixel
+  private volatile int modificationCount = 0;
   
   
   public RasterElement(int width, int height)
@@ -113,7 +124,192 @@ public class RasterElement
     return true;
   }
 
-  
+  /**
+   * Finds the first pixel in line y at or right of from which is not equal
+   * to value.
+   * For pixels of 1, 2, 4 or 8 bits this compares 64 bits at once.
+   * @return x coordinate of that pixel or -1 if all pixels equal value
+   */
+  public int findFirstNot(int y, int value, int from)
+  {
+    int x = Math.max(from, 0);
+    int bits = bitDepth * samplesPerPixel;
+    if (!isWordScannable(bits))
+    {
+      for (; x < width; x++)
+      {
+        if (getPixel(x, y) != value)
+        {
+          return x;
+        }
+      }
+      return -1;
+    }
+    int rowOffset = y * stride;
+    int mask = (1 << bits) - 1;
+    if ((value & ~mask) != 0)
+    {
+      // no pixel can hold this value
+      return x < width ? x : -1;
+    }
+    int pixelsPerWord = 64 / bits;
+    // single pixels up to the next word boundary
+    for (; x < width && (x % pixelsPerWord) != 0; x++)
+    {
+      if (getSmallPixel(rowOffset, x, bits, mask) != value)
+      {
+        return x;
+      }
+    }
+    long pattern = replicate(value, bits);
+    for (; x + pixelsPerWord <= width; x += pixelsPerWord)
+    {
+      long diff = ((long) LONG_VIEW.get(imageData, rowOffset + ((x * bits) >> 3))) ^ pattern;
+      if (diff != 0)
+      {
+        return x + Long.numberOfLeadingZeros(diff) / bits;
+      }
+    }
+    for (; x < width; x++)
+    {
+      if (getSmallPixel(rowOffset, x, bits, mask) != value)
+      {
+        return x;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the last pixel in line y at or left of from which is not equal
+   * to value.
+   * For pixels of 1, 2, 4 or 8 bits this compares 64 bits at once.
+   * @return x coordinate of that pixel or -1 if all pixels equal value
+   */
+  public int findLastNot(int y, int value, int from)
+  {
+    int x = Math.min(from, width - 1);
+    int bits = bitDepth * samplesPerPixel;
+    if (!isWordScannable(bits))
+    {
+      for (; x >= 0; x--)
+      {
+        if (getPixel(x, y) != value)
+        {
+          return x;
+        }
+      }
+      return -1;
+    }
+    int rowOffset = y * stride;
+    int mask = (1 << bits) - 1;
+    if ((value & ~mask) != 0)
+    {
+      return x >= 0 ? x : -1;
+    }
+    int pixelsPerWord = 64 / bits;
+    for (; x >= 0 && ((x + 1) % pixelsPerWord) != 0; x--)
+    {
+      if (getSmallPixel(rowOffset, x, bits, mask) != value)
+      {
+        return x;
+      }
+    }
+    long pattern = replicate(value, bits);
+    for (; x + 1 >= pixelsPerWord; x -= pixelsPerWord)
+    {
+      int first = x + 1 - pixelsPerWord;
+      long diff = ((long) LONG_VIEW.get(imageData, rowOffset + ((first * bits) >> 3))) ^ pattern;
+      if (diff != 0)
+      {
+        return first + (63 - Long.numberOfTrailingZeros(diff)) / bits;
+      }
+    }
+    for (; x >= 0; x--)
+    {
+      if (getSmallPixel(rowOffset, x, bits, mask) != value)
+      {
+        return x;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the end of the run of equally colored pixels containing pixel x
+   * @return x coordinate of the first pixel right of x with a different
+   * value or the width of the image if the run reaches the end of the line
+   */
+  public int nextRunEnd(int y, int x)
+  {
+    int end = findFirstNot(y, getPixel(x, y), x + 1);
+    return end == -1 ? width : end;
+  }
+
+  /**
+   * @return true if all pixels in line y equal value
+   */
+  public boolean isLineUniform(int y, int value)
+  {
+    return findFirstNot(y, value, 0) == -1;
+  }
+
+  /**
+   * Reads all pixels of line y, the same as calling getPixel(x, y) for every x
+   * @param dst receives the pixel values, has to be at least getWidth() long
+   */
+  public void getPixelRow(int y, int[] dst)
+  {
+    int bits = bitDepth * samplesPerPixel;
+    if (!isWordScannable(bits))
+    {
+      for (int x = 0; x < width; x++)
+      {
+        dst[x] = getPixel(x, y);
+      }
+      return;
+    }
+    int rowOffset = y * stride;
+    if (bits == 8)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        dst[x] = imageData[rowOffset + x] & 0xff;
+      }
+      return;
+    }
+    int mask = (1 << bits) - 1;
+    for (int x = 0; x < width; x++)
+    {
+      dst[x] = getSmallPixel(rowOffset, x, bits, mask);
+    }
+  }
+
+  /**
+   * pixels of these sizes never straddle a byte boundary and a whole number
+   * of them fits into a long
+   */
+  private static boolean isWordScannable(int bits)
+  {
+    return bits == 1 || bits == 2 || bits == 4 || bits == 8;
+  }
+
+  private int getSmallPixel(int rowOffset, int x, int bits, int mask)
+  {
+    int bitPos = x * bits;
+    return (imageData[rowOffset + (bitPos >> 3)] >> (8 - bits - (bitPos & 7))) & mask;
+  }
+
+  private static long replicate(int value, int bits)
+  {
+    long pattern = value;
+    for (int filled = bits; filled < 64; filled *= 2)
+    {
+      pattern |= pattern << filled;
+    }
+    return pattern;
+  }
+
   boolean isBlack(int x, int y) {
     int value = getPixel(x,y);
     return value == getBlack();
@@ -143,6 +339,25 @@ public class RasterElement
     return height;
   }
 
+  /**
+   * Changes on every modified() call, so that information derived from the
+   * pixels can be cached until the raster changes.
+   */
+  public int getModificationCount()
+  {
+    return modificationCount;
+  }
+
+  /**
+   * Tells caches built from this raster that its pixels changed. setPixel()
+   * does not do this itself, call it once after a batch of writes (the
+   * dithering algorithms do so when they are done).
+   */
+  public synchronized void modified()
+  {
+    modificationCount++;
+  }
+
   public byte[] getImageData()
   {
     return imageData;
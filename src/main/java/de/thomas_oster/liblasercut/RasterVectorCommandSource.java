@@ -0,0 +1,390 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.platform.Util;
+import java.util.Arrays;
+
+/**
+ * Vector commands for engraving a raster part, generated line by line
+ * while they are visited or pulled from a cursor instead of being stored
+ * in a VectorPart. Memory use is independent of the number of pixels.
+ *
+ * Created by LaserCutter.convertRasterizableToVectorCommands(), which
+ * describes the parameters. The commands are the same as in the VectorPart
+ * returned by LaserCutter.convertRasterizableToVectorPart().
+ *
+ * Visiting the commands toggles the cut direction of the raster part like
+ * the conversion to a VectorPart does, but every visit starts with the
+ * direction the part had when this source was created.
+ */
+public class RasterVectorCommandSource extends JobPart implements VectorCommandSource
+{
+
+  private final RasterizableJobPart rp;
+  private final int leftLimitPx;
+  private final int rightLimitPx;
+  private final double rasterPadding;
+  private final boolean bidirectional;
+  private final boolean useMoveToForWhitePixels;
+  private final boolean useMoveToForPadding;
+  private final boolean startLeftToRight;
+
+  private boolean boundsKnown = false;
+  private double minX;
+  private double minY;
+  private double maxX;
+  private double maxY;
+  private boolean hasLineto;
+
+  /**
+   * @param leftLimitPx smallest x coordinate the padding may reach
+   * @param rightLimitPx largest x coordinate the padding may reach
+   * @param rasterPadding width of the padding at both ends of a line in mm
+   */
+  public RasterVectorCommandSource(RasterizableJobPart rp, int leftLimitPx, int rightLimitPx, double rasterPadding,
+    boolean bidirectional, boolean useMoveToForWhitePixels, boolean useMoveToForPadding)
+  {
+    this.rp = rp;
+    this.leftLimitPx = leftLimitPx;
+    this.rightLimitPx = rightLimitPx;
+    this.rasterPadding = rasterPadding;
+    this.bidirectional = bidirectional;
+    this.useMoveToForWhitePixels = useMoveToForWhitePixels;
+    this.useMoveToForPadding = useMoveToForPadding;
+    this.startLeftToRight = rp.cutDirectionleftToRight;
+  }
+
+  @Override
+  public double getDPI()
+  {
+    return rp.getDPI();
+  }
+
+  @Override
+  public <E extends Exception> void forEachCommand(VectorCommandVisitor<E> v) throws E
+  {
+    // every color run needs its property, but there are only 256 different ones
+    LaserProperty[] properties = new LaserProperty[256];
+    rp.cutDirectionleftToRight = startLeftToRight;
+    v.property(rp.getLaserProperty());
+    for (int y = 0; y < rp.getRasterHeight(); y++)
+    {
+      visitLine(y, properties, v);
+    }
+  }
+
+  /**
+   * Returns a cursor which generates the commands of one raster line at a
+   * time when it gets there. Like forEachCommand(), it toggles the cut
+   * direction of the raster part, so only one pass may run at a time.
+   */
+  @Override
+  public VectorCommandCursor cursor()
+  {
+    return new LineCursor();
+  }
+
+  /**
+   * Generates the commands for line y of the raster
+   */
+  private <E extends Exception> void visitLine(int y, LaserProperty[] properties, VectorCommandVisitor<E> v) throws E
+  {
+    if (rp.lineIsBlank(y))
+    {
+      return;
+    }
+    double resolution = rp.getDPI();
+    Point lineStart = rp.getStartPosition(y);
+
+    //move to prestart
+    int x = rp.firstNonWhitePixel(y);
+    int overscan = Math.round((float) Util.mm2px(rasterPadding * (rp.cutDirectionleftToRight ? 1 : -1), resolution));
+    double preStartX = lineStart.x + x + rp.cutCompensation() - overscan;
+    preStartX = Math.min(rightLimitPx, Math.max(leftLimitPx, preStartX));
+
+    v.moveTo(preStartX, lineStart.y);
+
+    //move to the first point of the scanline
+    if (!useMoveToForPadding)
+    {
+      v.property(getProperty(properties, 255));
+    }
+    lineOrMove(v, lineStart.x + x + rp.cutCompensation(), lineStart.y, !useMoveToForPadding);
+
+    while (!rp.hasFinishedCuttingLine(x, y))
+    {
+      int color = rp.getImage().getGreyScale(x, y);
+      // for non-white pixels, we always need to use lineto(). For white pixels, respect useMoveToForWhitePixels.
+      boolean useLineto = color < 255 || !useMoveToForWhitePixels;
+      if (useLineto)
+      {
+        v.property(getProperty(properties, color));
+      }
+      x = rp.nextColorChange(x, y);
+      lineOrMove(v, lineStart.x + x + rp.cutCompensation(), lineStart.y, useLineto);
+    }
+
+    // move to post-end
+    double postEndX = lineStart.x + x + rp.cutCompensation() + overscan;
+    postEndX = Math.min(rightLimitPx, Math.max(leftLimitPx, postEndX));
+    if (!useMoveToForPadding)
+    {
+      v.property(getProperty(properties, 255));
+    }
+    lineOrMove(v, postEndX, lineStart.y, !useMoveToForPadding);
+
+    if (bidirectional)
+    {
+      rp.toggleRasteringCutDirection();
+    }
+  }
+
+  /**
+   * Buffers the commands of one line and generates the next line when
+   * they are used up
+   */
+  private final class LineCursor implements VectorCommandCursor, VectorCommandVisitor<RuntimeException>
+  {
+    private final LaserProperty[] properties = new LaserProperty[256];
+    private int nextLine = 0;
+    private VectorCommand.CmdType[] types = new VectorCommand.CmdType[16];
+    private double[] xs = new double[16];
+    private double[] ys = new double[16];
+    private LaserProperty[] lineProperties = new LaserProperty[16];
+    private int size = 0;
+    private int index = -1;
+
+    private LineCursor()
+    {
+      rp.cutDirectionleftToRight = startLeftToRight;
+      property(rp.getLaserProperty());
+    }
+
+    @Override
+    public boolean next()
+    {
+      index++;
+      while (index >= size)
+      {
+        if (nextLine >= rp.getRasterHeight())
+        {
+          index = size;
+          return false;
+        }
+        size = 0;
+        index = 0;
+        visitLine(nextLine++, properties, this);
+      }
+      return true;
+    }
+
+    @Override
+    public VectorCommand.CmdType getType()
+    {
+      return types[index];
+    }
+
+    @Override
+    public double getX()
+    {
+      if (types[index] == VectorCommand.CmdType.SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("getX not supported for SETPROPERTY");
+      }
+      return xs[index];
+    }
+
+    @Override
+    public double getY()
+    {
+      if (types[index] == VectorCommand.CmdType.SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("getY not supported for SETPROPERTY");
+      }
+      return ys[index];
+    }
+
+    @Override
+    public LaserProperty getProperty()
+    {
+      if (types[index] != VectorCommand.CmdType.SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("Only valid for SETPROPERTY");
+      }
+      return lineProperties[index];
+    }
+
+    @Override
+    public void moveTo(double x, double y)
+    {
+      add(VectorCommand.CmdType.MOVETO, x, y, null);
+    }
+
+    @Override
+    public void lineTo(double x, double y)
+    {
+      add(VectorCommand.CmdType.LINETO, x, y, null);
+    }
+
+    @Override
+    public void property(LaserProperty p)
+    {
+      add(VectorCommand.CmdType.SETPROPERTY, 0, 0, p);
+    }
+
+    private void add(VectorCommand.CmdType type, double x, double y, LaserProperty p)
+    {
+      if (size == types.length)
+      {
+        int capacity = size * 2;
+        types = Arrays.copyOf(types, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        lineProperties = Arrays.copyOf(lineProperties, capacity);
+      }
+      types[size] = type;
+      xs[size] = x;
+      ys[size] = y;
+      lineProperties[size] = p;
+      size++;
+    }
+  }
+
+  private LaserProperty getProperty(LaserProperty[] properties, int color)
+  {
+    LaserProperty p = properties[color];
+    if (p == null)
+    {
+      p = rp.getPowerSpeedFocusPropertyForColor(color);
+      properties[color] = p;
+    }
+    return p;
+  }
+
+  private static <E extends Exception> void lineOrMove(VectorCommandVisitor<E> v, double x, double y, boolean line) throws E
+  {
+    if (line)
+    {
+      v.lineTo(x, y);
+    }
+    else
+    {
+      v.moveTo(x, y);
+    }
+  }
+
+  /**
+   * The bounds need one pass over all commands, which is done on first use
+   */
+  private void computeBounds()
+  {
+    if (boundsKnown)
+    {
+      return;
+    }
+    minX = Double.POSITIVE_INFINITY;
+    minY = Double.POSITIVE_INFINITY;
+    maxX = Double.NEGATIVE_INFINITY;
+    maxY = Double.NEGATIVE_INFINITY;
+    boolean wasLeftToRight = rp.cutDirectionleftToRight;
+    forEachCommand(new VectorCommandVisitor<RuntimeException>()
+    {
+      @Override
+      public void moveTo(double x, double y)
+      {
+        add(x, y);
+      }
+
+      @Override
+      public void lineTo(double x, double y)
+      {
+        hasLineto = true;
+        add(x, y);
+      }
+
+      @Override
+      public void property(LaserProperty p)
+      {
+      }
+
+      private void add(double x, double y)
+      {
+        // same comparisons as VectorPart, so the bounds are identical
+        if (x < minX)
+        {
+          minX = x;
+        }
+        if (y < minY)
+        {
+          minY = y;
+        }
+        if (x > maxX)
+        {
+          maxX = x;
+        }
+        if (y > maxY)
+        {
+          maxY = y;
+        }
+      }
+    });
+    rp.cutDirectionleftToRight = wasLeftToRight;
+    boundsKnown = true;
+  }
+
+  @Override
+  public double getMinX()
+  {
+    computeBounds();
+    return minX;
+  }
+
+  @Override
+  public double getMinY()
+  {
+    computeBounds();
+    return minY;
+  }
+
+  @Override
+  public double getMaxX()
+  {
+    computeBounds();
+    return maxX;
+  }
+
+  @Override
+  public double getMaxY()
+  {
+    computeBounds();
+    return maxY;
+  }
+
+  /**
+   * Like VectorPart, the source is empty if it contains no LINETO commands
+   */
+  @Override
+  public boolean isEmpty()
+  {
+    computeBounds();
+    return !hasLineto;
+  }
+}
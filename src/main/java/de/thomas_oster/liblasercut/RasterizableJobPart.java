@@ -19,6 +19,7 @@
 package de.thomas_oster.liblasercut;
 
 import de.thomas_oster.liblasercut.platform.Point;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -31,6 +32,8 @@ abstract public class RasterizableJobPart extends JobPart
   protected Point start = null;
   protected boolean cutDirectionleftToRight = true;
   protected double resolution = Double.NaN;
+  private volatile LineIndex lineIndex = null;
+  private volatile LineRuns lineRuns = null;
 
   @Override
   public double getDPI()
@@ -89,10 +92,7 @@ abstract public class RasterizableJobPart extends JobPart
    */
   public boolean lineIsBlank(int y)
   {
-    for (int x=0; x<getRasterWidth(); x++)
-      if (image.getGreyScale(x, y) < 255)
-        return false;
-    return true;
+    return getLineIndex().isBlank(y);
   }
   
   /**
@@ -104,7 +104,6 @@ abstract public class RasterizableJobPart extends JobPart
   {
     cutDirectionleftToRight = !cutDirectionleftToRight;
   }
-
   
   /**
    * Adds any required compensation when cutting.
@@ -151,10 +150,7 @@ abstract public class RasterizableJobPart extends JobPart
    */
   protected int leftMostNonWhitePixel(int y)
   {
-    for (int x=0; x<getRasterWidth(); x++)
-      if (image.getGreyScale(x, y) < 255)
-        return x;
-    return getRasterWidth();
+    return getLineIndex().left[y];
   }
   
   /**
@@ -175,10 +171,7 @@ abstract public class RasterizableJobPart extends JobPart
    */
   protected int rightMostNonWhitePixel(int y)
   {
-    for (int x=getRasterWidth()-1; x >= 0; x--)
-      if (image.getGreyScale(x, y) < 255)
-        return x;
-    return 0;
+    return getLineIndex().right[y];
   }
   
   /**
@@ -203,6 +196,24 @@ abstract public class RasterizableJobPart extends JobPart
    */
   protected int nextColorChangeHeadingRight(int x, int y)
   {
+    if (x < 0 || x >= getRasterWidth())
+    {
+      return scanNextColorChangeHeadingRight(x, y);
+    }
+    int[] starts = getLineRuns(y).starts;
+    // first run starting right of x
+    int i = Arrays.binarySearch(starts, x + 1);
+    i = i < 0 ? -i - 1 : i;
+    return i < starts.length ? starts[i] : getRasterWidth();
+  }
+
+  private int scanNextColorChangeHeadingRight(int x, int y)
+  {
+    RasterElement raster = getRasterElement();
+    if (raster != null)
+    {
+      return raster.nextRunEnd(y, x);
+    }
     int color = image.getGreyScale(x, y);
     for (int i=x; i<getRasterWidth(); i++)
       if (image.getGreyScale(i, y) != color)
@@ -219,6 +230,24 @@ abstract public class RasterizableJobPart extends JobPart
    */
   protected int nextColorChangeHeadingLeft(int x, int y)
   {
+    if (x < 0 || x >= getRasterWidth())
+    {
+      return scanNextColorChangeHeadingLeft(x, y);
+    }
+    int[] starts = getLineRuns(y).starts;
+    // the run containing x starts at the last run start <= x
+    int i = Arrays.binarySearch(starts, x);
+    i = i < 0 ? -i - 2 : i;
+    return i >= 0 ? starts[i] - 1 : -1;
+  }
+
+  private int scanNextColorChangeHeadingLeft(int x, int y)
+  {
+    RasterElement raster = getRasterElement();
+    if (raster != null)
+    {
+      return raster.findLastNot(y, raster.getPixel(x, y), x);
+    }
     int color = image.getGreyScale(x, y);
     for (int i=x; i>=0; i--)
       if (image.getGreyScale(i, y) != color)
@@ -227,6 +256,200 @@ abstract public class RasterizableJobPart extends JobPart
     return -1;
   }
   
+  /**
+   * Per line summary of the image: where the non-white pixels of each line
+   * begin and end. Built in one pass over the image the first time it is
+   * needed and shared by isEmpty(), lineIsBlank() and the first/last pixel
+   * lookups, which are otherwise called for every line (and every run) by
+   * the time estimation and the raster to vector conversion.
+   */
+  private static final class LineIndex
+  {
+    final GreyscaleRaster image;
+    final int version;
+    /**
+     * leftmost non-white pixel per line, the raster width for blank lines
+     */
+    final int[] left;
+    /**
+     * rightmost non-white pixel per line, 0 for blank lines
+     */
+    final int[] right;
+    final int width;
+
+    LineIndex(GreyscaleRaster image, int version, int[] left, int[] right)
+    {
+      this.image = image;
+      this.version = version;
+      this.left = left;
+      this.right = right;
+      this.width = image.getWidth();
+    }
+
+    boolean isBlank(int y)
+    {
+      return left[y] >= width;
+    }
+  }
+
+  /**
+   * Start columns of all but the first run of equally colored pixels in one
+   * line. Only the most recently used line is kept, because consumers walk
+   * the image line by line and keeping all of them would cost as much memory
+   * as the image itself for dithered rasters.
+   */
+  private static final class LineRuns
+  {
+    final GreyscaleRaster image;
+    final int version;
+    final int y;
+    final int[] starts;
+
+    LineRuns(GreyscaleRaster image, int version, int y, int[] starts)
+    {
+      this.image = image;
+      this.version = version;
+      this.y = y;
+      this.starts = starts;
+    }
+  }
+
+  private LineIndex getLineIndex()
+  {
+    LineIndex index = lineIndex;
+    int version = getImageVersion();
+    if (index == null || index.image != image || index.version != version)
+    {
+      int height = getRasterHeight();
+      int width = getRasterWidth();
+      int[] left = new int[height];
+      int[] right = new int[height];
+      RasterElement raster = getRasterElement();
+      int white = rasterWhiteValue();
+      int[] row = white == -1 ? new int[width] : null;
+      for (int y = 0; y < height; y++)
+      {
+        if (white != -1)
+        {
+          int x = raster.findFirstNot(y, white, 0);
+          left[y] = x == -1 ? width : x;
+          right[y] = x == -1 ? 0 : raster.findLastNot(y, white, width - 1);
+        }
+        else
+        {
+          image.getGreyScaleRow(y, row);
+          int x = 0;
+          while (x < width && row[x] >= 255)
+          {
+            x++;
+          }
+          left[y] = x;
+          x = width - 1;
+          while (x > 0 && row[x] >= 255)
+          {
+            x--;
+          }
+          right[y] = left[y] >= width ? 0 : x;
+        }
+      }
+      index = new LineIndex(image, version, left, right);
+      lineIndex = index;
+    }
+    return index;
+  }
+
+  private LineRuns getLineRuns(int y)
+  {
+    LineRuns runs = lineRuns;
+    int version = getImageVersion();
+    if (runs == null || runs.y != y || runs.image != image || runs.version != version)
+    {
+      int width = getRasterWidth();
+      int[] starts = new int[Math.max(width, 0)];
+      int count = 0;
+      RasterElement raster = getRasterElement();
+      if (raster != null)
+      {
+        for (int x = raster.nextRunEnd(y, 0); x < width; x = raster.nextRunEnd(y, x))
+        {
+          starts[count++] = x;
+        }
+      }
+      else
+      {
+        int[] row = new int[width];
+        image.getGreyScaleRow(y, row);
+        for (int x = 1; x < width; x++)
+        {
+          if (row[x] != row[x - 1])
+          {
+            starts[count++] = x;
+          }
+        }
+      }
+      runs = new LineRuns(image, version, y, Arrays.copyOf(starts, count));
+      lineRuns = runs;
+    }
+    return runs;
+  }
+
+  /**
+   * Changes whenever the RasterElement behind the image reports a
+   * modification, see RasterElement.modified(). Other images are assumed to
+   * stay unchanged; call invalidateLineIndex() after modifying them.
+   */
+  private int getImageVersion()
+  {
+    return image instanceof RasterElement.Provider
+      ? ((RasterElement.Provider) image).getRaster().getModificationCount()
+      : 0;
+  }
+
+  /**
+   * Drops the cached per line information (blank lines, first and last
+   * non-white pixel, color changes). Needed if pixels are set after this
+   * part was created, unless the image is a RasterElement whose modified()
+   * was called afterwards (dithering does that).
+   */
+  public void invalidateLineIndex()
+  {
+    lineIndex = null;
+    lineRuns = null;
+  }
+
+  /**
+   * Returns the RasterElement behind the image if getGreyScale() is a
+   * one-to-one mapping of its pixel values, so that runs of equal pixels can
+   * be found on the packed data instead of pixel by pixel.
+   * @return the raster or null if the image has to be read through getGreyScale()
+   */
+  private RasterElement getRasterElement()
+  {
+    if (image instanceof BlackWhiteRaster || image instanceof GreyRaster)
+    {
+      return ((RasterElement.Provider) image).getRaster();
+    }
+    return null;
+  }
+
+  /**
+   * @return the pixel value of getRasterElement() that getGreyScale() reports
+   * as white (255), or -1 if there is no raster or no such value
+   */
+  private int rasterWhiteValue()
+  {
+    if (image instanceof BlackWhiteRaster)
+    {
+      return 0;
+    }
+    if (image instanceof GreyRaster)
+    {
+      RasterElement raster = ((GreyRaster) image).getRaster();
+      return raster.getBitDepth() * raster.getSamplesPerPixel() == 8 ? 255 : -1;
+    }
+    return -1;
+  }
+
   /**
    * Returns the upper left point of the given raster
    */
@@ -0,0 +1,44 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+/**
+ * Anything that can hand out a sequence of vector commands, either stored
+ * (VectorPart) or generated on the fly (RasterVectorCommandSource).
+ */
+public interface VectorCommandSource
+{
+
+  /**
+   * Resolution of the coordinates handed to the visitor
+   */
+  double getDPI();
+
+  /**
+   * Calls the visitor for each command, in order. The first command is
+   * always the initial property.
+   */
+  <E extends Exception> void forEachCommand(VectorCommandVisitor<E> visitor) throws E;
+
+  /**
+   * Returns a new cursor positioned before the first command, which is
+   * the initial property. The same commands as for forEachCommand().
+   */
+  VectorCommandCursor cursor();
+}
@@ -0,0 +1,51 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+/**
+ * Callback for VectorPart.forEachCommand(VectorCommandVisitor).
+ *
+ * The commands are handed over as primitive values, so visiting a VectorPart
+ * does not create any VectorCommand objects.
+ *
+ * @param <E> checked exception the callbacks may throw (e.g. IOException
+ * when writing to the cutter). Use RuntimeException if none is thrown.
+ */
+public interface VectorCommandVisitor<E extends Exception>
+{
+
+  /**
+   * move to (x,y) with laser off
+   * @param x coordinate in dots (according to VectorPart.getDPI())
+   * @param y coordinate in dots (according to VectorPart.getDPI())
+   */
+  void moveTo(double x, double y) throws E;
+
+  /**
+   * cut a line to (x,y)
+   * @param x coordinate in dots (according to VectorPart.getDPI())
+   * @param y coordinate in dots (according to VectorPart.getDPI())
+   */
+  void lineTo(double x, double y) throws E;
+
+  /**
+   * use the given property for the following commands
+   */
+  void property(LaserProperty p) throws E;
+}
@@ -18,23 +18,53 @@
  */
 package de.thomas_oster.liblasercut;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * A sequence of MOVETO, LINETO and SETPROPERTY commands.
+ *
+ * The commands are stored column-wise in primitive arrays (one op-code and
+ * one x/y pair per command), property changes are kept in a separate list in
+ * the order they occur. This keeps large parts (hundreds of thousands of
+ * segments) compact and makes appending a command O(1).
+ * Use forEachCommand() or cursor() to iterate the commands without creating
+ * VectorCommand objects.
  *
  * @author Thomas Oster <thomas.oster@rwth-aachen.de>
  */
-public class VectorPart extends JobPart
+public class VectorPart extends JobPart implements VectorCommandSource
 {
 
+  private static final VectorCommand.CmdType[] CMD_TYPES = VectorCommand.CmdType.values();
+  private static final byte OP_SETPROPERTY = (byte) VectorCommand.CmdType.SETPROPERTY.ordinal();
+  private static final byte OP_MOVETO = (byte) VectorCommand.CmdType.MOVETO.ordinal();
+  private static final byte OP_LINETO = (byte) VectorCommand.CmdType.LINETO.ordinal();
+  private static final int INITIAL_CAPACITY = 16;
+
   private LaserProperty currentCuttingProperty;
   private double maxX = Double.NEGATIVE_INFINITY;
   private double maxY = Double.NEGATIVE_INFINITY;
   private double minX = Double.POSITIVE_INFINITY;
   private double minY = Double.POSITIVE_INFINITY;
   private final double resolution;
-  private final List<VectorCommand> commands;
+  /**
+   * op-code (ordinal of VectorCommand.CmdType) of each command
+   */
+  private byte[] ops = new byte[INITIAL_CAPACITY];
+  /**
+   * coordinates of each command, unused for SETPROPERTY
+   */
+  private double[] xs = new double[INITIAL_CAPACITY];
+  private double[] ys = new double[INITIAL_CAPACITY];
+  private int size = 0;
+  /**
+   * the n-th entry belongs to the n-th SETPROPERTY command
+   */
+  private final List<LaserProperty> properties = new ArrayList<>();
+  private boolean hasMoveto = false;
+  private boolean hasLineto = false;
 
   public VectorPart(LaserProperty initialProperty, double resolution)
   {
@@ -43,10 +73,9 @@ public class VectorPart extends JobPart
       throw new IllegalArgumentException("Initial Property must not be null");
     }
     this.resolution = resolution;
-    commands = new LinkedList<>();
     this.currentCuttingProperty = initialProperty;
-    commands.add(new VectorCommand(VectorCommand.CmdType.SETPROPERTY, initialProperty));
-
+    add(OP_SETPROPERTY, 0, 0);
+    properties.add(initialProperty);
   }
 
   @Override
@@ -63,12 +92,84 @@ public class VectorPart extends JobPart
   public void setProperty(LaserProperty cp)
   {
     this.currentCuttingProperty = cp;
-    commands.add(new VectorCommand(VectorCommand.CmdType.SETPROPERTY, cp));
+    add(OP_SETPROPERTY, 0, 0);
+    properties.add(cp);
   }
 
+  /**
+   * Returns a copy of all commands as VectorCommand objects.
+   * Modifying the returned commands does not change this VectorPart.
+   *
+   * For large parts, prefer forEachCommand() or cursor(), which do not
+   * allocate per command.
+   */
   public VectorCommand[] getCommandList()
   {
-    return commands.toArray(new VectorCommand[0]);
+    VectorCommand[] result = new VectorCommand[size];
+    Cursor c = cursor();
+    for (int i = 0; c.next(); i++)
+    {
+      result[i] = c.getType() == VectorCommand.CmdType.SETPROPERTY
+        ? new VectorCommand(VectorCommand.CmdType.SETPROPERTY, c.getProperty())
+        : new VectorCommand(c.getType(), c.getX(), c.getY());
+    }
+    return result;
+  }
+
+  /**
+   * Number of commands (including SETPROPERTY) in this part
+   */
+  public int getCommandCount()
+  {
+    return size;
+  }
+
+  /**
+   * Returns a new cursor positioned before the first command.
+   */
+  public Cursor cursor()
+  {
+    return new Cursor();
+  }
+
+  /**
+   * Calls the visitor for each command, in order.
+   */
+  @Override
+  public <E extends Exception> void forEachCommand(VectorCommandVisitor<E> visitor) throws E
+  {
+    int propertyIndex = 0;
+    for (int i = 0; i < size; i++)
+    {
+      byte op = ops[i];
+      if (op == OP_MOVETO)
+      {
+        visitor.moveTo(xs[i], ys[i]);
+      }
+      else if (op == OP_LINETO)
+      {
+        visitor.lineTo(xs[i], ys[i]);
+      }
+      else
+      {
+        visitor.property(properties.get(propertyIndex++));
+      }
+    }
+  }
+
+  private void add(byte op, double x, double y)
+  {
+    if (size == ops.length)
+    {
+      int capacity = ops.length * 2;
+      ops = Arrays.copyOf(ops, capacity);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+    }
+    ops[size] = op;
+    xs[size] = x;
+    ys[size] = y;
+    size++;
   }
 
   private void checkMin(double x, double y)
@@ -101,7 +202,8 @@ public class VectorPart extends JobPart
    */
   public void moveto(double x, double y)
   {
-    commands.add(new VectorCommand(VectorCommand.CmdType.MOVETO, x, y));
+    add(OP_MOVETO, x, y);
+    hasMoveto = true;
     checkMin(x, y);
     checkMax(x, y);
   }
@@ -115,11 +217,12 @@ public class VectorPart extends JobPart
   {
     // ensure that lineto() is only called after moveto(), so that the
     // VectorPart does not depend on the previous state.
-    if (!commands.stream().anyMatch(cmd -> cmd.getType() == VectorCommand.CmdType.MOVETO))
+    if (!hasMoveto)
     {
       throw new IllegalStateException("lineto() may only be called after moveto().");
     }
-    commands.add(new VectorCommand(VectorCommand.CmdType.LINETO, x, y));
+    add(OP_LINETO, x, y);
+    hasLineto = true;
     checkMin(x, y);
     checkMax(x, y);
   }
@@ -196,6 +299,107 @@ public class VectorPart extends JobPart
   public boolean isEmpty()
   {
     // VectorPart is empty if it contains no LINETO commands
-    return !commands.stream().anyMatch(cmd -> cmd.getType() == VectorCommand.CmdType.LINETO);
+    return !hasLineto;
+  }
+
+  /**
+   * Forward-only iterator over the commands of a VectorPart.
+   *
+   * Usage:
+   * <pre>
+   * VectorPart.Cursor c = vp.cursor();
+   * while (c.next())
+   * {
+   *   switch (c.getType()) ...
+   * }
+   * </pre>
+   * The cursor reads directly from the backing arrays and does not allocate
+   * anything per command. Commands appended while iterating are visited, too.
+   */
+  public final class Cursor implements VectorCommandCursor
+  {
+
+    private int index = -1;
+    private int propertyIndex = -1;
+
+    private Cursor()
+    {
+    }
+
+    /**
+     * Advance to the next command.
+     * @return false if there are no more commands
+     */
+    public boolean next()
+    {
+      if (index + 1 >= size)
+      {
+        return false;
+      }
+      index++;
+      if (ops[index] == OP_SETPROPERTY)
+      {
+        propertyIndex++;
+      }
+      return true;
+    }
+
+    public VectorCommand.CmdType getType()
+    {
+      return CMD_TYPES[ops[index]];
+    }
+
+    public double getX()
+    {
+      if (ops[index] == OP_SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("getX not supported for SETPROPERTY");
+      }
+      return xs[index];
+    }
+
+    public double getY()
+    {
+      if (ops[index] == OP_SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("getY not supported for SETPROPERTY");
+      }
+      return ys[index];
+    }
+
+    public LaserProperty getProperty()
+    {
+      if (ops[index] != OP_SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("Only valid for SETPROPERTY");
+      }
+      return properties.get(propertyIndex);
+    }
+
+    /**
+     * Change the x coordinate of the current command in place.
+     * Does not update the bounding box.
+     */
+    void setX(double x)
+    {
+      if (ops[index] == OP_SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("setX not supported for SETPROPERTY");
+      }
+      xs[index] = x;
+    }
+
+    /**
+     * Change the y coordinate of the current command in place.
+     * Does not update the bounding box.
+     */
+    void setY(double y)
+    {
+      if (ops[index] == OP_SETPROPERTY)
+      {
+        throw new UnsupportedOperationException("setY not supported for SETPROPERTY");
+      }
+      ys[index] = y;
+    }
   }
 }
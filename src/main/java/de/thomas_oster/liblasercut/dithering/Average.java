@@ -20,6 +20,7 @@ package de.thomas_oster.liblasercut.dithering;
 
 import de.thomas_oster.liblasercut.BlackWhiteRaster;
 import de.thomas_oster.liblasercut.GreyscaleRaster;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
@@ -31,35 +32,38 @@ public class Average extends  DitheringAlgorithm
   @Override
   protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
   {
-    long lumTotal = 0;
-    int pixelcount = 0;
     int width = src.getWidth();
     int height = src.getHeight();
 
-    for (int y = 0; y < height; y++)
+    LongAdder lumTotal = new LongAdder();
+    ditherInBands(src, (fromY, toY, band) ->
     {
-      for (int x = 0; x < width; x++)
+      long sum = 0;
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-        lumTotal += src.getGreyScale(x, y);
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
+        {
+          sum += row[x];
+        }
       }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
-      }
-      setProgress((100 * pixelcount++) / (2 * height));
-    }
+      lumTotal.add(sum);
+    }, 0, 50);
 
-    int thresh = (int) (lumTotal / height / width);
-    for (int y = 0; y < height; y++)
+    int thresh = (int) (lumTotal.sum() / height / width);
+    ditherInBands(src, (fromY, toY, band) ->
     {
-      for (int x = 0; x < width; x++)
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-        this.setBlack(src, target, x, y, src.getGreyScale(x, y) < thresh);
-      }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
+        {
+          this.setBlack(src, target, x, y, row[x] < thresh);
+        }
       }
-      setProgress((100 * pixelcount++) / (2 * height));
-    }
+    }, 50, 100);
   }
 
   @Override
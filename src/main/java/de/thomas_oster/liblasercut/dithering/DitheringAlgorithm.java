@@ -21,9 +21,19 @@ package de.thomas_oster.liblasercut.dithering;
 import de.thomas_oster.liblasercut.BlackWhiteRaster;
 import de.thomas_oster.liblasercut.Customizable;
 import de.thomas_oster.liblasercut.GreyscaleRaster;
+import de.thomas_oster.liblasercut.RasterElement;
 import de.thomas_oster.liblasercut.TimeIntensiveOperation;
 import de.thomas_oster.liblasercut.platform.Util;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
 
 /**
  *
@@ -32,6 +42,144 @@ import java.util.Arrays;
 public abstract class DitheringAlgorithm extends TimeIntensiveOperation implements Customizable, Cloneable
 {
 
+  /**
+   * Images with less pixels are dithered on the calling thread, because
+   * splitting them up costs more than it saves
+   */
+  private static final long MIN_PARALLEL_PIXELS = 1 << 16;
+
+  /**
+   * Dithers the rows fromY (inclusive) to toY (exclusive) of an image.
+   * Bands are numbered from top to bottom and processed concurrently, so an
+   * implementation may only write to its own rows.
+   */
+  protected interface RowBand
+  {
+    void dither(int fromY, int toY, int band);
+  }
+
+  /**
+   * Number of threads to dither the given image with. Writing pixels of
+   * different rows concurrently is safe for BlackWhiteRaster and the usual
+   * GreyscaleRaster implementations, because rows never share a byte.
+   * @return 1 if the image should be dithered on the calling thread
+   */
+  protected int getParallelism(GreyscaleRaster src)
+  {
+    if ((long) src.getWidth() * src.getHeight() < MIN_PARALLEL_PIXELS)
+    {
+      return 1;
+    }
+    return Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), src.getHeight()));
+  }
+
+  /**
+   * Splits the image into bands of rows and dithers them on the common
+   * ForkJoinPool, or row by row on the calling thread for small images.
+   * Progress is reported from progressFrom to progressTo.
+   */
+  protected void ditherInBands(GreyscaleRaster src, RowBand task, int progressFrom, int progressTo) throws InterruptedException
+  {
+    int height = src.getHeight();
+    int threads = getParallelism(src);
+    if (threads <= 1)
+    {
+      for (int y = 0; y < height; y++)
+      {
+        task.dither(y, y + 1, y);
+        if (Thread.interrupted())
+        {
+          throw new InterruptedException();
+        }
+        setProgress(progressFrom + (progressTo - progressFrom) * y / height);
+      }
+      return;
+    }
+    // a few bands per thread, so that threads finishing early can help out
+    int bandHeight = (height + 4 * threads - 1) / (4 * threads);
+    int bands = (height + bandHeight - 1) / bandHeight;
+    List<Runnable> tasks = new ArrayList<>();
+    for (int band = 0; band < bands; band++)
+    {
+      int fromY = band * bandHeight;
+      int toY = Math.min(height, fromY + bandHeight);
+      int b = band;
+      tasks.add(() -> task.dither(fromY, toY, b));
+    }
+    int[] finished = new int[1];
+    runInParallel(tasks, () -> progressFrom + (progressTo - progressFrom) * finished[0] / bands, new AtomicBoolean(), () -> finished[0]++);
+  }
+
+  /**
+   * Runs the tasks on the common ForkJoinPool and waits for all of them.
+   * While waiting, progress.getAsInt() is reported every 100ms. If the
+   * calling thread is interrupted or a task fails, cancelled is set so that
+   * running tasks can stop early, and the interruption or failure is passed
+   * on to the caller.
+   * @param onTaskFinished called on the calling thread once per finished
+   * task, may be null
+   */
+  protected void runInParallel(List<Runnable> tasks, IntSupplier progress, AtomicBoolean cancelled, Runnable onTaskFinished) throws InterruptedException
+  {
+    List<Future<?>> futures = new ArrayList<>(tasks.size());
+    for (Runnable task : tasks)
+    {
+      futures.add(ForkJoinPool.commonPool().submit(() ->
+      {
+        try
+        {
+          task.run();
+        }
+        catch (RuntimeException | Error e)
+        {
+          // don't let other tasks wait for rows this one will never finish
+          cancelled.set(true);
+          throw e;
+        }
+      }));
+    }
+    try
+    {
+      for (Future<?> f : futures)
+      {
+        while (true)
+        {
+          try
+          {
+            f.get(100, TimeUnit.MILLISECONDS);
+            break;
+          }
+          catch (TimeoutException e)
+          {
+            setProgress(progress.getAsInt());
+          }
+        }
+        if (onTaskFinished != null)
+        {
+          onTaskFinished.run();
+        }
+        setProgress(progress.getAsInt());
+      }
+    }
+    catch (InterruptedException e)
+    {
+      cancelled.set(true);
+      futures.forEach(f -> f.cancel(false));
+      throw e;
+    }
+    catch (ExecutionException e)
+    {
+      cancelled.set(true);
+      futures.forEach(f -> f.cancel(false));
+      Throwable cause = e.getCause();
+      if (cause instanceof Error)
+      {
+        throw (Error) cause;
+      }
+      throw (RuntimeException) cause;
+    }
+  }
+
   protected void setBlack(GreyscaleRaster src, BlackWhiteRaster target, int x, int y, boolean black)
   {
     if (target != null)
@@ -47,18 +195,30 @@ public abstract class DitheringAlgorithm extends TimeIntensiveOperation implemen
   public BlackWhiteRaster dither(GreyscaleRaster input) throws InterruptedException
   {
     BlackWhiteRaster target = new BlackWhiteRaster(input.getWidth(), input.getHeight());
-    doDithering(input, target);
+    ditherDirect(input, target);
     return target;
   }
 
   public void ditherDirect(GreyscaleRaster input) throws InterruptedException
   {
-    doDithering(input, null);
+    ditherDirect(input, null);
   }
 
   public void ditherDirect(GreyscaleRaster input, BlackWhiteRaster output) throws InterruptedException
   {
-    doDithering(input, output);
+    try
+    {
+      doDithering(input, output);
+    }
+    finally
+    {
+      // once for the whole image instead of once per pixel, also if cancelled halfway
+      Object written = output != null ? output : input;
+      if (written instanceof RasterElement.Provider)
+      {
+        ((RasterElement.Provider) written).getRaster().modified();
+      }
+    }
   }
 
   protected abstract void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException;
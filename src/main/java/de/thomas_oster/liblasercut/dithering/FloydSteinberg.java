@@ -20,6 +20,11 @@ package de.thomas_oster.liblasercut.dithering;
 
 import de.thomas_oster.liblasercut.BlackWhiteRaster;
 import de.thomas_oster.liblasercut.GreyscaleRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  *
@@ -28,9 +33,21 @@ import de.thomas_oster.liblasercut.GreyscaleRaster;
 public class FloydSteinberg extends DitheringAlgorithm
 {
 
+  /**
+   * Number of pixels a row is processed in one go before its progress is
+   * published to the thread working on the next row
+   */
+  private static final int CHUNK = 256;
+
   @Override
   protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
   {
+    int threads = getParallelism(src);
+    if (threads > 1)
+    {
+      ditherWavefront(src, target, threads);
+      return;
+    }
     int pixelcount = 0;
     int width = src.getWidth();
     int height = src.getHeight();
@@ -39,42 +56,39 @@ public class FloydSteinberg extends DitheringAlgorithm
       alter the pixels during dither process and don't want
       to destroy the input image
      */
-    int[][] input = new int[width][2];
-    for (int x = 0; x < width; x++)
-    {
-      input[x][1] = src.getGreyScale(x, 0);
-    }
+    int[] current = new int[width];
+    int[] below = new int[width];
+    src.getGreyScaleRow(0, below);
     for (int y = 0; y < height; y++)
     {
-      // copy lower line to upper line
-      // and read in next line from picture
-      for (int x = 0; x < input.length; x++)
+      // lower line becomes the upper line
+      // and the next line is read in from the picture
+      int[] swap = current;
+      current = below;
+      below = swap;
+      if (y + 1 < height)
       {
-        input[x][0] = input[x][1];
-        if (y + 1 < height)
-        {
-          input[x][1] = (src.getGreyScale(x, y + 1));
-        }
+        src.getGreyScaleRow(y + 1, below);
       }
 
-      for (int x = 0; x < input.length; x++)
+      for (int x = 0; x < width; x++)
       {
-        this.setBlack(src, target, x, y, input[x][0] <= 127);
-        int error = input[x][0] - ((input[x][0] <= 127) ? 0 : 255);
-        if (x + 1 < input.length)
+        this.setBlack(src, target, x, y, current[x] <= 127);
+        int error = current[x] - ((current[x] <= 127) ? 0 : 255);
+        if (x + 1 < width)
         {
-          input[x + 1][0] = (input[x + 1][0] + 7 * error / 16);
+          current[x + 1] = (current[x + 1] + 7 * error / 16);
           if (y + 1 < height)
           {
-            input[x + 1][1] = (input[x + 1][1] + 1 * error / 16);
+            below[x + 1] = (below[x + 1] + 1 * error / 16);
           }
         }
         if (y + 1 < height)
         {
-          input[x][1] = (input[x][1] + 5 * error / 16);
+          below[x] = (below[x] + 5 * error / 16);
           if (x > 0)
           {
-            input[x - 1][1] = (input[x - 1][1] + 3 * error / 16);
+            below[x - 1] = (below[x - 1] + 3 * error / 16);
           }
         }
       }
@@ -85,6 +99,111 @@ public class FloydSteinberg extends DitheringAlgorithm
     }
   }
 
+  /**
+   * Dithers several rows at once. Pixel (x, y) only depends on its left
+   * neighbour and on the pixels x-1 ... x+1 of row y-1, so row y can follow
+   * row y-1 with a lag of two pixels. Every thread takes the next unprocessed
+   * row and waits chunk by chunk for the thread working on the row above.
+   * The errors are distributed with exactly the same integer arithmetic as
+   * in the serial loop; only the order in which they are summed up differs,
+   * so the result is identical.
+   */
+  private void ditherWavefront(GreyscaleRaster src, BlackWhiteRaster target, int threads) throws InterruptedException
+  {
+    int width = src.getWidth();
+    int height = src.getHeight();
+    // pixel values including the error diffused from the row above,
+    // row y is kept in slot y % slots
+    int slots = threads + 2;
+    int[][] rows = new int[slots][width];
+    // number of finished pixels per row
+    AtomicIntegerArray done = new AtomicIntegerArray(height);
+    AtomicInteger nextRow = new AtomicInteger();
+    AtomicInteger finishedRows = new AtomicInteger();
+    AtomicBoolean cancelled = new AtomicBoolean();
+    src.getGreyScaleRow(0, rows[0]);
+    Runnable worker = () ->
+    {
+      for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement())
+      {
+        int[] current = rows[y % slots];
+        int[] below = null;
+        if (y + 1 < height)
+        {
+          // the slot of row y+1 was used by row y+1-slots before
+          if (y + 1 >= slots && !await(done, y + 1 - slots, width, cancelled))
+          {
+            return;
+          }
+          below = rows[(y + 1) % slots];
+          src.getGreyScaleRow(y + 1, below);
+        }
+        // error diffused to the right neighbour
+        int carry = 0;
+        for (int chunkStart = 0; chunkStart < width; chunkStart += CHUNK)
+        {
+          int chunkEnd = Math.min(chunkStart + CHUNK, width);
+          if (y > 0 && !await(done, y - 1, Math.min(chunkEnd + 1, width), cancelled))
+          {
+            return;
+          }
+          for (int x = chunkStart; x < chunkEnd; x++)
+          {
+            int value = current[x] + carry;
+            this.setBlack(src, target, x, y, value <= 127);
+            int error = value - ((value <= 127) ? 0 : 255);
+            carry = 7 * error / 16;
+            if (below != null)
+            {
+              if (x + 1 < width)
+              {
+                below[x + 1] += 1 * error / 16;
+              }
+              below[x] += 5 * error / 16;
+              if (x > 0)
+              {
+                below[x - 1] += 3 * error / 16;
+              }
+            }
+          }
+          done.set(y, chunkEnd);
+        }
+        finishedRows.incrementAndGet();
+      }
+    };
+    List<Runnable> tasks = new ArrayList<>();
+    for (int i = 0; i < threads; i++)
+    {
+      tasks.add(worker);
+    }
+    runInParallel(tasks, () -> 100 * finishedRows.get() / height, cancelled, null);
+  }
+
+  /**
+   * Waits until at least count pixels of the given row are finished
+   * @return false if dithering was cancelled in the meantime
+   */
+  private static boolean await(AtomicIntegerArray done, int row, int count, AtomicBoolean cancelled)
+  {
+    for (int spins = 0; done.get(row) < count; spins++)
+    {
+      if (cancelled.get())
+      {
+        return false;
+      }
+      if (spins < 100)
+      {
+        Thread.onSpinWait();
+      }
+      else
+      {
+        // the row above may be waiting for a CPU we are blocking
+        Thread.yield();
+      }
+    }
+    return true;
+  }
+
   @Override
   public DitheringAlgorithm clone() {
     return new FloydSteinberg();
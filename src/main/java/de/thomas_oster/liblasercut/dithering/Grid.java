@@ -20,6 +20,7 @@ package de.thomas_oster.liblasercut.dithering;
 
 import de.thomas_oster.liblasercut.BlackWhiteRaster;
 import de.thomas_oster.liblasercut.GreyscaleRaster;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
@@ -73,38 +74,43 @@ public class Grid extends DitheringAlgorithm
   @Override
   protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
   {
-    long lumTotal = 0;
-    int pixelcount = 0;
     int width = src.getWidth();
     int height = src.getHeight();
+    int blocksize = this.blocksize;
+    int period = blocksize + this.blockdistance;
 
-    for (int y = 0; y < height; y++)
+    LongAdder lumTotal = new LongAdder();
+    ditherInBands(src, (fromY, toY, band) ->
     {
-      for (int x = 0; x < width; x++)
+      long sum = 0;
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-        lumTotal += src.getGreyScale(x, y);
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
+        {
+          sum += row[x];
+        }
       }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
-      }
-      setProgress((100 * pixelcount++) / (2 * height));
-    }
+      lumTotal.add(sum);
+    }, 0, 50);
 
-    int thresh = (int) (lumTotal / height / width);
-    for (int y = 0; y < height; y++)
+    int thresh = (int) (lumTotal.sum() / height / width);
+    ditherInBands(src, (fromY, toY, band) ->
     {
-      for (int x = 0; x < width; x++)
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-        boolean isBlack = (y % (blocksize + blockdistance) <= blocksize
-          && x % (blocksize + blockdistance) <= blocksize
-          && src.getGreyScale(x, y) < thresh);
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
+        {
+          boolean isBlack = (y % period <= blocksize
+            && x % period <= blocksize
+            && row[x] < thresh);
           this.setBlack(src, target, x, y, isBlack);
+        }
       }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
-      }
-      setProgress((100 * pixelcount++) / (2 * height));
-    }
+    }, 50, 100);
   }
 
   @Override
@@ -49,61 +49,23 @@ public class Ordered extends DitheringAlgorithm
   protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
   {
     int width = src.getWidth();
-    int height = src.getHeight();
     int[][] filter = getThresholdMatrix();
     int nPatWid = filter.length;
 
-
-    int x;
-    int y;
-    int pixelcount = 0;
-
-    for (y = 0; y < (height - nPatWid); y = y + nPatWid)
+    // the threshold only depends on the position, so the rows can be
+    // dithered independently of each other
+    ditherInBands(src, (fromY, toY, band) ->
     {
-
-      for (x = 0; x < (width - nPatWid); x = x + nPatWid)
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-
-        for (int xdelta = 0; xdelta < nPatWid; xdelta++)
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
         {
-          for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
-        }
-      }
-      for (int xdelta = 0; xdelta < nPatWid; xdelta++)
-      {
-        for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-        {
-
-          if (((x + xdelta) < width) && ((y + ydelta) < height))
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
-        }
-      }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
-      }
-      setProgress((100 * pixelcount++) / (height));
-    }
-
-    // y is at max; loop through x
-    for (x = 0; x < (width); x = x + nPatWid)
-    {
-      for (int xdelta = 0; xdelta < nPatWid; xdelta++)
-      {
-        for (int ydelta = 0; ydelta < nPatWid; ydelta++)
-        {
-
-          if (((x + xdelta) < width) && ((y + ydelta) < height))
-          {
-            this.setBlack(src, target, x + xdelta, y + ydelta, src.getGreyScale(x + xdelta, y + ydelta) < filter[xdelta][ydelta]);
-          }
+          this.setBlack(src, target, x, y, row[x] < filter[x % nPatWid][y % nPatWid]);
         }
       }
-    }
+    }, 0, 100);
   }
 
   @Override
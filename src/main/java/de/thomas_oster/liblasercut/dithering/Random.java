@@ -32,21 +32,23 @@ public class Random extends DitheringAlgorithm
   protected void doDithering(GreyscaleRaster src, BlackWhiteRaster target) throws InterruptedException
   {
     int width = src.getWidth();
-    int height = src.getHeight();
-    int pixelcount = 0;
-    java.util.Random r = new java.util.Random();
+    long seed = new java.util.Random().nextLong();
 
-    for (int y = 0; y < height; y++)
+    ditherInBands(src, (fromY, toY, band) ->
     {
-      for (int x = 0; x < width; x++)
+      // java.util.Random is thread safe, but sharing one between threads
+      // serializes them, so every band gets its own
+      java.util.Random r = new java.util.Random(seed ^ (band * 0x9E3779B97F4A7C15L));
+      int[] row = new int[width];
+      for (int y = fromY; y < toY; y++)
       {
-        this.setBlack(src, target, x, y, src.getGreyScale(x, y) < r.nextInt(256));
+        src.getGreyScaleRow(y, row);
+        for (int x = 0; x < width; x++)
+        {
+          this.setBlack(src, target, x, y, row[x] < r.nextInt(256));
+        }
       }
-      if (Thread.interrupted()) {
-        throw new InterruptedException();
-      }
-      setProgress((100 * pixelcount++) / (height));
-    }
+    }, 0, 100);
   }
 
   @Override
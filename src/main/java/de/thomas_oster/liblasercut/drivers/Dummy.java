@@ -236,7 +236,8 @@ public class Dummy extends LaserCutter {
           if (p instanceof VectorPart)
           {
             System.out.println("VectorPart");
-            for (VectorCommand cmd : ((VectorPart) p).getCommandList())
+            VectorPart.Cursor cmd = ((VectorPart) p).cursor();
+            while (cmd.next())
             {
               if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
               {
@@ -32,8 +32,14 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -46,6 +52,15 @@ abstract class EpilogCutter extends LaserCutter
 
   public static final boolean SIMULATE_COMMUNICATION = false;
   public static final int NETWORK_TIMEOUT = 10000; /// timeout in ms
+  /**
+   * timeout in ms for the acknowledgement of the whole data file, which
+   * takes longer on slow links or while the cutter is busy
+   */
+  public static final int DATA_FILE_TIMEOUT = 100000;
+  /**
+   * buffer size for writing the PJL data to the spool file
+   */
+  private static final int SPOOL_BUFFER_SIZE = 1 << 16;
   /* Resolutions in DPI */
 
   private static final int MINFOCUS = -500;//Minimal focus value (not mm)
@@ -58,6 +73,11 @@ abstract class EpilogCutter extends LaserCutter
   private boolean hideSoftwareFocus = false;
   private transient InputStream in;
   private transient OutputStream out;
+  /**
+   * channel of the connection, used to send the spooled job without copying
+   * it through the heap. null when simulating.
+   */
+  private transient SocketChannel channel;
 
   private int mm2focus(float mm)
   {
@@ -152,17 +172,16 @@ abstract class EpilogCutter extends LaserCutter
       }
       else
       {
-        Thread.sleep(100 * timeout);
+        // timeout is in seconds and we poll ten times per second
+        Thread.sleep(100);
       }
     }
     throw new Exception("Timeout");
 
   }
 
-  private byte[] generatePjlHeader(LaserJob job, double resolution) throws UnsupportedEncodingException
+  private void generatePjlHeader(PrintStream out, LaserJob job, double resolution)
   {
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     /* Print the printer job language header. */
     out.printf("\033%%-12345X@PJL JOB NAME=%s\r\n", job.getTitle());
     out.print("\033E@PJL ENTER LANGUAGE=PCL\r\n");
@@ -194,14 +213,10 @@ abstract class EpilogCutter extends LaserCutter
     out.print("\033*p0X");
     /* Y position = 0 */
     out.print("\033*p0Y");
-    return result.toByteArray();
   }
 
-  private byte[] generatePjlFooter() throws UnsupportedEncodingException
+  private void generatePjlFooter(PrintStream out)
   {
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
-
     /* Footer for printer job language. */
     /* Reset */
     out.print("\033E");
@@ -209,10 +224,9 @@ abstract class EpilogCutter extends LaserCutter
     out.print("\033%-12345X");
     /* End job. */
     out.print("@PJL EOJ \r\n");
-    return result.toByteArray();
   }
 
-  private void sendPjlJob(LaserJob job, byte[] pjlData) throws UnknownHostException, UnsupportedEncodingException, IOException, Exception
+  private void sendPjlJob(LaserJob job, FileChannel pjlData) throws UnknownHostException, UnsupportedEncodingException, IOException, Exception
   {
     String localhost;
     try
@@ -240,11 +254,17 @@ abstract class EpilogCutter extends LaserCutter
     out.append((char) 0);
     waitForResponse(0);
     /* Send the Job length and name to the queue */
-    out.printf("\003%d dfA%s%s\n", pjlData.length, job.getName(), localhost);
+    long length = pjlData.size();
+    out.printf("\003%d dfA%s%s\n", length, job.getName(), localhost);
     waitForResponse(0);
     /* Send the real PJL Job */
-    out.write(pjlData);
-    waitForResponse(0);
+    out.flush();
+    WritableByteChannel target = channel != null ? channel : Channels.newChannel(this.out);
+    for (long position = 0; position < length; )
+    {
+      position += pjlData.transferTo(position, length - position, target);
+    }
+    waitForResponse(0, DATA_FILE_TIMEOUT/1000);
   }
 
   private void connect() throws IOException, SocketTimeoutException
@@ -255,7 +275,9 @@ abstract class EpilogCutter extends LaserCutter
     }
     else
     {
-      Socket connection = new Socket();
+      // opened as a channel, so that the job can be sent with transferTo()
+      channel = SocketChannel.open();
+      Socket connection = channel.socket();
       connection.connect(new InetSocketAddress(hostname, port), NETWORK_TIMEOUT);
       in = new BufferedInputStream(connection.getInputStream());
       out = new BufferedOutputStream(connection.getOutputStream());
@@ -268,6 +290,8 @@ abstract class EpilogCutter extends LaserCutter
     {
       in.close();
       out.close();
+      channel.close();
+      channel = null;
     }
   }
 
@@ -288,7 +312,8 @@ abstract class EpilogCutter extends LaserCutter
     {
       if (p instanceof VectorPart)
       {
-        for (VectorCommand cmd : ((VectorPart) p).getCommandList())
+        VectorPart.Cursor cmd = ((VectorPart) p).cursor();
+        while (cmd.next())
         {
           if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
           {
@@ -358,19 +383,34 @@ abstract class EpilogCutter extends LaserCutter
   {
     String nb = count > 1 ? "("+number+"/"+count+")" : "";
     pl.taskChanged(this, "generating"+nb);
-    //Generate all the data
-    byte[] pjlData = generatePjlData(job);
-    pl.progressChanged(this, (int) ((double) 40*number/count));
-    //connect to lasercutter
-    pl.taskChanged(this, "connecting"+nb);
-    connect();
-    pl.progressChanged(this, (int) ((double) 60*number/count));
-    //send job
-    pl.taskChanged(this, "sending"+nb);
-    sendPjlJob(job, pjlData);
-    pl.progressChanged(this, (int) ((double) 90*number/count));
-    //disconnect
-    disconnect();
+    //Generate all the data into a spool file. LPD needs the length up front,
+    //and large engravings don't fit on the heap.
+    Path spool = Files.createTempFile("liblasercut-epilog", ".pjl");
+    try
+    {
+      try (OutputStream spoolOut = new BufferedOutputStream(Files.newOutputStream(spool), SPOOL_BUFFER_SIZE))
+      {
+        generatePjlData(job, spoolOut);
+      }
+      pl.progressChanged(this, (int) ((double) 40*number/count));
+      //connect to lasercutter
+      pl.taskChanged(this, "connecting"+nb);
+      connect();
+      pl.progressChanged(this, (int) ((double) 60*number/count));
+      //send job
+      pl.taskChanged(this, "sending"+nb);
+      try (FileChannel pjlData = FileChannel.open(spool, StandardOpenOption.READ))
+      {
+        sendPjlJob(job, pjlData);
+      }
+      pl.progressChanged(this, (int) ((double) 90*number/count));
+      //disconnect
+      disconnect();
+    }
+    finally
+    {
+      Files.deleteIfExists(spool);
+    }
   }
 
   @Override
@@ -474,10 +514,111 @@ abstract class EpilogCutter extends LaserCutter
     }
   }
 
-  private byte[] generateRaster3dPCL(Raster3dPart rp) throws UnsupportedEncodingException, IOException
+  /**
+   * Returns the maximum number of bytes encode(byte[], int, int, byte[])
+   * may produce for the given number of input bytes.
+   * Runs never grow, every literal costs one header byte. A literal ends
+   * before a run of at least 2 bytes, so the worst case is a 1 byte literal
+   * followed by a 2 byte run: 3 bytes become 4, plus a literal at the end.
+   */
+  public static int maxEncodedLength(int length)
+  {
+    return length + (length + 2) / 3 + 1;
+  }
+
+  /**
+   * Encodes line[from] ... line[to-1] in TIFF Packbyte encoding.
+   * The output is the same as for encode(List, List).
+   * @param result must hold at least maxEncodedLength(to - from) bytes
+   * @return the number of bytes written into result
+   */
+  public static int encode(byte[] line, int from, int to, byte[] result)
+  {
+    int idx = from;
+    int len = 0;
+    while (idx < to)
+    {
+      int p = idx + 1;
+      byte b = line[idx];
+      while (p < to && p < idx + 128 && line[p] == b)
+      {
+        p++;
+      }
+      if (p - idx >= 2)
+      {
+        // run length
+        result[len++] = (byte) (1 - (p - idx));
+        result[len++] = b;
+        idx = p;
+      }
+      else
+      {
+        p = idx;
+        while (p < to && p < idx + 127
+          && (p + 1 == to || line[p] != line[p + 1]))
+        {
+          p++;
+        }
+        result[len++] = (byte) (p - idx - 1);
+        System.arraycopy(line, idx, result, len, p - idx);
+        len += p - idx;
+        idx = p;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Writes line[from] ... line[to-1] as one TIFF encoded raster row,
+   * reversing it in place first if it is engraved right to left.
+   * @return the encode buffer, reallocated if it was too small
+   */
+  private byte[] writeEncodedLine(PrintStream out, byte[] line, int from, int to, boolean leftToRight, byte[] encoded)
+  {
+    if (leftToRight)
+    {
+      out.printf("\033*b%dA", to - from);
+    }
+    else
+    {
+      out.printf("\033*b%dA", -(to - from));
+      for (int i = from, j = to - 1; i < j; i++, j--)
+      {
+        byte t = line[i];
+        line[i] = line[j];
+        line[j] = t;
+      }
+    }
+    // the packed data is always padded with 1 to 8 bytes of 0x80
+    int max = maxEncodedLength(to - from) + 8;
+    if (encoded == null || encoded.length < max)
+    {
+      encoded = new byte[max];
+    }
+    int len = encode(line, from, to, encoded);
+    int pcks = len / 8;
+    if (len % 8 > 0)
+    {
+      pcks++;
+    }
+    /*
+      Number of Pixels in a row??
+      or b2m%dW for TIFF encoding?
+      Or number of Bytes in a row? who knows
+      in ctrl-cut its number of packed bytes
+     */
+    out.printf("\033*b%dW", pcks * 8);
+    int padding = 8 - (len % 8);
+    for (int k = 0; k < padding; k++)
+    {
+      encoded[len++] = (byte) 128;
+    }
+    out.write(encoded, 0, len);
+    return encoded;
+  }
+
+  private void generateRaster3dPCL(PrintStream out, Raster3dPart rp)
   {
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     if (rp != null)
     {
       EpilogEngraveProperty prop = (EpilogEngraveProperty) rp.getLaserProperty();
@@ -511,74 +652,46 @@ abstract class EpilogCutter extends LaserCutter
       Point sp = rp.getRasterStart();
       boolean leftToRight = true;
       ByteArrayList line = new ByteArrayList(rp.getRasterWidth());
-      ByteArrayList encoded = new ByteArrayList(rp.getRasterWidth());
+      byte[] bytes = null;
+      byte[] encoded = null;
       for (int y = bu ? rp.getRasterHeight()-1 : 0; bu ? y >= 0 : y < rp.getRasterHeight(); y += bu ? -1 : 1)
       {
         rp.getInvertedRasterLine(y, line);
-        for (int n = 0; n < line.size(); n++)
+        bytes = line.toByteArray(bytes);
+        int to = line.size();
+        for (int n = 0; n < to; n++)
         {//Apperantly the other power settings are ignored, so we have to scale
-          int x = line.get(n);
-          x = x >= 0 ? x : 256 + x;
+          int x = bytes[n] & 0xFF;
           int scalex = x * (int) prop.getPower() / 100;
-          byte bx = (byte) (scalex < 128 ? scalex : scalex - 256);
-          line.set(n, bx);
+          bytes[n] = (byte) scalex;
         }
-        //Remove leading zeroes, but keep track of the offset
+        //Skip leading zeroes, but keep track of the offset
         int jump = 0;
-
-        while (line.size() > 0 && line.get(0) == 0)
+        while (jump < to && bytes[jump] == 0)
         {
-          line.remove(0);
           jump++;
         }
-        //Remove trailing zeroes
-        while (line.size() > 0 && line.get(line.size()-1) == 0)
+        //Skip trailing zeroes
+        while (to > jump && bytes[to-1] == 0)
         {
-          line.remove(line.size()-1);
+          to--;
         }
-        if (line.size() > 0)
+        if (to > jump)
         {
           out.printf("\033*p%dX", (int) sp.x + jump);
           out.printf("\033*p%dY", (int) sp.y + y);
-          if (leftToRight)
-          {
-            out.printf("\033*b%dA", line.size());
-          }
-          else
-          {
-            out.printf("\033*b%dA", -line.size());
-            Collections.reverse(line);
-          }
-          encode(line, encoded);
-          int len = encoded.size();
-          int pcks = len / 8;
-          if (len % 8 > 0)
-          {
-            pcks++;
-          }
-          out.printf("\033*b%dW", pcks * 8);
-          for (byte s : encoded)
-          {
-            out.write(s);
-          }
-          for (int k = 0; k < 8 - (len % 8); k++)
-          {
-            out.write((byte) 128);
-          }
+          encoded = writeEncodedLine(out, bytes, jump, to, leftToRight, encoded);
           leftToRight = !leftToRight;
         }
       }
       out.print("\033*rC");       // end raster
     }
-    return result.toByteArray();
   }
 
-  private byte[] generateDummyRaster(JobPart jp) throws UnsupportedEncodingException
+  private void generateDummyRaster(PrintStream out, JobPart jp)
   {
     EpilogEngraveProperty prop = new EpilogEngraveProperty();
     boolean bu = prop.isEngraveBottomUp();
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     /* PCL/RasterGraphics resolution. */
     out.printf("\033*t%dR", (int) jp.getDPI());
     /* Raster Orientation: Printed in current direction */
@@ -606,15 +719,12 @@ abstract class EpilogCutter extends LaserCutter
     /* start at current position */
     out.print("\033*r1A");
     out.print("\033*rC");       // end raster
-    return result.toByteArray();
   }
 
-  private byte[] generateRasterPCL(RasterPart rp) throws UnsupportedEncodingException, IOException
+  private void generateRasterPCL(PrintStream out, RasterPart rp)
   {
     EpilogEngraveProperty prop = (EpilogEngraveProperty) rp.getLaserProperty();
     boolean bu = prop.isEngraveBottomUp();
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     /* PCL/RasterGraphics resolution. */
     out.printf("\033*t%dR", (int) rp.getDPI());
     /* Raster Orientation: Printed in current direction */
@@ -647,81 +757,47 @@ abstract class EpilogCutter extends LaserCutter
       Point sp = rp.getRasterStart();
       boolean leftToRight = true;
       ByteArrayList line = new ByteArrayList(rp.getRasterWidth());
-      ByteArrayList encoded = new ByteArrayList(rp.getRasterWidth());
+      byte[] bytes = null;
+      byte[] encoded = null;
       for (int y = bu ? rp.getRasterHeight()-1 : 0; bu ? y >= 0 : y < rp.getRasterHeight(); y += bu ? -1 : 1)
       {
         rp.getRasterLine(y, line);
-        //Remove leading zeroes, but keep track of the offset
+        bytes = line.toByteArray(bytes);
+        int to = line.size();
+        //Skip leading zeroes, but keep track of the offset
         int jump = 0;
-        while (line.size() > 0 && line.get(0) == 0)
+        while (jump < to && bytes[jump] == 0)
         {
-          line.remove(0);
           jump++;
         }
-        //Remove trailing zeroes
-        while (line.size() > 0 && line.get(line.size()-1) == 0)
+        //Skip trailing zeroes
+        while (to > jump && bytes[to-1] == 0)
         {
-          line.remove(line.size()-1);
+          to--;
         }
-        if (line.size() > 0)
+        if (to > jump)
         {
           out.printf("\033*p%dX", (int) sp.x + jump * 8); // FIXME probably not correct if we use a nonzero starting point (origin)
           out.printf("\033*p%dY", (int) sp.y + y); // FIXME probably not correct if we use a nonzero starting point (origin)
-          if (leftToRight)
-          {
-            out.printf("\033*b%dA", line.size());
-          }
-          else
-          {
-            out.printf("\033*b%dA", -line.size());
-            Collections.reverse(line);
-          }
-          encode(line, encoded);
-          int len = encoded.size();
-          int pcks = len / 8;
-          if (len % 8 > 0)
-          {
-            pcks++;
-          }
-          /*
-            Number of Pixels in a row??
-            or b2m%dW for TIFF encoding?
-            Or number of Bytes in a row? who knows
-            in ctrl-cut its number of packed bytes
-           */
-          out.printf("\033*b%dW", pcks * 8);
-          for (byte s : encoded)
-          {
-            out.write(s);
-          }
-          for (int k = 0; k < 8 - (len % 8); k++)
-          {
-            out.write((byte) 128);
-          }
+          encoded = writeEncodedLine(out, bytes, jump, to, leftToRight, encoded);
           leftToRight = !leftToRight;
         }
       }
     }
     out.print("\033*rC");       // end raster
-    return result.toByteArray();
   }
 
-  private byte[] generateDummyVector(double dpi) throws UnsupportedEncodingException
+  private void generateDummyVector(PrintStream out, double dpi)
   {
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     out.print("\033%1B");// Start HPGL
     out.print("IN;");
     //Reset Focus to 0
     out.printf("WF%d;", 0);
-    return result.toByteArray();
   }
 
-  private byte[] generateVectorPCL(VectorPart vp) throws UnsupportedEncodingException
+  private void generateVectorPCL(PrintStream out, VectorPart vp)
   {
     //TODO: Test if the resolution settings have an effect
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
     /* Resolution of the print. Number of Units/Inch*/
     out.print("\033%1B");// Start HPGL
     out.print("IN;");
@@ -733,7 +809,8 @@ abstract class EpilogCutter extends LaserCutter
       Integer currentFrequency = null;
       Float currentFocus = null;
       VectorCommand.CmdType lastType = null;
-      for (VectorCommand cmd : vp.getCommandList())
+      VectorPart.Cursor cmd = vp.cursor();
+      while (cmd.next())
       {
         if (lastType == VectorCommand.CmdType.LINETO && cmd.getType() != VectorCommand.CmdType.LINETO)
         {
@@ -789,47 +866,53 @@ abstract class EpilogCutter extends LaserCutter
     }
     //Reset Focus to 0
     out.printf("WF%d;", 0);
-    return result.toByteArray();
   }
 
-  private byte[] generatePjlData(LaserJob job) throws UnsupportedEncodingException, IOException
+  /**
+   * Writes the complete PJL job to the given stream. Every part is encoded
+   * straight into the stream, so the job never has to be held in memory.
+   */
+  private void generatePjlData(LaserJob job, OutputStream output) throws IOException
   {
     /* Generate complete PJL Job */
-    ByteArrayOutputStream pjlJob = new ByteArrayOutputStream();
-    PrintStream wrt = new PrintStream(pjlJob, true, StandardCharsets.US_ASCII);
+    PrintStream wrt = new PrintStream(output, false, StandardCharsets.US_ASCII);
 
-    wrt.write(generatePjlHeader(job, job.getParts().get(0).getDPI()));
+    generatePjlHeader(wrt, job, job.getParts().get(0).getDPI());
     if (! (job.getParts().get(0) instanceof RasterPart))
     {//we need an empty raster part as begin of all jobs
-      wrt.write(generateDummyRaster(job.getParts().get(0)));
+      generateDummyRaster(wrt, job.getParts().get(0));
     }
     for (JobPart p : job.getParts())
     {
       if (p instanceof VectorPart)
       {
-        wrt.write(generateVectorPCL((VectorPart) p));
+        generateVectorPCL(wrt, (VectorPart) p);
       }
       else if (p instanceof RasterPart)
       {
-        wrt.write(generateRasterPCL((RasterPart) p));
+        generateRasterPCL(wrt, (RasterPart) p);
       }
       else if (p instanceof Raster3dPart)
       {
-        wrt.write(generateRaster3dPCL((Raster3dPart) p));
+        generateRaster3dPCL(wrt, (Raster3dPart) p);
       }
     }
     if (! (job.getParts().get(job.getParts().size()-1) instanceof VectorPart))
     {
-      wrt.write(generateDummyVector(job.getParts().get(job.getParts().size()-1).getDPI()));
+      generateDummyVector(wrt, job.getParts().get(job.getParts().size()-1).getDPI());
     }
-    wrt.write(generatePjlFooter());
+    generatePjlFooter(wrt);
     /* Pad out the remainder of the file with 0 characters. */
     for (int i = 0; i < 4096; i++)
     {
       wrt.append((char) 0);
     }
     wrt.flush();
-    return pjlJob.toByteArray();
+    // PrintStream swallows IOExceptions
+    if (wrt.checkError())
+    {
+      throw new IOException("Error writing PJL data");
+    }
   }
 
   public int getPort()
@@ -969,7 +1052,6 @@ abstract class EpilogCutter extends LaserCutter
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws UnsupportedOperationException, IllegalJobException, Exception {
     // TODO: there is currently no way to report warnings with saveJob().
     checkJobAndApplyStartPoint(job, new LinkedList<>());
-    byte[] pjlData = generatePjlData(job);
-    fileOutputStream.write(pjlData);
+    generatePjlData(job, new BufferedOutputStream(fileOutputStream, SPOOL_BUFFER_SIZE));
   }
 }
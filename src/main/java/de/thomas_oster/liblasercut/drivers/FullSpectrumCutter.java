@@ -25,12 +25,10 @@ import de.thomas_oster.liblasercut.LaserCutter;
 import de.thomas_oster.liblasercut.LaserJob;
 import de.thomas_oster.liblasercut.LaserProperty;
 import de.thomas_oster.liblasercut.ProgressListener;
-import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -40,8 +38,11 @@ import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.zip.Deflater;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
@@ -86,6 +87,8 @@ public class FullSpectrumCutter extends LaserCutter
   private static final int width = 0;
   private static final int height = 0;
   
+  private static final Logger logger = Logger.getLogger(FullSpectrumCutter.class.getName());
+  
   
   public FullSpectrumCutter()
   {
@@ -93,20 +96,23 @@ public class FullSpectrumCutter extends LaserCutter
   }
   
   /**
-   * convert LaserJob to "Full Spectrum" network packet
+   * convert LaserJob to the compressed load of a "Full Spectrum" network packet,
+   * the packet is the header followed by the load
    */
-  private ByteArrayOutputStream jobToFullPacket(LaserJob job, List<String> warnings) throws IllegalJobException, IOException
+  private FullSpectrumPacketStream jobToFullPacket(LaserJob job, List<String> warnings) throws IllegalJobException, IOException
   {
     if (warnings == null)
     {
       warnings = new ArrayList<>();
     }
-    ByteArrayOutputStream bosRawCmds = new ByteArrayOutputStream();
+    FullSpectrumPacketStream bosRawCmds = new FullSpectrumPacketStream();
     float power = 0;
     float speed = 100;
     float moving_speed = getMaxVectorMoveSpeed();
     float xsim = 0;
     float ysim = 0;
+    // power and speed of every distinct property, NaN if not set by it
+    Map<LaserProperty, float[]> settings = new IdentityHashMap<>();
     
     checkJob(job);
     job.applyStartPoint();
@@ -123,7 +129,8 @@ public class FullSpectrumCutter extends LaserCutter
         //get the real interface
         VectorPart vp = (VectorPart) p;
         //iterate over command list
-        for (VectorCommand cmd : vp.getCommandList())
+        VectorPart.Cursor cmd = vp.cursor();
+        while (cmd.next())
         {
           //There are three types of commands: MOVETO, LINETO and SETPROPERTY
           switch (cmd.getType())
@@ -136,7 +143,7 @@ public class FullSpectrumCutter extends LaserCutter
               // x/y in inches
               double x = Util.px2mm(cmd.getX(), p.getDPI())*0.0393701;
               double y = Util.px2mm(cmd.getY(), p.getDPI())*0.0393701;
-              bosRawCmds.write(line(xsim,x,ysim,y,power,speed));
+              line(bosRawCmds,xsim,x,ysim,y,power,speed);
               
               // estimate the new real position
               xsim += Math.round((x-xsim)*1000)/1000f;
@@ -151,7 +158,7 @@ public class FullSpectrumCutter extends LaserCutter
               // x/y in inches
               double x = Util.px2mm(cmd.getX(), p.getDPI())*0.0393701;
               double y = Util.px2mm(cmd.getY(), p.getDPI())*0.0393701;
-              bosRawCmds.write(line(xsim,x,ysim,y,0,moving_speed));
+              line(bosRawCmds,xsim,x,ysim,y,0,moving_speed);
               
               // estimate the new real position
               xsim += Math.round((x-xsim)*1000)/1000f;
@@ -163,20 +170,11 @@ public class FullSpectrumCutter extends LaserCutter
               /*
                 Change speed or power.
                */
-              LaserProperty prop = cmd.getProperty();
-              System.out.println("Changing Device Parameters:");
-              for (String key : prop.getPropertyKeys())
-              {
-                String value = prop.getProperty(key).toString();
-                System.out.println("  "+key+"="+value);
-                if(key.equals("power"))
-                  power=Float.parseFloat(value);
-                if(key.equals("speed"))
-                {
-                  speed=Float.parseFloat(value);
-                  speed=getMaxVectorCutSpeed()*speed/100f; // to steps per sec
-                }
-              }
+              float[] setting = settings.computeIfAbsent(cmd.getProperty(), this::resolveSetting);
+              if (!Float.isNaN(setting[0]))
+                power=setting[0];
+              if (!Float.isNaN(setting[1]))
+                speed=setting[1];
               break;
             }
           }
@@ -184,10 +182,28 @@ public class FullSpectrumCutter extends LaserCutter
       }
     }
         
-    // feeds the commands into packet generator
-    ByteArrayOutputStream bosFullPacket = new ByteArrayOutputStream();
-    bosFullPacket.write(generatePacket(bosRawCmds.toByteArray()));
-    return bosFullPacket;
+    bosRawCmds.finish();
+    return bosRawCmds;
+  }
+  
+  /**
+   * Reads power (percent) and speed (steps per sec) of a property,
+   * NaN for the ones it does not set
+   */
+  private float[] resolveSetting(LaserProperty prop)
+  {
+    float[] setting = {Float.NaN, Float.NaN};
+    logger.fine("Changing Device Parameters:");
+    for (String key : prop.getPropertyKeys())
+    {
+      String value = prop.getProperty(key).toString();
+      logger.log(Level.FINE, "  {0}={1}", new Object[]{key, value});
+      if(key.equals("power"))
+        setting[0]=Float.parseFloat(value);
+      if(key.equals("speed"))
+        setting[1]=getMaxVectorCutSpeed()*Float.parseFloat(value)/100f; // to steps per sec
+    }
+    return setting;
   }
   
   /**
@@ -202,7 +218,7 @@ public class FullSpectrumCutter extends LaserCutter
   {
     pl.progressChanged(this, 0);
     pl.taskChanged(this, "processing job");
-    ByteArrayOutputStream bosFullPacket = jobToFullPacket(job, warnings);
+    FullSpectrumPacketStream load = jobToFullPacket(job, warnings);
     
     BufferedOutputStream italkout;
     BufferedOutputStream jobout;
@@ -210,7 +226,7 @@ public class FullSpectrumCutter extends LaserCutter
     
     // connect to italk
     pl.taskChanged(this, "connecting");
-    System.out.println("begin connection");
+    logger.fine("begin connection");
     
     Socket connection=new Socket();
     connection.connect(new InetSocketAddress(hostname, 12345), 3000);
@@ -225,7 +241,7 @@ public class FullSpectrumCutter extends LaserCutter
     
     // send: "immediate <size packet>\n"
     String msgSize = "immediate " +
-            bosFullPacket.toByteArray().length +
+            (generateHeader().length + load.getLoadLength()) +
             "\n";
     sendTextCmd(msgSize,italkout);
     receiveResponse(italkin);
@@ -241,7 +257,7 @@ public class FullSpectrumCutter extends LaserCutter
     receiveResponse(italkin);
     
     jobout = new BufferedOutputStream(jobconn.getOutputStream());
-    jobout.write(bosFullPacket.toByteArray());
+    writePacket(load, jobout);
     jobout.flush();
     jobout.close();
     jobconn.close();
@@ -254,7 +270,7 @@ public class FullSpectrumCutter extends LaserCutter
     
     waitjobend();
     
-    System.out.println("End job");
+    logger.fine("End job");
     
     sendTextCmd("bye\n",italkout);
     receiveResponse(italkin);
@@ -269,7 +285,7 @@ public class FullSpectrumCutter extends LaserCutter
   @Override
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IOException, IllegalJobException
   {
-    fileOutputStream.write(jobToFullPacket(job, null).toByteArray());
+    writePacket(jobToFullPacket(job, null), fileOutputStream);
   }
   
   
@@ -311,22 +327,12 @@ public class FullSpectrumCutter extends LaserCutter
   
   
   /**
-   * Generates the full packet to send, given a set of raw machine commands.
-   * @return the packet as a byte array
+   * Writes the full packet: the header followed by the compressed load.
    */
-  private byte[] generatePacket(byte[] rawCmds)throws IOException
+  private void writePacket(FullSpectrumPacketStream load, OutputStream out) throws IOException
   {
-    byte[] header;
-    ByteArrayOutputStream packet = new ByteArrayOutputStream();
-
-    // header
-    header = generateHeader();
-    packet.write(header);
-    
-    // job compressed contents
-    packet.write(jobContents(rawCmds));
-    
-    return packet.toByteArray();
+    out.write(generateHeader());
+    load.writeLoadTo(out);
   }
   
   
@@ -413,142 +419,20 @@ public class FullSpectrumCutter extends LaserCutter
   }
   
   
-  /**
-   * Generates the load of the packet(packet=header+load) given a set of raw machine commands.
-   */
-  private byte[] jobContents(byte[] rawCmds)throws IOException
-  {
-    byte numberSubpackets; // number of additional subpackets
-    int remainder; // remainder of commands
-    
-    ByteArrayOutputStream jobrawload = new ByteArrayOutputStream();
-    ByteArrayOutputStream jobload = new ByteArrayOutputStream();
-
-    numberSubpackets=(byte)((rawCmds.length+8)/0x40000);
-    remainder=((rawCmds.length %0x40000)/4);
-
-    /* 
-    The first step is to add a little header(raw_header) to the raw machine commands
-    When the (raw_header+raw job)  exceeds 0x40000 bytes, it is divided in chunks of 0x40000
-    bytes (the quantity of chunks of 0x40000 = numberSubpackets) and the remaining bytes are grouped
-    in one additional subpacket, which would have a size of remainder+2 (or remainder*4 + 8  bytes)
-    this additional 8 bytes are because of the added header
-    The raw_header stores this info:
-    02 00 00 00 <short remainder> <byte numberSubpackets> 00  
-    At the end the relation
-    number of commands = numberSubpackets*0x10000 + remainder
-    must be true
-    Where each command consists of 4 bytes
-    */
-    // add raw_header
-    ByteBuffer bb = ByteBuffer.allocate(8);
-    bb.order(ByteOrder.LITTLE_ENDIAN);
-    bb.put(new byte[] {2,0,0,0});
-    bb.putShort((short)(remainder));
-    bb.put(numberSubpackets);
-    bb.put((byte)0);
-    jobrawload.write(bb.array());
-    
-    // add raw commands
-    jobrawload.write(rawCmds);
-    
-    byte[] raw_job = jobrawload.toByteArray(); // uncompressed raw_header and commands
-    
-    /* the final packet has the form 
-    header + (number of subpackets = numberSubpackets+1) + 00 00
-    zlib_string1.length + 00 00 + zlib_string1 +
-    zlib_string2.length + 00 00 + zlib_string2 +
-    ...
-    
-    Where the zlib strings are the result of compressing each subpacket and removing the zlib header
-    */
-    //so a little header is added before the zlib strings,(number of subpackets = numberSubpackets+1) + 00 00
-    ByteBuffer bb1 = ByteBuffer.allocate(4);
-    bb1.order(ByteOrder.LITTLE_ENDIAN);
-    bb1.putShort((short)(numberSubpackets+1));
-    bb1.put(new byte[] {0,0}); 
-    jobload.write(bb1.array());
-    
-    // Then add the zlib strings one by one
-    // "<size> 00 00 <zlib_string>"
-    for(int kk=0; kk<numberSubpackets;kk++)
-    {
-      // first portion to compress
-      byte[] tmpsub = Arrays.copyOfRange(raw_job, kk*0x40000, (kk+1)*0x40000); 
-      
-      compress_sub(tmpsub, jobload);
-    }
-    
-    // last portion to compress (remaining bytes)
-    byte[] tmpsub = Arrays.copyOfRange(raw_job, numberSubpackets*0x40000,numberSubpackets*0x40000+(remainder+2)*4 ); 
-    
-    compress_sub(tmpsub, jobload);
-    
-    return jobload.toByteArray();
-  }
-  
-  /**
-   * Compresses a byte array/subpacket with zlib, removes the first two bytes of the result
-   * writes the new size and the resulting zlib string
-   * zlib_string.length + 00 00 + zlib_string
-   * to a ByteArrayOutputStream
-   * @param tmpsub Array to compress
-   * @param jobload ByteArrayOutputStream where the result will be written
-   */
-  
-  private void compress_sub(byte [] tmpsub, ByteArrayOutputStream jobload) throws IOException
-  {
-    // begin compression
-      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
-      deflater.setInput(tmpsub);
-      deflater.finish();
-      ByteArrayOutputStream bos = new ByteArrayOutputStream(tmpsub.length);
-      byte[] buffer = new byte[1024];
-      while(!deflater.finished())
-      {
-                    int bytesCompressed = deflater.deflate(buffer);
-                    bos.write(buffer,0,bytesCompressed);
-      }
-      try
-      {
-        bos.close();
-      }
-      catch(IOException ioe)
-      {
-        System.out.println("Error while closing the stream : " + ioe);
-      }
-
-      //get the compressed byte array from output stream
-      byte[] zlibString = bos.toByteArray();
-      
-      // add the size of the zlib string and 00 00
-      ByteBuffer bb2 = ByteBuffer.allocate(4);
-      bb2.order(ByteOrder.LITTLE_ENDIAN);
-      bb2.putShort((short)(zlibString.length-2));
-      bb2.putShort((short)0);
-
-      // "<size of zlib string>  00 00"
-      jobload.write(bb2.array());
-
-      // write the result without the first two bytes
-      jobload.write(Arrays.copyOfRange(zlibString,2,zlibString.length));
-  }
-  
   /**
    * Interpolator, given an initial point (x_start,y_start) and a destination point (x_dest,y_dest)
  with a given power and speed, x+ direction is to the right and
  y+ direction is downwards, at the machine table.
+   * @param out the commands are written here, each command consists of 4 bytes
    * @param x_start initial x coordinate
    * @param x_dest destination x coordinate
    * @param y_start initial y coordinate
    * @param y_dest destination y coordinate
    * @param power as a percentage
    * @param speed in steps/sec
-   * @return array of bytes with the machine commands, each command consist of 4 bytes
    */
-  private byte[] line(double x_start,double x_dest,double y_start,double y_dest,double power, double speed)throws IOException
+  private void line(FullSpectrumPacketStream out, double x_start,double x_dest,double y_start,double y_dest,double power, double speed)throws IOException
   { 
-    ByteArrayOutputStream lineCmds = new ByteArrayOutputStream();
     double d; // distance of movement
     double speed_x; // average speed on x axis, signed
     double speed_y; // average speed on y axis, signed
@@ -559,9 +443,10 @@ public class FullSpectrumCutter extends LaserCutter
     double t_increment = 1d/2000d; // time increments, the machine card executes 2000 commands per sec
     byte steps_x; // steps to do on x axis, in one command, may be more than 1
     byte steps_y; // steps to do on y axis, in one command, may be more than 1
-    byte[] tempCmd = new byte[4]; // temporal byte array to build commands
+    int cmd; // command, first byte in the lowest 8 bits
     
     power = power * 255d / 100d;  // from percentage to byte value
+    int powerByte = ((byte)power) & 0xff; // the fourth byte sets power of laser
     
     // to relative movement in steps
     x_dest = Math.round((x_dest-x_start)*1000);
@@ -572,7 +457,7 @@ public class FullSpectrumCutter extends LaserCutter
     
     if(d==0d)
     {
-      return new byte[] {}; // no line no commands
+      return; // no line no commands
     }
     
     //speed components
@@ -605,23 +490,22 @@ public class FullSpectrumCutter extends LaserCutter
       steps_y = (byte)(y_expected-y);
       
       // the first two bits of the first byte, indicate direction on x y
-      tempCmd[0]=0;
+      cmd=0;
       if(steps_x>0)
-        tempCmd[0]+=1;
+        cmd+=1;
       if(steps_y>0)
-        tempCmd[0]+=2;
+        cmd+=2;
       
-      tempCmd[1]=(byte)Math.abs(steps_x); // the second byte sets the magnitude of movement in x axis
-      tempCmd[2]=(byte)Math.abs(steps_y); // the third byte sets the magnitude of movement in y axis
-      tempCmd[3]=(byte)power; // the fourth byte sets power of laser
+      cmd|=(Math.abs(steps_x)&0xff)<<8; // the second byte sets the magnitude of movement in x axis
+      cmd|=(Math.abs(steps_y)&0xff)<<16; // the third byte sets the magnitude of movement in y axis
+      cmd|=powerByte<<24;
       
-      lineCmds.write(tempCmd.clone()); 
+      out.writeCommand(cmd);
       
       //update real relative position
       x += steps_x;
       y += steps_y;
     }
-    return lineCmds.toByteArray();
   }
   
   
@@ -630,7 +514,7 @@ public class FullSpectrumCutter extends LaserCutter
    */
   public void sendTextCmd(String textCmd, BufferedOutputStream out)throws IOException, InterruptedException
   {
-    System.out.println("Sending command: "+textCmd);
+    logger.log(Level.FINE, "Sending command: {0}", textCmd);
     out.write(textCmd.getBytes(StandardCharsets.US_ASCII));
     out.flush();
   }
@@ -649,7 +533,7 @@ public class FullSpectrumCutter extends LaserCutter
       n++;
       inmsg[n]=(byte)in.read();
     }
-    System.out.println(new String(inmsg));
+    logger.info(new String(inmsg, 0, Math.min(n + 1, inmsg.length), StandardCharsets.US_ASCII));
   }
   
   @Override
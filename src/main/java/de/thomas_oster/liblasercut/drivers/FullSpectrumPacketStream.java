@@ -0,0 +1,293 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Collects the raw machine commands of a Full Spectrum job and compresses
+ * them while they are written.
+ *
+ * The raw job (8 byte raw header followed by the commands) is divided in
+ * subpackets of 0x40000 bytes, which are compressed independently. Every
+ * full subpacket is compressed on the common ForkJoinPool, except the
+ * first one, because the raw header is only known at the end. Only a few
+ * uncompressed subpackets are kept at a time.
+ *
+ * Commands are written with writeCommand(int), which puts them directly
+ * into the current subpacket. Subpackets and the raw header are multiples
+ * of 4 bytes, so a command never spans two subpackets.
+ *
+ * The raw header is
+ * 02 00 00 00 (short remainder) (byte numberSubpackets) 00
+ * where every command has 4 bytes and
+ * number of commands = numberSubpackets*0x10000 + remainder
+ *
+ * The resulting load is
+ * (number of subpackets) 00 00
+ * followed by "(size) 00 00 (zlib string without the zlib header)" for
+ * every subpacket.
+ */
+class FullSpectrumPacketStream extends OutputStream
+{
+  static final int SUBPACKET_SIZE = 0x40000;
+  private static final int RAW_HEADER_SIZE = 8;
+  private static final int MAX_IN_FLIGHT = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+  // Deflaters hold native memory until end(), so they are reused
+  private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+
+  private byte[] first = new byte[SUBPACKET_SIZE];
+  private byte[] current = first;
+  private ByteBuffer commands = wrap(current);
+  private int position = RAW_HEADER_SIZE;
+  private long commandBytes = 0;
+  private final List<Future<byte[]>> compressed = new ArrayList<>();
+  private int inFlight = 0;
+  private List<byte[]> load = null;
+
+  private static ByteBuffer wrap(byte[] subpacket)
+  {
+    return ByteBuffer.wrap(subpacket).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Writes one 4 byte machine command, the lowest byte of cmd first
+   */
+  void writeCommand(int cmd) throws IOException
+  {
+    if (position > SUBPACKET_SIZE - 4)
+    {
+      // only if single bytes were written before
+      for (int i = 0; i < 4; i++)
+      {
+        write(cmd >> (8 * i));
+      }
+      return;
+    }
+    commands.putInt(position, cmd);
+    position += 4;
+    commandBytes += 4;
+    if (position == SUBPACKET_SIZE)
+    {
+      subpacketFull();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    current[position++] = (byte) b;
+    commandBytes++;
+    if (position == SUBPACKET_SIZE)
+    {
+      subpacketFull();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      int n = Math.min(len, SUBPACKET_SIZE - position);
+      System.arraycopy(b, off, current, position, n);
+      position += n;
+      commandBytes += n;
+      off += n;
+      len -= n;
+      if (position == SUBPACKET_SIZE)
+      {
+        subpacketFull();
+      }
+    }
+  }
+
+  private void subpacketFull() throws IOException
+  {
+    if (current != first)
+    {
+      byte[] data = current;
+      compressed.add(ForkJoinPool.commonPool().submit(() -> compress(data, data.length)));
+      // bound the memory used by subpackets waiting for compression
+      if (++inFlight >= MAX_IN_FLIGHT)
+      {
+        await(compressed.get(compressed.size() - inFlight));
+        inFlight--;
+      }
+    }
+    current = new byte[SUBPACKET_SIZE];
+    commands = wrap(current);
+    position = 0;
+  }
+
+  /**
+   * Compresses the rest and returns the load, the list of byte arrays to
+   * be written in this order. No more commands may be written afterwards.
+   */
+  List<byte[]> finish() throws IOException
+  {
+    if (load != null)
+    {
+      return load;
+    }
+    if (commandBytes + RAW_HEADER_SIZE >= 128L * SUBPACKET_SIZE)
+    {
+      throw new IOException("Job is too large, at most 127 subpackets are supported");
+    }
+    long rawLength = commandBytes + RAW_HEADER_SIZE;
+    byte numberSubpackets = (byte) (rawLength / SUBPACKET_SIZE);
+    int remainder = (int) ((commandBytes % SUBPACKET_SIZE) / 4);
+    // 02 00 00 00 <short remainder> <byte numberSubpackets> 00
+    first[0] = 2;
+    first[1] = 0;
+    first[2] = 0;
+    first[3] = 0;
+    first[4] = (byte) remainder;
+    first[5] = (byte) (remainder >> 8);
+    first[6] = numberSubpackets;
+    first[7] = 0;
+
+    List<byte[]> result = new ArrayList<>();
+    result.add(new byte[] {(byte) (numberSubpackets + 1), (byte) ((numberSubpackets + 1) >> 8), 0, 0});
+    if (numberSubpackets > 0)
+    {
+      result.add(compress(first, SUBPACKET_SIZE));
+    }
+    for (Future<byte[]> f : compressed)
+    {
+      result.add(await(f));
+    }
+    // the last subpacket has remainder+2 commands, padded with zeros if
+    // the raw header pushed the data just over a subpacket boundary
+    byte[] last = current;
+    int lastLength = (remainder + 2) * 4;
+    if (last.length < lastLength)
+    {
+      last = new byte[lastLength];
+      System.arraycopy(current, 0, last, 0, position);
+    }
+    else
+    {
+      Arrays.fill(last, position, lastLength, (byte) 0);
+    }
+    result.add(compress(last, lastLength));
+    compressed.clear();
+    first = null;
+    current = null;
+    commands = null;
+    load = result;
+    return load;
+  }
+
+  /**
+   * Size of the load in bytes
+   */
+  long getLoadLength() throws IOException
+  {
+    long length = 0;
+    for (byte[] b : finish())
+    {
+      length += b.length;
+    }
+    return length;
+  }
+
+  void writeLoadTo(OutputStream out) throws IOException
+  {
+    for (byte[] b : finish())
+    {
+      out.write(b);
+    }
+  }
+
+  private static byte[] await(Future<byte[]> f) throws IOException
+  {
+    try
+    {
+      return f.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException("Compressing the job failed", e.getCause());
+    }
+  }
+
+  /**
+   * Compresses a subpacket with zlib and returns
+   * "(size) 00 00 (zlib string without its first two bytes)"
+   */
+  static byte[] compress(byte[] data, int length)
+  {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null)
+    {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+    try
+    {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      // zlib's deflateBound, usually enough for a single call
+      byte[] out = new byte[length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6 + 4];
+      int size = 4;
+      while (!deflater.finished())
+      {
+        if (size == out.length)
+        {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        size += deflater.deflate(out, size, out.length - size);
+      }
+      // drop the two byte zlib header and put the size in front of the rest
+      int zlibLength = size - 4 - 2;
+      System.arraycopy(out, 6, out, 4, zlibLength);
+      out[0] = (byte) zlibLength;
+      out[1] = (byte) (zlibLength >> 8);
+      out[2] = 0;
+      out[3] = 0;
+      return Arrays.copyOf(out, 4 + zlibLength);
+    }
+    finally
+    {
+      deflater.reset();
+      if (!deflaters.offer(deflater))
+      {
+        deflater.end();
+      }
+    }
+  }
+}
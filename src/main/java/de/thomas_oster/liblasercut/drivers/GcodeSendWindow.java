@@ -0,0 +1,240 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Streams G-code lines to a controller without waiting for the answer to
+ * each line before sending the next one.
+ *
+ * Lines are written as long as the number of unanswered lines and their
+ * total size stay within the given limits. A reader thread matches every
+ * response to the oldest unanswered line: "ok" acknowledges it, anything
+ * else is reported as an error for that line.
+ *
+ * With a byte limit of the controller's receive buffer this is the
+ * character counting protocol recommended by Grbl.
+ */
+public class GcodeSendWindow implements Closeable
+{
+
+  /**
+   * Source of response lines, usually GenericGcodeDriver.waitForLine().
+   * Returns null if the controller did not answer in time.
+   */
+  public interface ResponseReader
+  {
+    String readLine() throws IOException;
+  }
+
+  private static class SentLine
+  {
+    final long number;
+    final int length;
+    final String text;
+
+    SentLine(long number, int length, String text)
+    {
+      this.number = number;
+      this.length = length;
+      this.text = text;
+    }
+  }
+
+  private final OutputStream out;
+  private final ResponseReader in;
+  private final int maxLines;
+  private final int maxBytes;
+  private final ArrayDeque<SentLine> inFlight = new ArrayDeque<>();
+  private final Thread reader;
+  private int bytesInFlight = 0;
+  private long linesSent = 0;
+  private IOException failure;
+  private boolean closed = false;
+
+  /**
+   * @param out stream the lines are written to
+   * @param in source of the controller's responses
+   * @param maxLines maximum number of unanswered lines
+   * @param maxBytes maximum number of unanswered bytes, e.g. the size of the
+   * controller's receive buffer. A single longer line is still sent once
+   * all previous lines have been answered.
+   */
+  public GcodeSendWindow(OutputStream out, ResponseReader in, int maxLines, int maxBytes)
+  {
+    if (maxLines < 1 || maxBytes < 1)
+    {
+      throw new IllegalArgumentException("Window must allow at least one line and one byte");
+    }
+    this.out = out;
+    this.in = in;
+    this.maxLines = maxLines;
+    this.maxBytes = maxBytes;
+    this.reader = new Thread(this::readResponses, "G-code response reader");
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  /**
+   * Sends one line, including its line end. Blocks while the window is full.
+   * @throws IOException if the controller reported an error for an earlier line
+   */
+  public void send(String line) throws IOException
+  {
+    byte[] data = line.getBytes(StandardCharsets.US_ASCII);
+    synchronized (this)
+    {
+      while (failure == null && !closed && !inFlight.isEmpty()
+        && (inFlight.size() >= maxLines || bytesInFlight + data.length > maxBytes))
+      {
+        await();
+      }
+      checkState();
+      linesSent++;
+      inFlight.addLast(new SentLine(linesSent, data.length, line.trim()));
+      bytesInFlight += data.length;
+      notifyAll();
+    }
+    out.write(data);
+    out.flush();
+  }
+
+  /**
+   * Waits until all sent lines have been answered.
+   * @throws IOException if the controller reported an error for any line
+   */
+  public synchronized void drain() throws IOException
+  {
+    while (failure == null && !closed && !inFlight.isEmpty())
+    {
+      await();
+    }
+    checkState();
+  }
+
+  /**
+   * Number of lines sent through this window so far.
+   */
+  public synchronized long getLinesSent()
+  {
+    return linesSent;
+  }
+
+  /**
+   * Stops the reader thread. Unanswered lines are dropped.
+   */
+  @Override
+  public void close()
+  {
+    synchronized (this)
+    {
+      closed = true;
+      notifyAll();
+    }
+    reader.interrupt();
+  }
+
+  private void await() throws InterruptedIOException
+  {
+    try
+    {
+      wait();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the lasercutter");
+    }
+  }
+
+  private void checkState() throws IOException
+  {
+    if (failure != null)
+    {
+      throw new IOException(failure.getMessage(), failure);
+    }
+    if (closed)
+    {
+      throw new IOException("Send window is closed");
+    }
+  }
+
+  private void readResponses()
+  {
+    try
+    {
+      while (true)
+      {
+        SentLine oldest;
+        synchronized (this)
+        {
+          while (!closed && inFlight.isEmpty())
+          {
+            wait();
+          }
+          if (closed)
+          {
+            return;
+          }
+          oldest = inFlight.peekFirst();
+        }
+        String response = in.readLine();
+        synchronized (this)
+        {
+          if (closed)
+          {
+            return;
+          }
+          if (!"ok".equals(response))
+          {
+            failure = new IOException(response == null
+              ? "Lasercutter did not respond to line " + oldest.number + " (" + oldest.text + ")"
+              : "Lasercutter responded '" + response + "' to line " + oldest.number + " (" + oldest.text + ")");
+            notifyAll();
+            return;
+          }
+          inFlight.removeFirst();
+          bytesInFlight -= oldest.length;
+          notifyAll();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // closed
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        if (!closed)
+        {
+          failure = e;
+        }
+        notifyAll();
+      }
+    }
+  }
+}
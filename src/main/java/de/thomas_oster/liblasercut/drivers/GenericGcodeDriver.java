@@ -28,8 +28,10 @@ import de.thomas_oster.liblasercut.OptionSelector;
 import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.ProgressListenerDummy;
 import de.thomas_oster.liblasercut.RasterizableJobPart;
+import de.thomas_oster.liblasercut.utils.AsciiLineBuilder;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
-import de.thomas_oster.liblasercut.VectorCommand;
+import de.thomas_oster.liblasercut.VectorCommandSource;
+import de.thomas_oster.liblasercut.VectorCommandVisitor;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
 import net.sf.corn.httpclient.HttpClient;
@@ -69,9 +71,6 @@ import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-
 /**
  * This class implements a driver for a generic GRBL GCode Lasercutter.
  * It should contain all possible options and is inteded to be the superclass
@@ -99,6 +98,7 @@ public class GenericGcodeDriver extends LaserCutter {
   protected static final String SETTING_RESOLUTIONS = "Supported DPI (comma separated)";
   protected static final String SETTING_IDENTIFICATION_STRING = "Board Identification String (startsWith)";
   protected static final String SETTING_WAIT_FOR_OK = "Wait for OK after each line (interactive mode)";
+  protected static final String SETTING_SEND_WINDOW = "Lines to send before waiting for OK (interactive mode)";
   protected static final String SETTING_INIT_DELAY = "Seconds to wait for board reset (Serial)";
   protected static final String SETTING_SERIAL_TIMEOUT = "Milliseconds to wait for response";
   protected static final String SETTING_BLANK_LASER_DURING_RAPIDS = "Force laser off during G0 moves";
@@ -234,6 +234,22 @@ public class GenericGcodeDriver extends LaserCutter {
     this.waitForOKafterEachLine = waitForOKafterEachLine;
   }
 
+  protected int sendWindowLines = 1;
+
+  /**
+   * Number of lines which may be sent before the "ok" for the first of them
+   * has arrived. 1 waits for the "ok" after each line.
+   */
+  public int getSendWindowLines()
+  {
+    return sendWindowLines;
+  }
+
+  public void setSendWindowLines(int sendWindowLines)
+  {
+    this.sendWindowLines = Math.max(1, sendWindowLines);
+  }
+
   public String getIdentificationLine()
   {
     return identificationLine;
@@ -466,35 +482,34 @@ public class GenericGcodeDriver extends LaserCutter {
 
   protected String formatDouble(double value, int decimalPlaces)
   {
-    Locale locale  = new Locale("en", "US");
-    DecimalFormat coordinateFormat = (DecimalFormat)NumberFormat.getNumberInstance(locale);
-    coordinateFormat.applyPattern("###.##");
-    coordinateFormat.setMaximumFractionDigits(decimalPlaces);
-    return coordinateFormat.format(value); 
+    return new AsciiLineBuilder().appendDecimal(value, decimalPlaces).toString();
   }
 
   protected void writeVectorGCode(VectorPart vp, double resolution) throws UnsupportedEncodingException, IOException {
-    for (VectorCommand cmd : vp.getCommandList()) {
-      switch (cmd.getType()) {
-        // TODO: x,y should be changed to double because GCode has infinite vector resolution anyway
-        case MOVETO:
-          int x = (int) cmd.getX();
-          int y = (int) cmd.getY();
-          move(out, x, y, resolution);
-          break;
-        case LINETO:
-          x = (int) cmd.getX();
-          y = (int) cmd.getY();
-          line(out, x, y, resolution);
-          break;
-        case SETPROPERTY:
-          FloatPowerSpeedFocusProperty p = (FloatPowerSpeedFocusProperty) cmd.getProperty();
-          setPower(p.getPower());
-          setSpeed(p.getSpeed());
-          setFocus(out, p.getFocus());
-          break;
+    writeVectorGCode((VectorCommandSource) vp, resolution);
+  }
+
+  protected void writeVectorGCode(VectorCommandSource vp, double resolution) throws UnsupportedEncodingException, IOException {
+    vp.forEachCommand(new VectorCommandVisitor<IOException>() {
+      // TODO: x,y should be changed to double because GCode has infinite vector resolution anyway
+      @Override
+      public void moveTo(double x, double y) throws IOException {
+        move(out, (int) x, (int) y, resolution);
       }
-    }
+
+      @Override
+      public void lineTo(double x, double y) throws IOException {
+        line(out, (int) x, (int) y, resolution);
+      }
+
+      @Override
+      public void property(LaserProperty prop) throws IOException {
+        FloatPowerSpeedFocusProperty p = (FloatPowerSpeedFocusProperty) prop;
+        setPower(p.getPower());
+        setSpeed(p.getSpeed());
+        setFocus(out, p.getFocus());
+      }
+    });
   }
   protected double currentPower = -1;
   protected double currentSpeed = -1;
@@ -513,12 +528,12 @@ public class GenericGcodeDriver extends LaserCutter {
   protected void setFocus(PrintStream out, double focus) throws IOException {
 
     if (currentFocus != focus) {
-        String append = "";
+        AsciiLineBuilder line = startLine().append("G0 Z").appendDecimal(focus, getGCodeDigits());
         if (blankLaserDuringRapids) {
-           append = " S0";
+           line.append(" S0");
            currentPower = -1; // set to invalid value to force new S-value at next G1
         }
-        sendLine("G0 Z%s" + append, formatDouble(focus, getGCodeDigits()));
+        sendLine(line);
         currentFocus = focus;
     }
   }
@@ -527,34 +542,36 @@ public class GenericGcodeDriver extends LaserCutter {
     x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
     currentSpeed = getTravel_speed();
+    int digits = getGCodeDigits();
+    AsciiLineBuilder line = startLine().append("G0 X").appendDecimal(x, digits)
+      .append(" Y").appendDecimal(y, digits).append(" F").append((int) (travel_speed));
 
     if (blankLaserDuringRapids)
     {
       currentPower = -1; // set to invalid value to force new S-value at next G1
-      sendLine("G0 X%s Y%s F%d S0", formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()), (int) (travel_speed));
-    }
-    else
-    {
-      sendLine("G0 X%s Y%s F%d", formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()), (int) (travel_speed));
+      line.append(" S0");
     }
+    sendLine(line);
   }
 
   protected void line(PrintStream out, double x, double y, double resolution) throws IOException {
     x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
-    String append = "";
+    int digits = getGCodeDigits();
+    AsciiLineBuilder line = startLine().append("G1 X").appendDecimal(x, digits)
+      .append(" Y").appendDecimal(y, digits);
 
     if (nextPower != currentPower)
     {
-      append += String.format(FORMAT_LOCALE, " S%s", formatDouble(nextPower, getSCodeDigits()));
+      line.append(" S").appendDecimal(nextPower, getSCodeDigits());
       currentPower = nextPower;
     }
     if (nextSpeed != currentSpeed)
     {
-      append += String.format(FORMAT_LOCALE, " F%d", (int) (max_speed*nextSpeed/100.0));
+      line.append(" F").append((int) (max_speed*nextSpeed/100.0));
       currentSpeed = nextSpeed;
     }
-    sendLine("G1 X%s Y%s" + append, formatDouble(x, getGCodeDigits()), formatDouble(y, getGCodeDigits()));
+    sendLine(line);
   }
 
   private void writeInitializationCode() throws IOException {
@@ -583,17 +600,76 @@ public class GenericGcodeDriver extends LaserCutter {
   private transient Socket socket;
   private transient CommPort port;
   private transient CommPortIdentifier portIdentifier;
+  /**
+   * Window used by sendLine while a job is written, null if every line
+   * waits for its "ok"
+   */
+  protected transient GcodeSendWindow sendWindow;
+
+  private transient AsciiLineBuilder lineBuilder;
+
+  /**
+   * Returns the cleared, reusable buffer for the next line to send
+   */
+  protected AsciiLineBuilder startLine()
+  {
+    if (lineBuilder == null)
+    {
+      lineBuilder = new AsciiLineBuilder();
+    }
+    return lineBuilder.clear();
+  }
 
   protected void sendLine(String text, Object... parameters) throws IOException
   {
-    out.format(FORMAT_LOCALE, text+LINEEND(), parameters);
+    String formatted = parameters.length == 0 && text.indexOf('%') < 0 ? text : String.format(FORMAT_LOCALE, text, parameters);
+    if (!AsciiLineBuilder.isAscii(formatted))
+    {
+      // custom G-code may contain other characters, they are encoded by out
+      sendText(formatted + LINEEND());
+      return;
+    }
+    sendLine(startLine().append(formatted));
+  }
+
+  /**
+   * Sends a line including its line end through out, in its charset
+   */
+  protected void sendText(String line) throws IOException
+  {
+    if (sendWindow != null && isWaitForOKafterEachLine())
+    {
+      sendWindow.send(line);
+      return;
+    }
+    out.print(line);
+    lineWritten();
+  }
+
+  /**
+   * Sends the line built with startLine(), appending the line end
+   */
+  protected void sendLine(AsciiLineBuilder line) throws IOException
+  {
+    line.append(LINEEND());
+    if (sendWindow != null && isWaitForOKafterEachLine())
+    {
+      sendWindow.send(line.toString());
+      return;
+    }
+    line.writeTo(out);
+    lineWritten();
+  }
+
+  private void lineWritten() throws IOException
+  {
     out.flush();
     if (isWaitForOKafterEachLine())
     {
-      String line = waitForLine();
-      if (!"ok".equals(line))
+      String response = waitForResponse();
+      if (!"ok".equals(response))
       {
-        throw new IOException("Lasercutter did not respond 'ok', but '"+line+"'instead.");
+        throw new IOException("Lasercutter did not respond 'ok', but '"+response+"'instead.");
       }
     }
   }
@@ -674,6 +750,28 @@ public class GenericGcodeDriver extends LaserCutter {
     return line;
   }
 
+  /**
+   * Waits for the answer to a sent line, which should be "ok".
+   * Subclasses can skip status messages of their firmware here.
+   */
+  protected String waitForResponse() throws IOException
+  {
+    return waitForLine();
+  }
+
+  /**
+   * Creates the window for streaming a job, or returns null if every line
+   * should wait for its "ok". Only called for connections which answer.
+   */
+  protected GcodeSendWindow createSendWindow()
+  {
+    if (getSendWindowLines() <= 1)
+    {
+      return null;
+    }
+    return new GcodeSendWindow(out, this::waitForResponse, getSendWindowLines(), Integer.MAX_VALUE);
+  }
+
   /**
    * Waits for the Identification line and returns null if it's allright
    * Otherwise it returns the wrong line
@@ -937,6 +1035,25 @@ public class GenericGcodeDriver extends LaserCutter {
   }
   
   public void writeJobCode(LaserJob job, ProgressListener pl) throws IOException {
+    GcodeSendWindow window = isWaitForOKafterEachLine() && in != null ? createSendWindow() : null;
+    if (window == null)
+    {
+      writeJobCommands(job, pl);
+      return;
+    }
+    try (window)
+    {
+      sendWindow = window;
+      writeJobCommands(job, pl);
+      window.drain();
+    }
+    finally
+    {
+      sendWindow = null;
+    }
+  }
+
+  private void writeJobCommands(LaserJob job, ProgressListener pl) throws IOException {
     writeInitializationCode();
     pl.progressChanged(this, 20);
     int i = 0;
@@ -949,9 +1066,10 @@ public class GenericGcodeDriver extends LaserCutter {
         // For smooth engraving and compatibility with previous LibLaserCut versions, we use lineto().
         // This won't work with boards that ignore the laser power setting (S0 ... S1) and only consider G0/G1 (move/line).
         // Therefore it should be made configurable.
-        p = convertRasterizableToVectorPart((RasterizableJobPart) p, job, getUseBidirectionalRastering(), false, false);
+        // The commands are generated while they are sent, so big rasters never exist as a whole VectorPart.
+        writeVectorGCode(convertRasterizableToVectorCommands((RasterizableJobPart) p, job, getUseBidirectionalRastering(), false, false), p.getDPI());
       }
-      if (p instanceof VectorPart)
+      else if (p instanceof VectorPart)
       {
         //TODO: in direct mode use progress listener to indicate progress
         //of individual job
@@ -1142,6 +1260,7 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
     SETTING_POST_JOB_GCODE,
     SETTING_RESOLUTIONS,
     SETTING_WAIT_FOR_OK,
+    SETTING_SEND_WINDOW,
     SETTING_SERIAL_TIMEOUT,
     SETTING_FILE_EXPORT_PATH,
     SETTING_USE_BIDIRECTIONAL_RASTERING,
@@ -1197,6 +1316,8 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
       return this.getSupportedResolutions();
     } else if (SETTING_WAIT_FOR_OK.equals(attribute)) {
       return this.isWaitForOKafterEachLine();
+    } else if (SETTING_SEND_WINDOW.equals(attribute)) {
+      return this.getSendWindowLines();
     } else if (SETTING_SERIAL_TIMEOUT.equals(attribute)) {
       return this.getSerialTimeout();
     } else if (SETTING_BLANK_LASER_DURING_RAPIDS.equals(attribute)) {
@@ -1264,6 +1385,8 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
       this.setSupportedResolutions((String) value);
     } else if (SETTING_WAIT_FOR_OK.equals(attribute)) {
       this.setWaitForOKafterEachLine((Boolean) value);
+    } else if (SETTING_SEND_WINDOW.equals(attribute)) {
+      this.setSendWindowLines((Integer) value);
     } else if (SETTING_SERIAL_TIMEOUT.equals(attribute)) {
       this.setSerialTimeout((Integer) value);
     } else if (SETTING_BLANK_LASER_DURING_RAPIDS.equals(attribute)) {
@@ -1298,6 +1421,7 @@ public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJ
     // added field spindleMax, needs to be set to 1.0 by default
     // but xstream initializes it to 0.0 when it is missing from XML
     if (this.spindleMax <= 0.0) this.spindleMax = 1.0;
+    if (this.sendWindowLines <= 0) this.sendWindowLines = 1;
   }
 
   @Override
@@ -20,6 +20,7 @@ package de.thomas_oster.liblasercut.drivers;
 
 import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.platform.Util;
+import de.thomas_oster.liblasercut.utils.AsciiLineBuilder;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
@@ -56,6 +57,13 @@ public class Grbl extends GenericGcodeDriver
   }
   
   protected static final String SETTING_AUTO_HOME = "Automatically home laser cutter";
+  protected static final String SETTING_CHARACTER_COUNTING = "Stream with character counting (faster, Serial/IP only)";
+
+  /**
+   * Usable size of Grbl's serial receive buffer. The buffer has 128 bytes,
+   * one of which is always kept free.
+   */
+  protected static final int RX_BUFFER_SIZE = 127;
   
   @Override
   public String[] getPropertyKeys()
@@ -66,9 +74,11 @@ public class Grbl extends GenericGcodeDriver
     result.remove(GenericGcodeDriver.SETTING_AUTOPLAY);
     result.remove(GenericGcodeDriver.SETTING_IDENTIFICATION_STRING);
     result.remove(GenericGcodeDriver.SETTING_WAIT_FOR_OK);
+    result.remove(GenericGcodeDriver.SETTING_SEND_WINDOW);
     result.remove(GenericGcodeDriver.SETTING_TRAVEL_SPEED);
     result.remove(GenericGcodeDriver.SETTING_LINEEND);
     result.add(SETTING_AUTO_HOME);
+    result.add(SETTING_CHARACTER_COUNTING);
     return result.toArray(new String[0]);
   }
   
@@ -77,6 +87,9 @@ public class Grbl extends GenericGcodeDriver
     if (SETTING_AUTO_HOME.equals(attribute)) {
       return this.getAutoHome();
     }
+    else if (SETTING_CHARACTER_COUNTING.equals(attribute)) {
+      return this.isCharacterCounting();
+    }
     else {
       return super.getProperty(attribute);
     }
@@ -87,6 +100,9 @@ public class Grbl extends GenericGcodeDriver
     if (SETTING_AUTO_HOME.equals(attribute)) {
       this.setAutoHome((Boolean) value);
     }
+    else if (SETTING_CHARACTER_COUNTING.equals(attribute)) {
+      this.setCharacterCounting((Boolean) value);
+    }
     else {
       super.setProperty(attribute, value);
     }
@@ -104,6 +120,22 @@ public class Grbl extends GenericGcodeDriver
     this.autoHome = auto_home;
   }
 
+  protected boolean characterCounting = false;
+
+  /**
+   * If enabled, lines are sent as long as they fit into Grbl's receive
+   * buffer instead of waiting for the "ok" of each line.
+   */
+  public boolean isCharacterCounting()
+  {
+    return characterCounting;
+  }
+
+  public void setCharacterCounting(boolean characterCounting)
+  {
+    this.characterCounting = characterCounting;
+  }
+
 
   @Override
   public String getModelName()
@@ -167,34 +199,42 @@ public class Grbl extends GenericGcodeDriver
     x = isFlipXaxis() ? getBedWidth() - Util.px2mm(x, resolution) : Util.px2mm(x, resolution);
     y = isFlipYaxis() ? getBedHeight() - Util.px2mm(y, resolution) : Util.px2mm(y, resolution);
     currentSpeed = getTravel_speed();
+    AsciiLineBuilder line = startLine().append("G0X").appendFixed(x, 6).append("Y").appendFixed(y, 6);
     if (blankLaserDuringRapids)
     {
       currentPower = -1; // set to invalid value to force new S-value at next G1
-      sendLine("G0 X%f Y%f S0", x, y);
-    }
-    else
-    {
-      sendLine("G0 X%f Y%f", x, y);
+      line.append("S0");
     }
+    sendLine(line);
   }
   
   /**
-   * Send a line of gcode to the cutter, stripping out any whitespace in the process
+   * With character counting, lines are limited by the free space in Grbl's
+   * receive buffer instead of by their number.
    */
   @Override
-  protected void sendLine(String text, Object... parameters) throws IOException
+  protected GcodeSendWindow createSendWindow()
   {
-    out.format(FORMAT_LOCALE, text.replace(" ", "")+LINEEND(), parameters);
-    // System.out.println(String.format(FORMAT_LOCALE, "> "+text+LINEEND(), parameters));
-    out.flush();
-    if (isWaitForOKafterEachLine())
+    if (!isCharacterCounting())
     {
-      String line = waitForLine();
-      if (!"ok".equals(line))
-      {
-        throw new IOException("Lasercutter did not respond 'ok', but '"+line+"'instead.");
-      }
+      return super.createSendWindow();
     }
+    return new GcodeSendWindow(out, this::waitForResponse, Integer.MAX_VALUE, RX_BUFFER_SIZE);
+  }
+
+  /**
+   * Send a line of gcode to the cutter, stripping out any whitespace in the process
+   */
+  @Override
+  protected void sendLine(AsciiLineBuilder line) throws IOException
+  {
+    super.sendLine(line.remove(' '));
+  }
+
+  @Override
+  protected void sendText(String line) throws IOException
+  {
+    super.sendText(line.replace(" ", ""));
   }
 
   @Override
@@ -28,11 +28,11 @@ import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.ProgressListenerDummy;
 import de.thomas_oster.liblasercut.Raster3dPart;
 import de.thomas_oster.liblasercut.RasterPart;
-import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Util;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
+import de.thomas_oster.liblasercut.utils.SummedAreaTable;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -195,41 +195,52 @@ public class IModelaMill extends LaserCutter
     }
   }
   
+  /*
+   * Counts the black pixels of the raster, so the tool coverage
+   * of every position is available in constant time
+   */
+  private SummedAreaTable blackPixels(RasterPart p)
+  {
+    return new SummedAreaTable(p.getRasterWidth(), p.getRasterHeight(), (y, row) ->
+    {
+      for (int x = 0; x < row.length; x++)
+      {
+        row[x] = p.isBlack(x, y) ? 1 : 0;
+      }
+    });
+  }
+
+  /*
+   * Sums the raster values (as signed bytes like in getRasterLine)
+   */
+  private SummedAreaTable greyValues(Raster3dPart p)
+  {
+    return new SummedAreaTable(p.getRasterWidth(), p.getRasterHeight(), (y, row) ->
+    {
+      p.getImage().getGreyScaleRow(y, row);
+      for (int x = 0; x < row.length; x++)
+      {
+        row[x] = (byte) row[x];
+      }
+    });
+  }
+
   /*
    * Returns the percentage of black pixels in a square rectangle with
    * side length toolDiameter
    * arount x/y in the given raster
    */
-  private double getBlackPercent(RasterPart p, int cx, int cy, int toolDiameter)
+  private double getBlackPercent(SummedAreaTable blackPixels, int cx, int cy, int toolDiameter)
   {
     double count = toolDiameter*toolDiameter;
-    double black = 0;
-    for (int x = Math.max(cx-toolDiameter/2, 0); x < Math.min(cx+toolDiameter/2, p.getRasterWidth()); x++)
-    {
-      for (int y = Math.max(cy-toolDiameter/2, 0); y < Math.min(cy+toolDiameter/2, p.getRasterHeight()); y++)
-      {
-        if (p.isBlack(x, y))
-        {
-          black++;
-        }
-      }
-    }
+    double black = blackPixels.sum(cx-toolDiameter/2, cy-toolDiameter/2, cx+toolDiameter/2, cy+toolDiameter/2);
     return black/count;
   }
   
-  private double getAverageGrey(Raster3dPart p, int cx, int cy, int toolDiameter)
+  private double getAverageGrey(SummedAreaTable greyValues, int cx, int cy, int toolDiameter)
   {
     double count = toolDiameter*toolDiameter;
-    double value = 0;
-    for (int y = Math.max(cy-toolDiameter/2, 0); y < Math.min(cy+toolDiameter/2, p.getRasterHeight()); y++)
-    {
-      List<Byte> line = p.getRasterLine(y);
-      for (int x = Math.max(cx-toolDiameter/2, 0); x < Math.min(cx+toolDiameter/2, p.getRasterWidth()); x++)
-      {
-      
-        value += line.get(x);
-      }
-    }
+    double value = greyValues.sum(cx-toolDiameter/2, cy-toolDiameter/2, cx+toolDiameter/2, cy+toolDiameter/2);
     return (value/count)/255;
   }
   
@@ -240,6 +251,7 @@ public class IModelaMill extends LaserCutter
     double treshold = 0.7;
     IModelaProperty prop = (IModelaProperty) p.getLaserProperty();
     int toolDiameterInPx = (int) Util.mm2px(prop.getToolDiameter(), dpi);
+    SummedAreaTable black = blackPixels(p);
     applyProperty(out, prop);
     boolean leftToRight = true;
     Point offset = p.getRasterStart();
@@ -250,10 +262,10 @@ public class IModelaMill extends LaserCutter
         (leftToRight && x < p.getRasterWidth()) || (!leftToRight && x >= 0); 
         x += leftToRight ? 1 : -1)
       {
-        if (getBlackPercent(p, x, y, toolDiameterInPx)<treshold)
+        if (getBlackPercent(black, x, y, toolDiameterInPx)<treshold)
         {
           //skip intermediate move commands
-          while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getBlackPercent(p, leftToRight ? x+1 : x-1, y, toolDiameterInPx) < treshold)
+          while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getBlackPercent(black, leftToRight ? x+1 : x-1, y, toolDiameterInPx) < treshold)
           {
             x+= leftToRight ? 1 : -1;
           }
@@ -262,7 +274,7 @@ public class IModelaMill extends LaserCutter
         else
         {
           //skip intermediate line commands
-          while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getBlackPercent(p, leftToRight ? x+1 : x-1, y, toolDiameterInPx) >= treshold)
+          while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getBlackPercent(black, leftToRight ? x+1 : x-1, y, toolDiameterInPx) >= treshold)
           {
             x+= leftToRight ? 1 : -1;
           }
@@ -279,6 +291,7 @@ public class IModelaMill extends LaserCutter
     double dpi = p.getDPI();
     IModelaProperty prop = (IModelaProperty) p.getLaserProperty();
     int toolDiameterInPx = (int) Util.mm2px(prop.getToolDiameter(), dpi);
+    SummedAreaTable grey = greyValues(p);
     applyProperty(out, prop);
     boolean leftToRight = true;
     Point offset = p.getRasterStart();
@@ -290,9 +303,9 @@ public class IModelaMill extends LaserCutter
         x += leftToRight ? 1 : -1)
       {
         //scale the depth according to the average grey value
-        linedepth = getAverageGrey(p, x, y, toolDiameterInPx)*prop.getDepth();
+        linedepth = getAverageGrey(grey, x, y, toolDiameterInPx)*prop.getDepth();
         //skip intermediate line commands
-        while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getAverageGrey(p, leftToRight ? x+1 : x-1, y, toolDiameterInPx) == linedepth)
+        while((leftToRight && x+1 < p.getRasterWidth()) || (!leftToRight && x-1 >= 0) && getAverageGrey(grey, leftToRight ? x+1 : x-1, y, toolDiameterInPx) == linedepth)
         {
           x+= leftToRight ? 1 : -1;
         }
@@ -306,7 +319,8 @@ public class IModelaMill extends LaserCutter
   private void writeVectorCode(VectorPart p, PrintStream out)
   {
     double dpi = p.getDPI();
-    for (VectorCommand c : p.getCommandList())
+    VectorPart.Cursor c = p.cursor();
+    while (c.next())
     {
       switch (c.getType())
       {
@@ -607,7 +607,9 @@ public class K3EngraverDriver extends LaserCutter
       {
         VectorPart vp = ((VectorPart) p);
 
-        for (VectorCommand cmd : vp.getCommandList())
+        VectorPart.Cursor cmd = vp.cursor();
+
+        while (cmd.next())
         {
 
           if (cmd.getType() == VectorCommand.CmdType.MOVETO)
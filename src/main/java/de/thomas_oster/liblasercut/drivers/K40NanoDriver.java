@@ -32,16 +32,16 @@ import de.thomas_oster.liblasercut.RasterPart;
 import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.utils.LinefeedPrintStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 
 import java.io.PrintStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.usb4java.Context;
 import org.usb4java.Device;
@@ -53,6 +53,8 @@ import org.usb4java.InterfaceDescriptor;
 import org.usb4java.DeviceList;
 import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
 
 public class K40NanoDriver extends LaserCutter
 {
@@ -118,7 +120,7 @@ public class K40NanoDriver extends LaserCutter
         }
 
         @Override
-        public void add(String element)
+        public void add(CharSequence element)
         {
           saveJob.println(element);
         }
@@ -206,8 +208,9 @@ public class K40NanoDriver extends LaserCutter
       {
         VectorPart vp = (VectorPart) p;
         int i = 0;
-        int total = vp.getCommandList().length;
-        for (VectorCommand cmd : vp.getCommandList())
+        int total = vp.getCommandCount();
+        VectorPart.Cursor cmd = vp.cursor();
+        while (cmd.next())
         {
           pl.taskChanged(this, "Vector Part");
           pl.progressChanged(this, (100 * i++) / total);
@@ -534,8 +537,8 @@ public class K40NanoDriver extends LaserCutter
 
     void send()
     {
-      queue.add(builder.toString());
-      builder.delete(0, builder.length());
+      queue.add(builder);
+      builder.setLength(0);
     }
 
     void home()
@@ -1252,11 +1255,17 @@ public class K40NanoDriver extends LaserCutter
 
   }
 
+  /**
+   * Packs the encoded commands into packets. Every complete packet goes to
+   * the USB pipeline right away, which sends it while the next ones are
+   * encoded. The pipeline holds only a few packets, so the encoder waits
+   * when the device falls behind and memory stays bounded.
+   */
   public class K40Queue
   {
 
-    final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
-    private final StringBuilder buffer = new StringBuilder();
+    private final byte[] packet = new byte[PacketPipeline.PAYLOAD_LENGTH];
+    private int length = 0;
     BaseUsb usb;
 
     public void open()
@@ -1278,16 +1287,53 @@ public class K40NanoDriver extends LaserCutter
       usb = null;
     }
 
-    private void pad_buffer()
+    private void append(byte b)
     {
-      int len = K40Usb.PAYLOAD_LENGTH;
-      int pad = (len - (buffer.length() % len)) % len;
-      buffer.append("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFF".subSequence(0, pad));
+      packet[length++] = b;
+      if (length == packet.length)
+      {
+        usb.send_packet(packet);
+        length = 0;
+      }
     }
 
-    public void add(String element)
+    private void pad_packet()
     {
-      queue.add(element);
+      while (length != 0)
+      {
+        append((byte) 'F');
+      }
+    }
+
+    /**
+     * Elements ending with a newline are padded to whole packets, elements
+     * ending with "-\n" also wait for the device to finish.
+     */
+    public void add(CharSequence element)
+    {
+      int end = element.length();
+      boolean wait = end >= 2 && element.charAt(end - 2) == '-' && element.charAt(end - 1) == '\n';
+      boolean pad = end >= 1 && element.charAt(end - 1) == '\n';
+      if (wait)
+      {
+        end -= 2;
+      }
+      else if (pad)
+      {
+        end -= 1;
+      }
+      for (int i = 0; i < end; i++)
+      {
+        append((byte) element.charAt(i));
+      }
+      if (pad)
+      {
+        pad_packet();
+      }
+      if (wait)
+      {
+        usb.wait_for_finish();
+      }
     }
 
     void add_wait()
@@ -1295,49 +1341,11 @@ public class K40NanoDriver extends LaserCutter
       add("-\n");
     }
 
+    /**
+     * Nothing left to do: packets are sent as soon as they are complete.
+     */
     public void execute()
     {
-      while (true)
-      {
-        boolean wait = false;
-        while (!queue.isEmpty())
-        {
-          String element = queue.poll();
-          if (element.endsWith("-\n"))
-          {
-            buffer.append(element.subSequence(0, element.length() - 2));
-            pad_buffer();
-            wait = true;
-            break;
-          }
-          else if (element.endsWith("\n"))
-          {
-            buffer.append(element.subSequence(0, element.length() - 1));
-            pad_buffer();
-          }
-          else
-          {
-            buffer.append(element);
-          }
-        } //moved as much of the queue to the buffer as we could.
-        while (buffer.length() >= K40Usb.PAYLOAD_LENGTH)
-        {
-          if (usb != null)
-          {
-            usb.wait_for_ok();
-            usb.send_packet(buffer.subSequence(0, K40Usb.PAYLOAD_LENGTH));
-            buffer.delete(0, K40Usb.PAYLOAD_LENGTH);
-          }
-        } //all sendable packets sent.
-        if (wait)
-        {
-          usb.wait_for_finish();
-        }
-        if (queue.isEmpty())
-        {
-          break; //We finished.
-        }
-      }
     }
   }
 
@@ -1348,34 +1356,30 @@ public class K40NanoDriver extends LaserCutter
 
     void close();
 
-    void wait_for_ok();
+    /**
+     * Queues a packet of PAYLOAD_LENGTH bytes. Returns as soon as the packet
+     * is prepared, it is sent in the background and the array can be reused.
+     */
+    void send_packet(byte[] payload);
 
+    /**
+     * Waits until all queued packets are sent and the device has finished.
+     */
     void wait_for_finish();
-
-    void send_packet(CharSequence s);
   }
 
-  public class K40Usb implements BaseUsb
+  /**
+   * Keeps a small ring of prepared packets (header, payload, CRC) and sends
+   * them from one long-lived thread, which also does all the status polling.
+   * While a packet is transferred the following ones are prepared.
+   */
+  public abstract static class PacketPipeline implements BaseUsb
   {
 
-    public static final int K40VENDERID = 0x1A86;
-    public static final int K40PRODUCTID = 0x5512;
-
-    public static final byte K40_ENDPOINT_WRITE = (byte) 0x02; //0x02  EP 2 OUT
-    public static final byte K40_ENDPOINT_READ = (byte) 0x82; //0x82  EP 2 IN
-    public static final byte K40_ENDPOINT_READ_I = (byte) 0x81; //0x81  EP 1 IN
-
     public static final int PAYLOAD_LENGTH = 30;
-
-    private final IntBuffer transfered = IntBuffer.allocate(1);
-    private final ByteBuffer request_status = ByteBuffer.allocateDirect(1);
-    private final ByteBuffer packet = ByteBuffer.allocateDirect(34);
-
-    private Context context = null;
-    private Device device = null;
-    private DeviceHandle handle = null;
-    private boolean kernel_detached = false;
-    private int interface_number = 0;
+    public static final int PACKET_LENGTH = 34;
+    public static final int RING_SIZE = 8;
+    public static final int POLL_INTERVAL = 100;
 
     public static final int STATUS_OK = 206;
     public static final int STATUS_PACKET_REJECTED = 207;
@@ -1386,15 +1390,6 @@ public class K40NanoDriver extends LaserCutter
 
     public static final int STATUS_DEVICE_ERROR = -1;
 
-    public int byte_0 = 0;
-    public int status = 0;
-    public int byte_2 = 0;
-    public int byte_3 = 0;
-    public int byte_4 = 0;
-    public int byte_5 = 0;
-
-    public int recovery = 0;
-
     /**
      * ******************
      * CRC function via: License: 2-clause "simplified" BSD license Copyright
@@ -1402,7 +1397,7 @@ public class K40NanoDriver extends LaserCutter
      * https://lentz.com.au/blog/calculating-crc-with-a-tiny-32-entry-lookup-table
      * *******************
      */
-    final int[] CRC_TABLE = new int[]
+    static final int[] CRC_TABLE = new int[]
     {
       0x00, 0x5E, 0xBC, 0xE2, 0x61, 0x3F, 0xDD, 0x83,
       0xC2, 0x9C, 0x7E, 0x20, 0xA3, 0xFD, 0x1F, 0x41,
@@ -1410,7 +1405,7 @@ public class K40NanoDriver extends LaserCutter
       0x8C, 0x11, 0xAF, 0x32, 0xCA, 0x57, 0xE9, 0x74
     };
 
-    private byte crc(ByteBuffer line)
+    static byte crc(ByteBuffer line)
     {
       int crc = 0;
       for (int i = 2; i < 32; i++)
@@ -1422,260 +1417,585 @@ public class K40NanoDriver extends LaserCutter
     }
     //*//
 
-    @Override
-    public void open() throws LibUsbException
-    {
-      openContext();
-      findK40();
-      openHandle();
-      checkConfig();
-      detatchIfNeeded();
-      claimInterface();
-      LibUsb.controlTransfer(handle, (byte) 64, (byte) 177, (short) 258, (short) 0, packet, 50);
-    }
+    private final ByteBuffer[] ring = new ByteBuffer[RING_SIZE];
+    private final boolean[] finish = new boolean[RING_SIZE];
+    private int first = 0;
+    private int queued = 0;
+    private boolean closing = false;
+    private RuntimeException failure = null;
+    private Thread thread = null;
+    private long packetsSent = 0;
 
-    @Override
-    public void close() throws LibUsbException
+    //written by the pipeline thread, read by the caller
+    private volatile int status = 0;
+
+    protected PacketPipeline()
     {
-      releaseInterface();
-      closeHandle();
-      if (kernel_detached)
+      for (int i = 0; i < RING_SIZE; i++)
       {
-        reattachIfNeeded();
+        ring[i] = ByteBuffer.allocateDirect(PACKET_LENGTH);
       }
-      closeContext();
     }
 
-    public void error(String error)
+    protected abstract void openDevice();
+
+    protected abstract void closeDevice();
+
+    /**
+     * Sends the packet and returns the status the device reports right after.
+     */
+    protected abstract int transmit(ByteBuffer packet);
+
+    /**
+     * Requests and returns the status of the device.
+     */
+    protected abstract int poll();
+
+    @Override
+    public void open()
     {
-      //error message to be sent to GUI.
-      warnings.add(error);
-      System.out.println(error);
+      openDevice();
+      synchronized (this)
+      {
+        first = 0;
+        queued = 0;
+        closing = false;
+        failure = null;
+      }
+      thread = new Thread(this::run, "K40 USB");
+      thread.setDaemon(true);
+      thread.start();
     }
 
     @Override
-    public void send_packet(CharSequence cs)
+    public void close()
     {
-      if (cs.length() != PAYLOAD_LENGTH)
+      try
       {
-        throw new LibUsbException("Packets must be exactly " + PAYLOAD_LENGTH + " bytes.", 0);
+        flush();
       }
-      create_packet(cs);
-      int count = 0;
-      do
+      finally
       {
-        transmit_packet();
-        update_status();
-        if (count >= 50)
+        synchronized (this)
         {
-          throw new LibUsbException("All packets are being rejected.", 0);
+          closing = true;
+          notifyAll();
         }
-        count++;
+        //null if open() failed before the thread was started
+        if (thread != null)
+        {
+          boolean interrupted = false;
+          while (thread.isAlive())
+          {
+            try
+            {
+              thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+              //stop waiting for the device, but not while it is in use
+              interrupted = true;
+              thread.interrupt();
+            }
+          }
+          thread = null;
+          if (interrupted)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+        closeDevice();
       }
-      while (status == STATUS_PACKET_REJECTED);
     }
 
-    private void create_packet(CharSequence cs)
+    @Override
+    public void send_packet(byte[] payload)
     {
+      if (payload.length != PAYLOAD_LENGTH)
+      {
+        throw new LibUsbException("Packets must be exactly " + PAYLOAD_LENGTH + " bytes.", 0);
+      }
+      int slot = acquireSlot();
+      ByteBuffer packet = ring[slot];
       ((Buffer) packet).clear(); // Explicit cast for cross compatibility with JDK9
       packet.put((byte) 166);
       packet.put((byte) 0);
-      for (int i = 0; i < cs.length(); i++)
-      {
-        packet.put((byte) cs.charAt(i));
-      }
+      packet.put(payload);
       packet.put((byte) 166);
       packet.put(crc(packet));
+      commitSlot();
+    }
+
+    @Override
+    public void wait_for_finish()
+    {
+      finish[acquireSlot()] = true;
+      commitSlot();
+      flush();
+    }
 
+    /**
+     * Last status reported by the device.
+     */
+    public int getStatus()
+    {
+      return status;
     }
 
-    private void transmit_packet()
+    protected void setStatus(int status)
     {
-      ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
-      int results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, packet, transfered, 5000L);
-      if (results < LibUsb.SUCCESS)
+      this.status = status;
+    }
+
+    /**
+     * Number of packets the device accepted so far.
+     */
+    public synchronized long getPacketsSent()
+    {
+      return packetsSent;
+    }
+
+    private synchronized int acquireSlot()
+    {
+      while (queued == RING_SIZE && failure == null)
       {
-        throw new LibUsbException("Packet Send Failed.", results);
+        waitForSender();
       }
+      checkFailure();
+      return (first + queued) % RING_SIZE;
     }
 
-    private boolean waitForStatus()
+    private synchronized void commitSlot()
     {
-      recovery += 1;
-      Thread waitForStatusThread = new Thread()
+      queued++;
+      notifyAll();
+    }
+
+    /**
+     * Waits until all queued packets are sent.
+     */
+    public synchronized void flush()
+    {
+      while (queued > 0 && failure == null)
       {
-        int count = 0;
+        waitForSender();
+      }
+      checkFailure();
+    }
 
-        @Override
-        public void run()
+    private void waitForSender()
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new LibUsbException("Interrupted while sending.", LibUsb.ERROR_INTERRUPTED);
+      }
+    }
+
+    private void checkFailure()
+    {
+      if (failure != null)
+      {
+        throw failure;
+      }
+    }
+
+    private void run()
+    {
+      try
+      {
+        while (true)
         {
-          if (progress != null)
-          {
-            progress.taskChanged(this, "Waiting for USB");
-          }
-          int results = -1;
+          int slot;
           synchronized (this)
           {
-            while (results != LibUsb.SUCCESS)
+            while (queued == 0 && !closing)
             {
-              try
-              {
-                Thread.sleep(2000);
-              }
-              catch (InterruptedException ex)
-              {
-              }
-              ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
-              request_status.put(0, (byte) 160);
-              if (handle == null)
-              {
-                //If device not found and restart fails there might no longer be a handle.
-                //If this is the case, our state is ERROR_NO_DEVICE.
-                results = LibUsb.ERROR_NO_DEVICE;
-              }
-              else
-              {
-                results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, request_status, transfered, 5000L);
-              }
-              switch (results)
-              {
-                case LibUsb.ERROR_NO_DEVICE:
-                  error("Device was not found. Attempting restart.");
-                  try
-                  {
-                    close();
-                    open();
-                  }
-                  catch (LibUsbException e)
-                  {
-                    error("Restart failed because: " + e.getLocalizedMessage());
-                  }
-                  break;
-                case LibUsb.ERROR_PIPE:
-                  error("USB pipe failed.");
-                  break;
-                case LibUsb.ERROR_TIMEOUT:
-                  error("USB timedout.");
-                  break;
-                case LibUsb.SUCCESS:
-                  notify();
-                  progress.taskChanged(this, "Sending Job");
-
-                  return;// Okay, we're back on track.
-                }
-              count++;
-              if (count >= 15)
-              {
-                throw new LibUsbException("Failed to recover from USB errors.", LibUsb.ERROR_TIMEOUT);
-              }
-              if (progress != null)
-              {
-                progress.progressChanged(this, (100 * count) / 15);
-              }
+              wait();
             }
+            if (queued == 0)
+            {
+              return;
+            }
+            slot = first;
+          }
+          if (finish[slot])
+          {
+            finish[slot] = false;
+            awaitStatus(STATUS_FINISH);
+          }
+          else
+          {
+            sendPacket(ring[slot]);
+          }
+          synchronized (this)
+          {
+            first = (first + 1) % RING_SIZE;
+            queued--;
+            notifyAll();
           }
         }
-      };
-      waitForStatusThread.start();
-      synchronized (waitForStatusThread)
+      }
+      catch (RuntimeException e)
       {
+        synchronized (this)
+        {
+          failure = e;
+          notifyAll();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        synchronized (this)
+        {
+          failure = new LibUsbException("Interrupted while sending.", LibUsb.ERROR_INTERRUPTED);
+          notifyAll();
+        }
+      }
+    }
+
+    private void sendPacket(ByteBuffer packet)
+    {
+      //the status after the last packet tells whether the device takes the next one
+      if (status != STATUS_OK)
+      {
+        awaitStatus(STATUS_OK);
+      }
+      int count = 0;
+      do
+      {
+        if (count >= 50)
+        {
+          throw new LibUsbException("All packets are being rejected.", 0);
+        }
+        status = transmit(packet);
+        count++;
+      }
+      while (status == STATUS_PACKET_REJECTED);
+      synchronized (this)
+      {
+        packetsSent++;
+      }
+    }
+
+    /**
+     * Polls the device until it reports the given status.
+     * @throws LibUsbException if the thread is interrupted while waiting
+     */
+    protected void awaitStatus(int state)
+    {
+      while (true)
+      {
+        status = poll();
+        if (status == state)
+        {
+          break;
+        }
         try
         {
-          error("A problem getting status was detected. We will wait for the device.");
-          waitForStatusThread.wait();
+          Thread.sleep(POLL_INTERVAL);
         }
-        catch (Exception e)
+        catch (InterruptedException ex)
         {
-          return false;
+          Thread.currentThread().interrupt();
+          throw new LibUsbException("Interrupted while waiting for the device.", LibUsb.ERROR_INTERRUPTED);
         }
       }
-      //Status must have been successful.
-      return true;
     }
+  }
+
+  public class K40Usb extends PacketPipeline
+  {
+
+    public static final int K40VENDERID = 0x1A86;
+    public static final int K40PRODUCTID = 0x5512;
+
+    public static final byte K40_ENDPOINT_WRITE = (byte) 0x02; //0x02  EP 2 OUT
+    public static final byte K40_ENDPOINT_READ = (byte) 0x82; //0x82  EP 2 IN
+    public static final byte K40_ENDPOINT_READ_I = (byte) 0x81; //0x81  EP 1 IN
+
+    private static final int PACKET = 0;
+    private static final int REQUEST = 1;
+    private static final int READ = 2;
+
+    private final ByteBuffer request_status = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(6);
+    private final ByteBuffer control = ByteBuffer.allocateDirect(PACKET_LENGTH);
 
-    private void update_status()
+    //pre-allocated asynchronous transfers, only used from the pipeline thread
+    private final Transfer[] transfers = new Transfer[3];
+    private final int[] results = new int[3];
+    private int pending = 0;
+    private final TransferCallback completed = transfer ->
     {
-      int results;
+      int i = (Integer) transfer.userData();
+      results[i] = result(transfer.status());
+      pending--;
+      if (i == REQUEST && results[i] < LibUsb.SUCCESS && transfers[READ] != null)
+      {
+        //no answer is coming
+        LibUsb.cancelTransfer(transfers[READ]);
+      }
+    };
 
-      ((Buffer) transfered).clear(); // Explicit cast for cross compatibility with JDK9
-      request_status.put(0, (byte) 160);
-      results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_WRITE, request_status, transfered, 5000L);
-      //While the device is fast moving this packet will not be accepted.
+    private Context context = null;
+    private Device device = null;
+    private DeviceHandle handle = null;
+    private boolean kernel_detached = false;
+    private int interface_number = 0;
 
-      if (results < LibUsb.SUCCESS)
+    public int byte_0 = 0;
+    public int byte_2 = 0;
+    public int byte_3 = 0;
+    public int byte_4 = 0;
+    public int byte_5 = 0;
+
+    public int recovery = 0;
+
+    @Override
+    protected void openDevice() throws LibUsbException
+    {
+      openContext();
+      findK40();
+      openHandle();
+      checkConfig();
+      detatchIfNeeded();
+      claimInterface();
+      LibUsb.controlTransfer(handle, (byte) 64, (byte) 177, (short) 258, (short) 0, control, 50);
+      for (int i = 0; i < transfers.length; i++)
       {
-        boolean recoverable = waitForStatus(); //put in holding pattern.
-        if (!recoverable)
+        transfers[i] = LibUsb.allocTransfer();
+      }
+    }
+
+    @Override
+    protected void closeDevice() throws LibUsbException
+    {
+      for (int i = 0; i < transfers.length; i++)
+      {
+        if (transfers[i] != null)
         {
-          throw new LibUsbException("Status Request Failed.", results);
+          LibUsb.freeTransfer(transfers[i]);
+          transfers[i] = null;
         }
       }
-      if (handle == null)
+      releaseInterface();
+      closeHandle();
+      if (kernel_detached)
       {
-        throw new LibUsbException("Status Request Failed.", results);
+        reattachIfNeeded();
       }
-      ByteBuffer read_buffer = ByteBuffer.allocateDirect(6);
-      results = LibUsb.bulkTransfer(handle, K40_ENDPOINT_READ, read_buffer, transfered, 5000L);
-      if (results < LibUsb.SUCCESS)
+      closeContext();
+    }
+
+    public void error(String error)
+    {
+      //error message to be sent to GUI.
+      warnings.add(error);
+      System.out.println(error);
+    }
+
+    private int result(int transferStatus)
+    {
+      switch (transferStatus)
       {
-        //If the read failed, after successfully sending request, we say status is error.
-        status = STATUS_DEVICE_ERROR;
-        error("Status read failed. After 160 sent.");
-        return;
+        case LibUsb.TRANSFER_COMPLETED:
+          return LibUsb.SUCCESS;
+        case LibUsb.TRANSFER_TIMED_OUT:
+          return LibUsb.ERROR_TIMEOUT;
+        case LibUsb.TRANSFER_STALL:
+          return LibUsb.ERROR_PIPE;
+        case LibUsb.TRANSFER_NO_DEVICE:
+          return LibUsb.ERROR_NO_DEVICE;
+        case LibUsb.TRANSFER_OVERFLOW:
+          return LibUsb.ERROR_OVERFLOW;
+        case LibUsb.TRANSFER_CANCELLED:
+          return LibUsb.ERROR_INTERRUPTED;
+        default:
+          return LibUsb.ERROR_IO;
       }
+    }
 
-      if (transfered.get(0) == 6)
+    /**
+     * Submits a bulk transfer behind the ones already submitted. The result
+     * is in results[i] once complete() returned.
+     */
+    private void submit(int i, byte endpoint, ByteBuffer buffer)
+    {
+      LibUsb.fillBulkTransfer(transfers[i], handle, endpoint, buffer, completed, i, 5000L);
+      results[i] = LibUsb.submitTransfer(transfers[i]);
+      if (results[i] == LibUsb.SUCCESS)
       {
-        int next_0 = read_buffer.get(0) & 0xFF;
-        int next_1 = read_buffer.get(1) & 0xFF;
-        int next_2 = read_buffer.get(2) & 0xFF;
-        int next_3 = read_buffer.get(3) & 0xFF;
-        int next_4 = read_buffer.get(4) & 0xFF;
-        int next_5 = read_buffer.get(5) & 0xFF;
+        pending++;
+      }
+    }
 
-        /*
-        //Other than byte 1 being status these aren't known. They change
-        //sometimes, but what they mean is somewhat mysterious.
-        System.out.println(String.format("%d %d %d %d %d %d", next_0, next_1, next_2, next_3, next_4, next_5));
-         */
-        byte_0 = next_0;
-        status = next_1;
-        byte_2 = next_2;
-        byte_3 = next_3;
-        byte_4 = next_4;
-        byte_5 = next_5;
+    /**
+     * Handles USB events until all submitted transfers are done.
+     */
+    private void complete()
+    {
+      while (pending > 0)
+      {
+        int r = LibUsb.handleEventsTimeout(context, 500000);
+        if (r < LibUsb.SUCCESS && r != LibUsb.ERROR_INTERRUPTED)
+        {
+          throw new LibUsbException("Handling USB events failed.", r);
+        }
+      }
+    }
+
+    private void submitStatusRequest()
+    {
+      request_status.put(0, (byte) 160);
+      submit(REQUEST, K40_ENDPOINT_WRITE, request_status);
+      if (results[REQUEST] == LibUsb.SUCCESS)
+      {
+        submit(READ, K40_ENDPOINT_READ, read_buffer);
+      }
+      else
+      {
+        results[READ] = results[REQUEST];
       }
     }
 
     @Override
-    public void wait_for_finish()
+    protected int transmit(ByteBuffer packet)
     {
-      wait(STATUS_FINISH);
+      submit(PACKET, K40_ENDPOINT_WRITE, packet);
+      if (results[PACKET] == LibUsb.SUCCESS)
+      {
+        //queued right behind the packet, no round trip in between
+        submitStatusRequest();
+      }
+      complete();
+      if (results[PACKET] < LibUsb.SUCCESS)
+      {
+        throw new LibUsbException("Packet Send Failed.", results[PACKET]);
+      }
+      return readStatus();
     }
 
     @Override
-    public void wait_for_ok()
+    protected int poll()
     {
-      wait(STATUS_OK);
+      submitStatusRequest();
+      complete();
+      return readStatus();
     }
 
-    public void wait(int state)
+    private int readStatus()
     {
-      while (true)
+      //While the device is fast moving the status request will not be accepted.
+      if (results[REQUEST] < LibUsb.SUCCESS)
       {
-        update_status();
-        if (status == state)
+        int failed = results[REQUEST];
+        boolean recoverable = waitForStatus(); //put in holding pattern.
+        if (!recoverable || handle == null)
         {
-          break;
+          throw new LibUsbException("Status Request Failed.", failed);
         }
+        submit(READ, K40_ENDPOINT_READ, read_buffer);
+        complete();
+      }
+      if (results[READ] < LibUsb.SUCCESS)
+      {
+        //If the read failed, after successfully sending request, we say status is error.
+        error("Status read failed. After 160 sent.");
+        return STATUS_DEVICE_ERROR;
+      }
+
+      if (transfers[READ].actualLength() == 6)
+      {
+        /*
+        //Other than byte 1 being status these aren't known. They change
+        //sometimes, but what they mean is somewhat mysterious.
+        System.out.println(String.format("%d %d %d %d %d %d", next_0, next_1, next_2, next_3, next_4, next_5));
+         */
+        byte_0 = read_buffer.get(0) & 0xFF;
+        byte_2 = read_buffer.get(2) & 0xFF;
+        byte_3 = read_buffer.get(3) & 0xFF;
+        byte_4 = read_buffer.get(4) & 0xFF;
+        byte_5 = read_buffer.get(5) & 0xFF;
+        return read_buffer.get(1) & 0xFF;
+      }
+      return getStatus();
+    }
+
+    /**
+     * Retries the status request every 2 seconds until the device answers.
+     * Runs on the pipeline thread, nothing else is sent meanwhile.
+     */
+    private boolean waitForStatus()
+    {
+      recovery += 1;
+      error("A problem getting status was detected. We will wait for the device.");
+      if (progress != null)
+      {
+        progress.taskChanged(this, "Waiting for USB");
+      }
+      for (int count = 1; count <= 15; count++)
+      {
         try
         {
-          Thread.sleep(100);
+          Thread.sleep(2000);
         }
         catch (InterruptedException ex)
         {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+        int r;
+        if (handle == null)
+        {
+          //If device not found and restart fails there might no longer be a handle.
+          //If this is the case, our state is ERROR_NO_DEVICE.
+          r = LibUsb.ERROR_NO_DEVICE;
+        }
+        else
+        {
+          request_status.put(0, (byte) 160);
+          submit(REQUEST, K40_ENDPOINT_WRITE, request_status);
+          complete();
+          r = results[REQUEST];
+        }
+        switch (r)
+        {
+          case LibUsb.ERROR_NO_DEVICE:
+            error("Device was not found. Attempting restart.");
+            try
+            {
+              closeDevice();
+              openDevice();
+            }
+            catch (LibUsbException e)
+            {
+              error("Restart failed because: " + e.getLocalizedMessage());
+            }
+            break;
+          case LibUsb.ERROR_PIPE:
+            error("USB pipe failed.");
+            break;
+          case LibUsb.ERROR_TIMEOUT:
+            error("USB timedout.");
+            break;
+          case LibUsb.SUCCESS:
+            if (progress != null)
+            {
+              progress.taskChanged(this, "Sending Job");
+            }
+            return true;// Okay, we're back on track.
+        }
+        if (progress != null)
+        {
+          progress.progressChanged(this, (100 * count) / 15);
         }
       }
+      throw new LibUsbException("Failed to recover from USB errors.", LibUsb.ERROR_TIMEOUT);
     }
 
     //************************
@@ -1811,53 +2131,138 @@ public class K40NanoDriver extends LaserCutter
 
   }
 
-  public static class MockUsb implements BaseUsb
+  /**
+   * Pretends to be a K40: every transfer takes a fixed latency and every
+   * n-th packet can be rejected to exercise the retransmission.
+   */
+  public static class MockUsb extends PacketPipeline
   {
 
+    private final int latency;
+    private final int rejectEvery;
+    private final boolean verbose;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private long transmissions = 0;
+
+    public MockUsb()
+    {
+      this(100, 0, true);
+    }
+
+    /**
+     * @param latency milliseconds per transfer
+     * @param rejectEvery reject every n-th transmission, 0 for never
+     */
+    public MockUsb(int latency, int rejectEvery, boolean verbose)
+    {
+      this.latency = latency;
+      this.rejectEvery = rejectEvery;
+      this.verbose = verbose;
+    }
+
     private void sleep(int time)
     {
+      if (time <= 0)
+      {
+        return;
+      }
       try
       {
         Thread.sleep(time);
       }
       catch (InterruptedException ex)
       {
+        Thread.currentThread().interrupt();
       }
     }
 
     @Override
-    public void open()
+    protected void openDevice()
     {
-      sleep(1000);
-      System.out.println("Mock Usb Connected.");
+      sleep(10 * latency);
+      if (verbose)
+      {
+        System.out.println("Mock Usb Connected.");
+      }
     }
 
     @Override
-    public void close()
+    protected void closeDevice()
     {
-      sleep(1000);
-      System.out.println("Mock Usb Disconnected.");
+      sleep(10 * latency);
+      if (verbose)
+      {
+        System.out.println("Mock Usb Disconnected.");
+      }
     }
 
     @Override
-    public void wait_for_ok()
+    protected int transmit(ByteBuffer packet)
     {
-      sleep(20);
-      System.out.println("Mock Usb: OKAY!");
+      sleep(latency);
+      transmissions++;
+      if (packet.get(0) != (byte) 166 || packet.get(32) != (byte) 166 || packet.get(33) != crc(packet)
+        || (rejectEvery > 0 && transmissions % rejectEvery == 0))
+      {
+        return STATUS_PACKET_REJECTED;
+      }
+      byte[] payload = new byte[PAYLOAD_LENGTH];
+      for (int i = 0; i < PAYLOAD_LENGTH; i++)
+      {
+        payload[i] = packet.get(2 + i);
+      }
+      synchronized (received)
+      {
+        received.write(payload, 0, PAYLOAD_LENGTH);
+      }
+      if (verbose)
+      {
+        System.out.println("Mock Packet Sent:" + new String(payload, StandardCharsets.US_ASCII));
+      }
+      return STATUS_OK;
     }
 
     @Override
-    public void send_packet(CharSequence subSequence)
+    protected int poll()
     {
-      sleep(100);
-      System.out.println("Mock Packet Sent:" + subSequence);
+      sleep(latency / 5);
+      if (verbose)
+      {
+        System.out.println("Mock Usb: OKAY!");
+      }
+      return STATUS_OK;
     }
 
     @Override
-    public void wait_for_finish()
+    protected void awaitStatus(int state)
+    {
+      if (state == STATUS_FINISH)
+      {
+        sleep(40 * latency);
+        if (verbose)
+        {
+          System.out.println("Mock Usb: Finished");
+        }
+        setStatus(STATUS_FINISH);
+        return;
+      }
+      super.awaitStatus(state);
+    }
+
+    /**
+     * Payloads of all accepted packets in order.
+     */
+    public byte[] getReceived()
+    {
+      synchronized (received)
+      {
+        return received.toByteArray();
+      }
+    }
+
+    public long getTransmissions()
     {
-      sleep(4000);
-      System.out.println("Mock Usb: Finished");
+      return transmissions;
     }
 
   }
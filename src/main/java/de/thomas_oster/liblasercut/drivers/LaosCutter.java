@@ -28,7 +28,7 @@ import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.Raster3dPart;
 import de.thomas_oster.liblasercut.RasterPart;
 import de.thomas_oster.liblasercut.RasterizableJobPart;
-import de.thomas_oster.liblasercut.VectorCommand;
+import de.thomas_oster.liblasercut.VectorCommandVisitor;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Util;
@@ -316,23 +316,26 @@ public class LaosCutter extends LaserCutter
   {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
-    for (VectorCommand cmd : vp.getCommandList())
+    vp.forEachCommand(new VectorCommandVisitor<RuntimeException>()
     {
-      switch (cmd.getType())
+      @Override
+      public void moveTo(double x, double y)
       {
-        case MOVETO:
-          move(out, cmd.getX(), cmd.getY(), resolution);
-          break;
-        case LINETO:
-          line(out, cmd.getX(), cmd.getY(), resolution);
-          break;
-        case SETPROPERTY:
-        {
-          this.setCurrentProperty(out, cmd.getProperty());
-          break;
-        }
+        move(out, x, y, resolution);
       }
-    }
+
+      @Override
+      public void lineTo(double x, double y)
+      {
+        line(out, x, y, resolution);
+      }
+
+      @Override
+      public void property(LaserProperty p)
+      {
+        setCurrentProperty(out, p);
+      }
+    });
     return result.toByteArray();
   }
 
@@ -502,34 +505,31 @@ public class LaosCutter extends LaserCutter
       lineStart.y += line;
       rp.getRasterLine(line, bytes);
       //remove heading zeroes
-      while (bytes.size() > 0 && bytes.get(0) == 0)
-      {
-        lineStart.x += 8;
-        bytes.remove(0);
-      }
+      lineStart.x += 8 * bytes.trimLeading((byte) 0);
       //remove trailing zeroes
-      while (bytes.size() > 0 && bytes.get(bytes.size()-1) == 0)
-      {
-        bytes.remove(bytes.size()-1);
-      }
+      bytes.trimTrailing((byte) 0);
       if (bytes.size() > 0)
       {
         //add space on the left side
         int space = (int) Util.mm2px(this.getAddSpacePerRasterLine(), resolution);
+        int pad = 0;
         while (space > 0 && lineStart.x >= 8)
         {
-          bytes.add(0, (byte) 0);
+          pad++;
           space -= 8;
           lineStart.x -=8;
         }
+        bytes.padFront(pad);
         //add space on the right side
         space = (int) Util.mm2px(this.getAddSpacePerRasterLine(), resolution);
         int max = (int) Util.mm2px(this.getBedWidth(), resolution);
-        while (space > 0 && lineStart.x+(8*bytes.size()) < max-8)
+        pad = 0;
+        while (space > 0 && lineStart.x+(8*(bytes.size()+pad)) < max-8)
         {
-          bytes.add((byte) 0);
+          pad++;
           space -= 8;
         }
+        bytes.padBack(pad);
         if (dirRight)
         {
           //move to the first point of the line
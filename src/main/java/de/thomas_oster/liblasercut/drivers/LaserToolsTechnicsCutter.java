@@ -29,7 +29,6 @@ import de.thomas_oster.liblasercut.ProgressListenerDummy;
 import de.thomas_oster.liblasercut.Raster3dPart;
 import de.thomas_oster.liblasercut.RasterPart;
 import de.thomas_oster.liblasercut.RasterizableJobPart;
-import de.thomas_oster.liblasercut.VectorCommand;
 import static de.thomas_oster.liblasercut.VectorCommand.CmdType;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Circle;
@@ -477,7 +476,8 @@ public class LaserToolsTechnicsCutter extends LaserCutter
       prescalingY = Math.abs((double) yPxToDeviceCoordinate(10, 1, 1, true, true, true) / yPxToDeviceCoordinate(10, 1, 1, true, true, false));
     }
     double cuttingTime = 0;
-    for (VectorCommand cmd : vp.getCommandList())
+    VectorPart.Cursor cmd = vp.cursor();
+    while (cmd.next())
     {
       if (cmd.getType() == CmdType.LINETO)
       {
@@ -1794,16 +1794,9 @@ public class LaserToolsTechnicsCutter extends LaserCutter
       rp.getRasterLine(line, bytes);
 
       //remove heading zeroes
-      while (bytes.size() > 0 && bytes.get(0) == 0)
-      {
-        lineStart.x += pixelsPerByte;
-        bytes.remove(0);
-      }
+      lineStart.x += pixelsPerByte * bytes.trimLeading((byte) 0);
       //remove trailing zeroes
-      while (bytes.size() > 0 && bytes.get(bytes.size() - 1) == 0)
-      {
-        bytes.remove(bytes.size() - 1);
-      }
+      bytes.trimTrailing((byte) 0);
 
       final double speedPercent = (double) (Float) rp.getLaserProperty().getProperty("speed");
       final int overscan = (int) Util.mm2px(this.getAddSpacePerRasterLine(speedPercent), resolution);
@@ -1824,20 +1817,24 @@ public class LaserToolsTechnicsCutter extends LaserCutter
         int space = overscan;
         // but not too much: there must still be space for the pixel offset.
         final double absOffset = Math.ceil(Math.abs(offsetPixelsDirRight));
+        int pad = 0;
         while (space > 0 && lineStart.x >= minX + absOffset + pixelsPerByte)
         {
-          bytes.add(0, (byte) 0);
+          pad++;
           space -= pixelsPerByte;
           lineStart.x -= pixelsPerByte;
         }
+        bytes.padFront(pad);
 
         //add space on the right side, similar to the left side
         space = overscan;
-        while (space > 0 && lineStart.x + absOffset + pixelsPerByte * bytes.size() < maxX - pixelsPerByte)
+        pad = 0;
+        while (space > 0 && lineStart.x + absOffset + pixelsPerByte * (bytes.size() + pad) < maxX - pixelsPerByte)
         {
-          bytes.add((byte) 0);
+          pad++;
           space -= pixelsPerByte;
         }
+        bytes.padBack(pad);
 
         // In extreme cases, the line covers (almost) the full laser bed width, even before adding space.
         // If a pixel offset is applied, then the line would start outside of the laser bed!
@@ -1868,59 +1865,81 @@ public class LaserToolsTechnicsCutter extends LaserCutter
   }
 
   final static int COMPRESS_MAGIC_CONSTANT = 0xC0;
+  // buffers for engraveBitmapLine(), reused for every line
+  private transient byte[] rasterLine = null;
+  private transient byte[] compressedLine = null;
 
+  /**
+   * Compress a list of bytes, see compressData(byte[], int, byte[])
+   */
   public static ByteArrayList compressData(ByteArrayList bytes)
   {
-    /*
-     Compressed data format:
-
-     Like the packbits format, but with COMPRESS_MAGIC_CONSTANT as the "magic constant" instead of 0x80.
-     (Therefore, we have a lower number of possible repetitions.)
+    byte[] compressed = new byte[maxCompressedLength(bytes.size())];
+    int length = compressData(bytes.toByteArray(null), bytes.size(), compressed);
+    ByteArrayList result = new ByteArrayList(length);
+    for (int i = 0; i < length; i++)
+    {
+      result.add(compressed[i]);
+    }
+    return result;
+  }
 
-     Note that COMPRESS_MAGIC_CONSTANT=0xC0 can be changed to something else, it is set by the command 1B 43 C0.
+  /**
+   * Upper bound for the length of compressData() output: a single byte
+   * may need an escape byte, a run of n >= 2 bytes needs only two.
+   */
+  static int maxCompressedLength(int length)
+  {
+    return 2 * length;
+  }
 
-     see decompressData() for a decoding routine, which should be enough for a definition.
-     */
-    ByteArrayList compressed = new ByteArrayList(bytes.size() / 16);
+  /**
+   * Compress the first length bytes of data.
+   *
+   * Compressed data format:
+   *
+   * Like the packbits format, but with COMPRESS_MAGIC_CONSTANT as the "magic constant" instead of 0x80.
+   * (Therefore, we have a lower number of possible repetitions.)
+   *
+   * Note that COMPRESS_MAGIC_CONSTANT=0xC0 can be changed to something else, it is set by the command 1B 43 C0.
+   *
+   * see decompressData() for a decoding routine, which should be enough for a definition.
+   *
+   * @param compressed output, at least maxCompressedLength(length) bytes
+   * @return number of bytes written to compressed
+   */
+  static int compressData(byte[] data, int length, byte[] compressed)
+  {
+    final int maxRunlength = 0xFF - COMPRESS_MAGIC_CONSTANT;
+    int n = 0;
     int i = 0;
-    while (i < bytes.size())
+    while (i < length)
     {
-      byte currentByte = bytes.get(i);
+      byte currentByte = data[i];
       // is the current byte repeated?
       int runlength = 1;
-      int maxRunlength = 0xFF - COMPRESS_MAGIC_CONSTANT;
-      while (i + runlength < bytes.size() && runlength < maxRunlength)
+      while (i + runlength < length && runlength < maxRunlength && data[i + runlength] == currentByte)
       {
-        if (currentByte == bytes.get(i + runlength))
-        {
-          runlength++;
-        }
-        else
-        {
-          break;
-        }
+        runlength++;
       }
       if (runlength == 1)
       {
-        int value = currentByte & 0xFF; // cast to unsigned (java thinks the byte is signed!)
-        if (value >= COMPRESS_MAGIC_CONSTANT)
+        if ((currentByte & 0xFF) >= COMPRESS_MAGIC_CONSTANT) // cast to unsigned (java thinks the byte is signed!)
         {
           // escape uncompressed data ("repeat 1 times")
-          compressed.add((byte) (COMPRESS_MAGIC_CONSTANT + 1));
+          compressed[n++] = (byte) (COMPRESS_MAGIC_CONSTANT + 1);
         }
-        compressed.add(currentByte);
+        compressed[n++] = currentByte;
       }
       else
       {
-        myAssert(runlength + COMPRESS_MAGIC_CONSTANT <= 0xFF);
         // "repeat n times"
-        compressed.add((byte) (COMPRESS_MAGIC_CONSTANT + runlength));
-        compressed.add(currentByte);
+        compressed[n++] = (byte) (COMPRESS_MAGIC_CONSTANT + runlength);
+        compressed[n++] = currentByte;
       }
       i += runlength;
     }
-    myAssert(decompressData(compressed).equals(bytes));
-    return compressed;
+    return n;
   }
 
   // somehow, "assert" has no effect, so we use this:
@@ -2002,17 +2021,20 @@ public class LaserToolsTechnicsCutter extends LaserCutter
     }
     int bitsPerPixel = 8 / pixelsPerByte;
     bytes.leftShiftBits((int) (-pixelOffset * bitsPerPixel));
-    ByteArrayList compressed = compressData(bytes);
+    int length = bytes.size();
+    rasterLine = bytes.toByteArray(rasterLine);
+    if (compressedLine == null || compressedLine.length < maxCompressedLength(length))
+    {
+      compressedLine = new byte[maxCompressedLength(length)];
+    }
+    int compressedLength = compressData(rasterLine, length, compressedLine);
 
     // length
-    writeU32(out, compressed.size() + 8);
+    writeU32(out, compressedLength + 8);
     // X, Y
     sendCoordinate(out, (int) (lineStart.x + (dirLeftToRight ? 0 : (bytes.size() * pixelsPerByte))), (int) lineStart.y, resolution, 1, false);
     // data (length-8 bytes)
-    for (byte b : compressed)
-    {
-      out.write(b);
-    }
+    out.write(compressedLine, 0, compressedLength);
     // TODO: this time estimate doesn't include the travel time to the start point
     // TODO make the following parameters configurable
     final double engraveSpeedVersusCutSpeed = 6.4; // Factor between full engrave speed and full cut speed.
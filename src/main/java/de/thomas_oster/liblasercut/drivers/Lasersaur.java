@@ -26,7 +26,6 @@ import de.thomas_oster.liblasercut.LaserProperty;
 import de.thomas_oster.liblasercut.ProgressListener;
 import de.thomas_oster.liblasercut.ProgressListenerDummy;
 import de.thomas_oster.liblasercut.RasterizableJobPart;
-import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
 import purejavacomm.CommPort;
@@ -162,7 +161,8 @@ public class Lasersaur extends LaserCutter {
   private byte[] generateVectorGCode(VectorPart vp, double resolution) throws UnsupportedEncodingException {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     PrintStream out = new PrintStream(result, true, StandardCharsets.US_ASCII);
-    for (VectorCommand cmd : vp.getCommandList()) {
+    VectorPart.Cursor cmd = vp.cursor();
+    while (cmd.next()) {
       switch (cmd.getType()) {
         case MOVETO:
           double x = cmd.getX();
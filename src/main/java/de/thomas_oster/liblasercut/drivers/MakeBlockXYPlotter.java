@@ -232,8 +232,9 @@ public class MakeBlockXYPlotter extends LaserCutter
   private void generateVectorGCode(VectorPart vp, double resolution, ProgressListener pl, int startProgress, int maxProgress) throws UnsupportedEncodingException, Exception {
     int i = 0;
     int progress;
-    int max = vp.getCommandList().length;
-    for (VectorCommand cmd : vp.getCommandList()) {
+    int max = vp.getCommandCount();
+    VectorPart.Cursor cmd = vp.cursor();
+    while (cmd.next()) {
       switch (cmd.getType()) {
         case MOVETO:
           double x = cmd.getX();
@@ -83,6 +83,20 @@ public class Marlin extends GenericGcodeDriver {
     return result.toArray(new String[0]);
   }
   
+  /**
+   * Size of Marlin's serial receive buffer. Lines sent ahead must fit into
+   * it in addition to the line count of the send window.
+   */
+  protected static final int RX_BUFFER_SIZE = 127;
+
+  /**
+   * Lines Marlin prints on its own, which are not an answer to a sent line
+   */
+  private static boolean isStatusLine(String line)
+  {
+    return line.startsWith("echo:") || line.startsWith("busy:");
+  }
+
   /**
    * Waits for the Identification line and returns null if it's alright
    * Otherwise it returns the wrong line
@@ -93,9 +107,9 @@ public class Marlin extends GenericGcodeDriver {
     if (getIdentificationLine() != null && getIdentificationLine().length() > 0)
     {
       String line = waitForLine();
-        if (line.startsWith(getIdentificationLine()))
+        if (line != null && line.startsWith(getIdentificationLine()))
         {//we received the identification line ("start"), now we have to skip the rest of Marlin's dump
-          while(!(waitForLine().startsWith("echo:SD")))
+          while ((line = waitForLine()) != null && !line.startsWith("echo:SD"))
           {
            //do nothing and wait until Marlin has dumped all of the settings
           }
@@ -105,6 +119,30 @@ public class Marlin extends GenericGcodeDriver {
     return null;
   }
 
+  /**
+   * Skips Marlin's echo and busy messages while waiting for "ok"
+   */
+  @Override
+  protected String waitForResponse() throws IOException
+  {
+    String line = waitForLine();
+    while (line != null && isStatusLine(line))
+    {
+      line = waitForLine();
+    }
+    return line;
+  }
+
+  @Override
+  protected GcodeSendWindow createSendWindow()
+  {
+    if (getSendWindowLines() <= 1)
+    {
+      return null;
+    }
+    return new GcodeSendWindow(out, this::waitForResponse, getSendWindowLines(), RX_BUFFER_SIZE);
+  }
+
   @Override
   public String getModelName()
   {
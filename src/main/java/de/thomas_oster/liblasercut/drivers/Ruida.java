@@ -27,7 +27,6 @@ package de.thomas_oster.liblasercut.drivers;
 import de.thomas_oster.liblasercut.*;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Util;
-import de.thomas_oster.liblasercut.VectorCommand.CmdType;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStreamReader;
 import java.io.DataOutputStream;
@@ -81,6 +80,7 @@ public class Ruida extends LaserCutter
   protected static final String SETTING_HOST = "IP/Hostname";
   protected static final String SETTING_COMPORT = "USB device";
   protected static final String SETTING_SERIAL_TIMEOUT = "Milliseconds to wait for response";
+  protected static final String SETTING_UDP_WINDOW = "UDP packets in flight (1 = wait for each ACK)";
   protected static final String SETTING_FILE_EXPORT_PATH = "Path to save exported code";
   protected static final String SETTING_UPLOAD_METHOD = "Upload method";
   protected static final String UPLOAD_METHOD_FILE = "File";
@@ -99,6 +99,58 @@ public class Ruida extends LaserCutter
 
   protected static final String[] uploadMethodList = {UPLOAD_METHOD_FILE, UPLOAD_METHOD_IP, UPLOAD_METHOD_SERIAL};
 
+  /* opcodes, scrambled by ByteStream */
+  // bounding box of the job
+  private static final byte[] BOUNDING_BOX_MIN = ByteStream.opcode("E703");
+  private static final byte[] BOUNDING_BOX_MAX = ByteStream.opcode("E707");
+  private static final byte[] BOUNDING_BOX_MIN_2 = ByteStream.opcode("E750");
+  private static final byte[] BOUNDING_BOX_MAX_2 = ByteStream.opcode("E751");
+  private static final byte[] ARRAY_SETTINGS = ByteStream.opcode("E7040001000100000000000000000000");
+  private static final byte[] ARRAY_END = ByteStream.opcode("E70500");
+  // moves, relative values are limited to 8.191 mm
+  private static final byte[] CUT_ABSOLUTE = ByteStream.opcode("A8");
+  private static final byte[] MOVE_ABSOLUTE = ByteStream.opcode("88");
+  private static final byte[] CUT_VERTICAL = ByteStream.opcode("AB");
+  private static final byte[] MOVE_VERTICAL = ByteStream.opcode("8B");
+  private static final byte[] CUT_HORIZONTAL = ByteStream.opcode("AA");
+  private static final byte[] MOVE_HORIZONTAL = ByteStream.opcode("8A");
+  private static final byte[] CUT_RELATIVE = ByteStream.opcode("A9");
+  private static final byte[] MOVE_RELATIVE = ByteStream.opcode("89");
+  // job structure
+  private static final byte[] IDENTIFY = ByteStream.opcode("DA000004");
+  private static final byte[] UPLOAD_FOLLOWS = ByteStream.opcode("D812");
+  private static final byte[] MAGIC_88 = ByteStream.opcode("F0");
+  private static final byte[] PREP_FILENAME = ByteStream.opcode("E802");
+  private static final byte[] SET_FILENAME = ByteStream.opcode("E701");
+  private static final byte[] START = ByteStream.opcode("F10200");
+  private static final byte[] LIGHT_RED = ByteStream.opcode("D800");
+  private static final byte[] FEEDING = ByteStream.opcode("E706");
+  private static final byte[] LAYER_COUNT = ByteStream.opcode("CA22");
+  private static final byte[] LAYER_TOP_LEFT = ByteStream.opcode("E752");
+  private static final byte[] LAYER_BOTTOM_RIGHT = ByteStream.opcode("E753");
+  private static final byte[] LAYER_TOP_LEFT_2 = ByteStream.opcode("E761");
+  private static final byte[] LAYER_BOTTOM_RIGHT_2 = ByteStream.opcode("E762");
+  private static final byte[] WORK_INTERVAL = ByteStream.opcode("DA010620");
+  private static final byte[] STOP = ByteStream.opcode("E700");
+  private static final byte[] EOF = ByteStream.opcode("D7");
+  // laser and axis settings
+  private static final byte[] AXIS_VELOCITY = ByteStream.opcode("c903");
+  private static final byte[] MOVE_Z = ByteStream.opcode("800B");
+  private static final byte[] PROCESSING_MODE = ByteStream.opcode("ca01");
+  private static final byte[] START_LAYER = ByteStream.opcode("ca02");
+  private static final byte[] BLOW_ON = ByteStream.opcode("ca0113");
+  private static final byte[] SPEED = ByteStream.opcode("c902");
+  private static final byte[] MIN_POWER = ByteStream.opcode("c601");
+  private static final byte[] MAX_POWER = ByteStream.opcode("c602");
+  private static final byte[] VECTOR_MODE_1 = ByteStream.opcode("ca030f");
+  private static final byte[] VECTOR_MODE_2 = ByteStream.opcode("ca1000");
+  private static final byte[] LAYER_MIN_POWER = ByteStream.opcode("c631");
+  private static final byte[] LAYER_MAX_POWER = ByteStream.opcode("c632");
+  private static final byte[] LAYER_SPEED = ByteStream.opcode("c904");
+  private static final byte[] LAYER_FREQUENCY = ByteStream.opcode("c660");
+  private static final byte[] LAYER_COLOR = ByteStream.opcode("ca06");
+  private static final byte[] LAYER_MODE = ByteStream.opcode("ca41");
+
   private transient ByteStream stream;
   private transient InputStreamReader in;
   private transient PrintStream out;
@@ -278,12 +330,12 @@ public class Ruida extends LaserCutter
     }
 
     /* bounding box */
-    stream.hex("E703").absoluteMM(minX).absoluteMM(minY);
-    stream.hex("E707").absoluteMM(maxX).absoluteMM(maxY);
-    stream.hex("E750").absoluteMM(minX).absoluteMM(minY);
-    stream.hex("E751").absoluteMM(maxX).absoluteMM(maxY);
-    stream.hex("E7040001000100000000000000000000");
-    stream.hex("E70500");
+    stream.bytes(BOUNDING_BOX_MIN).absoluteMM(minX).absoluteMM(minY);
+    stream.bytes(BOUNDING_BOX_MAX).absoluteMM(maxX).absoluteMM(maxY);
+    stream.bytes(BOUNDING_BOX_MIN_2).absoluteMM(minX).absoluteMM(minY);
+    stream.bytes(BOUNDING_BOX_MAX_2).absoluteMM(maxX).absoluteMM(maxY);
+    stream.bytes(ARRAY_SETTINGS);
+    stream.bytes(ARRAY_END);
   }
 
 
@@ -326,35 +378,35 @@ public class Ruida extends LaserCutter
 
     if (as_absolute) {
       if (as_cut) {
-        stream.hex("A8").absoluteMM(x_mm).absoluteMM(y_mm);  // cut to x,y
+        stream.bytes(CUT_ABSOLUTE).absoluteMM(x_mm).absoluteMM(y_mm);  // cut to x,y
       }
       else { // as_move
-        stream.hex("88").absoluteMM(x_mm).absoluteMM(y_mm);  // move to x,y
+        stream.bytes(MOVE_ABSOLUTE).absoluteMM(x_mm).absoluteMM(y_mm);  // move to x,y
       }
     }
     else { // relative
       if (dx == 0.0) {
         if (as_cut) {
-          stream.hex("AB").relativeSignedMM(dy);  // cut vertical to y
+          stream.bytes(CUT_VERTICAL).relativeSignedMM(dy);  // cut vertical to y
         }
         else { // as_move
-          stream.hex("8B").relativeSignedMM(dy);  // move vertical to y
+          stream.bytes(MOVE_VERTICAL).relativeSignedMM(dy);  // move vertical to y
         }
       }
       else if (dy == 0.0) {
         if (as_cut) {
-          stream.hex("AA").relativeSignedMM(dx);  // cut horizontal to y
+          stream.bytes(CUT_HORIZONTAL).relativeSignedMM(dx);  // cut horizontal to y
         }
         else { // as_move
-          stream.hex("8A").relativeSignedMM(dx);  // move horizontal to y
+          stream.bytes(MOVE_HORIZONTAL).relativeSignedMM(dx);  // move horizontal to y
         }
       }
       else {
         if (as_cut) {
-          stream.hex("A9").relativeSignedMM(dx).relativeSignedMM(dy); // cut relative to x, y
+          stream.bytes(CUT_RELATIVE).relativeSignedMM(dx).relativeSignedMM(dy); // cut relative to x, y
         }
         else { // as_move
-          stream.hex("89").relativeSignedMM(dx).relativeSignedMM(dy); // move relative to x, y
+          stream.bytes(MOVE_RELATIVE).relativeSignedMM(dx).relativeSignedMM(dy); // move relative to x, y
         }
       }
     }
@@ -364,34 +416,34 @@ public class Ruida extends LaserCutter
   private transient float currentMaxPower = 0.0f;
   private transient float currentSpeed = 0;
 
-  private float cmd_absoluteMM(String cmd, float old_val, float new_val) throws IOException
+  private float cmd_absoluteMM(byte[] cmd, float old_val, float new_val) throws IOException
   {
     if (old_val != new_val) {
-      stream.hex(cmd).absoluteMM((int)new_val);
+      stream.bytes(cmd).absoluteMM((int)new_val);
     }
     return new_val;
   }
 
-  private float cmd_percent(String cmd, float old_val, float new_val) throws IOException
+  private float cmd_percent(byte[] cmd, float old_val, float new_val) throws IOException
   {
     if (old_val != new_val) {
-      stream.hex(cmd).percent((int)new_val);
+      stream.bytes(cmd).percent((int)new_val);
     }
     return new_val;
   }
 
-  private float cmd_layer_absoluteMM(String cmd, int layer, float old_val, float new_val) throws IOException
+  private float cmd_layer_absoluteMM(byte[] cmd, int layer, float old_val, float new_val) throws IOException
   {
     if (old_val != new_val) {
-      stream.hex(cmd).byteint(layer).absoluteMM((int)new_val);
+      stream.bytes(cmd).byteint(layer).absoluteMM((int)new_val);
     }
     return new_val;
   }
 
-  private float cmd_layer_percent(String cmd, int layer, float old_val, float new_val) throws IOException
+  private float cmd_layer_percent(byte[] cmd, int layer, float old_val, float new_val) throws IOException
   {
     if (old_val != new_val) {
-      stream.hex(cmd).byteint(layer).percent((int)new_val);
+      stream.bytes(cmd).byteint(layer).percent((int)new_val);
     }
     return new_val;
   }
@@ -455,7 +507,7 @@ public class Ruida extends LaserCutter
       {
         throw new IOException("IP/Hostname must be set to upload via IP method");
       }
-      out = new PrintStream(new UdpStream(getHost()));
+      out = new PrintStream(new UdpStream(getHost(), getUdpWindow()));
       in = null;
     }
     else if (UPLOAD_METHOD_SERIAL.equals(uploadMethod))
@@ -583,7 +635,8 @@ public class Ruida extends LaserCutter
       stream = new ByteStream(out, (byte)0x88); // 0x11, 0x38
       if (UPLOAD_METHOD_SERIAL.equals(uploadMethod)) {
         char[] inbuf = new char[16];
-        stream.hex("DA000004"); // identify
+        stream.bytes(IDENTIFY); // identify
+        stream.flush();
         in.read(inbuf);
       }
     }
@@ -593,27 +646,24 @@ public class Ruida extends LaserCutter
     }
 
     /* upload follows */
-    stream.hex("D812");
+    stream.bytes(UPLOAD_FOLLOWS);
     /* magic 88 */
-    stream.hex("F0");
+    stream.bytes(MAGIC_88);
     /* PrepFilename, SetFilename, <filename>, 00 */
-    stream.hex("E802").hex("E701").string(job.getTitle()).hex("00");
+    stream.bytes(PREP_FILENAME).bytes(SET_FILENAME).string(job.getTitle()).byteint(0);
     /* start */
-    stream.hex("F10200");
+    stream.bytes(START);
     /* light red */
-    stream.hex("D800");
+    stream.bytes(LIGHT_RED);
     /* feeding x, y */
-    stream.hex("E706").absoluteMM(job.getStartX()).absoluteMM(job.getStartY());
+    stream.bytes(FEEDING).absoluteMM(job.getStartX()).absoluteMM(job.getStartY());
 
     find_and_write_bounding_box(job);
 
     int part_number = 0;
 
     // layer count
-    stream.hex("CA22").byteint(job.getParts().size() - 1);
-
-    boolean first_prop = true;
-    boolean first_vector = true;
+    stream.bytes(LAYER_COUNT).byteint(job.getParts().size() - 1);
 
     for (JobPart p : job.getParts())
     {
@@ -622,127 +672,136 @@ public class Ruida extends LaserCutter
       if ((p instanceof RasterPart) || (p instanceof Raster3dPart))
       {
         engrave = true;
-        p = convertRasterizableToVectorPart((RasterizableJobPart)p, job, getUseBidirectionalRastering(), true, true);
+        // generated while writing, so big rasters never exist as a whole VectorPart
+        p = convertRasterizableToVectorCommands((RasterizableJobPart)p, job, getUseBidirectionalRastering(), true, true);
       }
       /* FALLTHRU */
-      if (p instanceof VectorPart)
+      if (p instanceof VectorCommandSource)
       {
         double top_left_x = Util.px2mm(p.getMinX(), p.getDPI());
         double top_left_y = Util.px2mm(p.getMinY(), p.getDPI());
         double bottom_right_x = Util.px2mm(p.getMaxX(), p.getDPI());
         double bottom_right_y = Util.px2mm(p.getMaxY(), p.getDPI());
         /* write dimensions */
-        stream.hex("E752").byteint(part_number).absoluteMM(top_left_x).absoluteMM(top_left_y);
-        stream.hex("E753").byteint(part_number).absoluteMM(bottom_right_x).absoluteMM(bottom_right_y);
-        stream.hex("E761").byteint(part_number).absoluteMM(top_left_x).absoluteMM(top_left_y);
-        stream.hex("E762").byteint(part_number).absoluteMM(bottom_right_x).absoluteMM(bottom_right_y);  
-
-        VectorPart vp = (VectorPart) p;
-          
-        //iterate over command list
-        for (VectorCommand cmd : vp.getCommandList())
-        {
-          //There are three types of commands: MOVETO, LINETO and SETPROPERTY
-          switch (cmd.getType())
-          {
-            case LINETO:
-            case MOVETO:
-            {
-              /**
-               * Move the laserhead (laser on) from the current position to the x/y position of this command.
-               */
-              if (first_vector) {
-                stream.hex("ca01").byteint(engrave ? 1 : 0); // processing mode (00: cut, 01: bidirectional x-sweep, 02: unidirectional x-sweep)
-                stream.hex("ca02").byteint(part_number); // start_layer
-                stream.hex("ca0113"); // blow on
-                stream.hex("c902").absoluteMM((int)currentSpeed);
-                // power for laser #1
-                stream.hex("c601").percent((int)currentMinPower);
-                stream.hex("c602").percent((int)currentMaxPower);
-
-                /* start vector mode */
-                stream.hex("ca030f");
-                stream.hex("ca1000");
-              }
-
-              vector(cmd.getX(), cmd.getY(), p.getDPI(), cmd.getType() == CmdType.LINETO, engrave);
-
-              if (first_vector) {
-                first_vector = false;
-              }
-              break;
-            }
-            case SETPROPERTY:
-            {
-              LaserProperty pr = cmd.getProperty();
-              FloatMinMaxPowerSpeedFocusFrequencyProperty prop = (FloatMinMaxPowerSpeedFocusFrequencyProperty) pr;
-              float focus = prop.getFocus();
-              if (first_prop) {
-                first_prop = false;
-                currentMinPower = cmd_layer_percent("c631", part_number, currentMinPower, prop.getMinPower());
-                currentMaxPower = cmd_layer_percent("c632", part_number, currentMaxPower, prop.getPower());
-                  // prop speed is in %, ruida speed is in mm/s (0..1000)
-                currentSpeed = cmd_layer_absoluteMM("c904", part_number, currentSpeed, prop.getSpeed() * getMaxVectorCutSpeed() / 100);
-
-                // negative focus is not applicable on the test device (uses 6442s)
-                if (focus <= 0) {
-                  focus = 0;
-                }
-
-                // configure axis velocity, affects move speed of Z axis
-                stream.hex("c903").absoluteMM(5);
-                // move Z axis to desired focus valueu
-                // the value depends on the device
-                // on an OMTech Polar, for instance, focus needs to be set to 17 - <thickness>
-                // for instance, for a 3mm thick material, one needs to configure a focus of 14.0
-                stream.hex("800B").absoluteMM(focus);
-
-                // frequency
-                stream.hex("c660").byteint(part_number).hex("00").longint(prop.getFrequency());
-                // color - red for now
-                long color = (0 << 16) + (0 << 8) + 100;; //(normalizeColor(this.blue) << 16) + (normalizeColor(this.green) << 8) + normalizeColor(this.red);
-                stream.hex("ca06").byteint(part_number).longint(color);
-                // CA 41
-                stream.hex("ca41").byteint(part_number).byteint(engrave ? 2 : 0); // processing mode (00: cut, 02: bidirectional x-sweep, 01: unidirectional x-sweep)
-              }
-              else {
-                currentMinPower = cmd_percent("c601", currentMinPower, prop.getMinPower());
-                currentMaxPower = cmd_percent("c602", currentMaxPower, prop.getPower());
-                  // prop speed is in %, ruida speed is in mm/s (0..1000)
-                currentSpeed = cmd_absoluteMM("c902", currentSpeed, prop.getSpeed() * getMaxVectorCutSpeed() / 100);
-              }
-              break;
-            }
-            default:
-            {
-              System.out.println("*** Ruida unknown vector part(" + cmd.getType() + ")");
-            }
-          }
-        }
+        stream.bytes(LAYER_TOP_LEFT).byteint(part_number).absoluteMM(top_left_x).absoluteMM(top_left_y);
+        stream.bytes(LAYER_BOTTOM_RIGHT).byteint(part_number).absoluteMM(bottom_right_x).absoluteMM(bottom_right_y);
+        stream.bytes(LAYER_TOP_LEFT_2).byteint(part_number).absoluteMM(top_left_x).absoluteMM(top_left_y);
+        stream.bytes(LAYER_BOTTOM_RIGHT_2).byteint(part_number).absoluteMM(bottom_right_x).absoluteMM(bottom_right_y);  
+
+        writeVectorCommands((VectorCommandSource) p, part_number, engrave);
       }
 
       part_number++;
-      first_prop = true;
-      first_vector = true;
       currentMinPower = -1;
       currentMaxPower = -1;
       currentSpeed = -1;
     }
 
     // configure axis velocity, affects move speed of Z axis
-    stream.hex("c903").absoluteMM(5);
+    stream.bytes(AXIS_VELOCITY).absoluteMM(5);
     // move Z axis back to 0
-    stream.hex("800B").absoluteMM(0);
+    stream.bytes(MOVE_Z).absoluteMM(0);
 
     /* work interval */
-    stream.hex("DA010620").longint(travel_distance).longint(travel_distance);
+    stream.bytes(WORK_INTERVAL).longint(travel_distance).longint(travel_distance);
     /* stop */
-    stream.hex("E700");
+    stream.bytes(STOP);
     /* eof */
-    stream.hex("D7");
+    stream.bytes(EOF);
+    stream.flush();
 //    pl.progressChanged(this, 100);
   } /* sendJob */
 
+  /**
+   * Writes the commands of one layer.
+   * The first property sets the layer parameters, the first move starts the layer.
+   */
+  private void writeVectorCommands(VectorCommandSource vp, int part_number, boolean engrave) throws IOException
+  {
+    double dpi = vp.getDPI();
+    vp.forEachCommand(new VectorCommandVisitor<IOException>()
+    {
+      private boolean first_prop = true;
+      private boolean first_vector = true;
+
+      /**
+       * Move the laserhead (laser on for lines) from the current position to the x/y position.
+       */
+      @Override
+      public void moveTo(double x, double y) throws IOException
+      {
+        move(x, y, false);
+      }
+
+      @Override
+      public void lineTo(double x, double y) throws IOException
+      {
+        move(x, y, true);
+      }
+
+      private void move(double x, double y, boolean as_cut) throws IOException
+      {
+        if (first_vector) {
+          stream.bytes(PROCESSING_MODE).byteint(engrave ? 1 : 0); // processing mode (00: cut, 01: bidirectional x-sweep, 02: unidirectional x-sweep)
+          stream.bytes(START_LAYER).byteint(part_number); // start_layer
+          stream.bytes(BLOW_ON); // blow on
+          stream.bytes(SPEED).absoluteMM((int)currentSpeed);
+          // power for laser #1
+          stream.bytes(MIN_POWER).percent((int)currentMinPower);
+          stream.bytes(MAX_POWER).percent((int)currentMaxPower);
+
+          /* start vector mode */
+          stream.bytes(VECTOR_MODE_1);
+          stream.bytes(VECTOR_MODE_2);
+        }
+
+        vector(x, y, dpi, as_cut, engrave);
+        first_vector = false;
+      }
+
+      @Override
+      public void property(LaserProperty pr) throws IOException
+      {
+        FloatMinMaxPowerSpeedFocusFrequencyProperty prop = (FloatMinMaxPowerSpeedFocusFrequencyProperty) pr;
+        float focus = prop.getFocus();
+        if (first_prop) {
+          first_prop = false;
+          currentMinPower = cmd_layer_percent(LAYER_MIN_POWER, part_number, currentMinPower, prop.getMinPower());
+          currentMaxPower = cmd_layer_percent(LAYER_MAX_POWER, part_number, currentMaxPower, prop.getPower());
+            // prop speed is in %, ruida speed is in mm/s (0..1000)
+          currentSpeed = cmd_layer_absoluteMM(LAYER_SPEED, part_number, currentSpeed, prop.getSpeed() * getMaxVectorCutSpeed() / 100);
+
+          // negative focus is not applicable on the test device (uses 6442s)
+          if (focus <= 0) {
+            focus = 0;
+          }
+
+          // configure axis velocity, affects move speed of Z axis
+          stream.bytes(AXIS_VELOCITY).absoluteMM(5);
+          // move Z axis to desired focus valueu
+          // the value depends on the device
+          // on an OMTech Polar, for instance, focus needs to be set to 17 - <thickness>
+          // for instance, for a 3mm thick material, one needs to configure a focus of 14.0
+          stream.bytes(MOVE_Z).absoluteMM(focus);
+
+          // frequency
+          stream.bytes(LAYER_FREQUENCY).byteint(part_number).byteint(0).longint(prop.getFrequency());
+          // color - red for now
+          long color = (0 << 16) + (0 << 8) + 100;; //(normalizeColor(this.blue) << 16) + (normalizeColor(this.green) << 8) + normalizeColor(this.red);
+          stream.bytes(LAYER_COLOR).byteint(part_number).longint(color);
+          // CA 41
+          stream.bytes(LAYER_MODE).byteint(part_number).byteint(engrave ? 2 : 0); // processing mode (00: cut, 02: bidirectional x-sweep, 01: unidirectional x-sweep)
+        }
+        else {
+          currentMinPower = cmd_percent(MIN_POWER, currentMinPower, prop.getMinPower());
+          currentMaxPower = cmd_percent(MAX_POWER, currentMaxPower, prop.getPower());
+            // prop speed is in %, ruida speed is in mm/s (0..1000)
+          currentSpeed = cmd_absoluteMM(SPEED, currentSpeed, prop.getSpeed() * getMaxVectorCutSpeed() / 100);
+        }
+      }
+    });
+  }
+
   @Override
   public void saveJob(OutputStream fileOutputStream, LaserJob job) throws IllegalJobException, Exception {
     this.currentMinPower = -1;
@@ -923,6 +982,22 @@ public class Ruida extends LaserCutter
     this.serialTimeout = serialTimeout;
   }
 
+  protected int udpWindow = 1;
+
+  /**
+   * How many UDP packets may be sent before waiting for the controller
+   * to acknowledge the first of them. 1 is the safe default.
+   */
+  public int getUdpWindow()
+  {
+    return Math.max(1, udpWindow);
+  }
+
+  public void setUdpWindow(int udpWindow)
+  {
+    this.udpWindow = Math.max(1, udpWindow);
+  }
+
   private String exportPath = "";
 
   public void setExportPath(String path)
@@ -973,6 +1048,7 @@ public class Ruida extends LaserCutter
     SETTING_HOST,
     SETTING_COMPORT,
     SETTING_SERIAL_TIMEOUT,
+    SETTING_UDP_WINDOW,
     SETTING_FILE_EXPORT_PATH,
     SETTING_MAX_VECTOR_CUT_SPEED,
     SETTING_MAX_VECTOR_MOVE_SPEED,
@@ -992,6 +1068,8 @@ public class Ruida extends LaserCutter
       return this.getComport();
     } else if (SETTING_SERIAL_TIMEOUT.equals(attribute)) {
       return this.getSerialTimeout();
+    } else if (SETTING_UDP_WINDOW.equals(attribute)) {
+      return this.getUdpWindow();
     } else if (SETTING_FILE_EXPORT_PATH.equals(attribute)) {
       return this.getExportPath();
     } else if (SETTING_UPLOAD_METHOD.equals(attribute)) {
@@ -1024,6 +1102,8 @@ public class Ruida extends LaserCutter
       this.setComport((String) value);
     } else if (SETTING_SERIAL_TIMEOUT.equals(attribute)) {
       this.setSerialTimeout((Integer) value);
+    } else if (SETTING_UDP_WINDOW.equals(attribute)) {
+      this.setUdpWindow((Integer) value);
     } else if (SETTING_FILE_EXPORT_PATH.equals(attribute)) {
       this.setExportPath((String) value);
     } else if (SETTING_UPLOAD_METHOD.equals(attribute)) {
@@ -1064,38 +1144,87 @@ public class Ruida extends LaserCutter
 
 class ByteStream
 {
+  private static final int BUFLEN = 8192;
+  private static final byte[][] scrambleTables = new byte[256][];
+
   private OutputStream out;
-  private byte magic;
+  private final byte[] scramble;
+  private final byte[] buffer = new byte[BUFLEN];
+  private int size = 0;
 
   public ByteStream(OutputStream out, byte magic) {
     this.out = out;
-    this.magic = magic;
+    this.scramble = scrambleTable(magic);
+  }
+
+  /**
+   * scrambled value of every byte for the given magic, computed once per magic
+   */
+  private static synchronized byte[] scrambleTable(byte magic) {
+    byte[] table = scrambleTables[magic & 0xff];
+    if (table == null) {
+      table = new byte[256];
+      for (int b = 0; b < 256; b++) {
+        int i = b;
+        i ^= (i >> 7) & 0xff;
+        i ^= (i << 7) & 0xff;
+        i ^= (i >> 7) & 0xff;
+        i ^= magic;
+        i = (i + 1) & 0xff;
+        table[b] = (byte)i;
+      }
+      scrambleTables[magic & 0xff] = table;
+    }
+    return table;
   }
 
   public void write(byte b) throws IOException {
-    int i = b & 0xff;
-    i ^= (i >> 7) & 0xff;
-    i ^= (i << 7) & 0xff;
-    i ^= (i >> 7) & 0xff;
-    i ^= this.magic;
-    i = (i + 1) & 0xff;
- 
-//      System.out.printf("write b 0x%02X, i %d, v 0x%02X\n", b, i, v);
-    out.write(i & 0xff);
+    if (size == BUFLEN) {
+      spill();
+    }
+    buffer[size++] = scramble[b & 0xff];
   }
 
   /**
-   * append hex string
-   *
-   * convert hex string to byte values
+   * hand the full buffer to the underlying stream without flushing it, so
+   * the UDP stream keeps filling whole datagrams and its window
+   */
+  private void spill() throws IOException {
+    out.write(buffer, 0, size);
+    size = 0;
+  }
+
+  /**
+   * write the buffered bytes to the underlying stream and flush it
+   */
+  public void flush() throws IOException {
+    spill();
+    out.flush();
+  }
+
+  /**
+   * convert hex string to byte values, meant for constants
    * https://stackoverflow.com/questions/11208479/how-do-i-initialize-a-byte-array-in-java
    */
-  public ByteStream hex(String s) throws IOException {
+  public static byte[] opcode(String s) {
     int len = s.length();
+    byte[] result = new byte[len / 2];
     for (int i = 0; i < len; i += 2) {
-      byte value = (byte)((Character.digit(s.charAt(i), 16) << 4)
+      result[i / 2] = (byte)((Character.digit(s.charAt(i), 16) << 4)
                            + Character.digit(s.charAt(i+1), 16));
-      write(value);
+    }
+    return result;
+  }
+
+  /**
+   * append bytes, usually an opcode
+   */
+  public ByteStream bytes(byte[] b) throws IOException {
+    if (size + b.length > BUFLEN) {
+      spill();
+    }
+    for (int i = 0; i < b.length; i++) {
+      buffer[size++] = scramble[b[i] & 0xff];
     }
     return this;
   }
@@ -1190,127 +1319,283 @@ class ByteStream
 }
 
 
+/**
+ * Sends the job to the controller via UDP.
+ *
+ * Every datagram carries up to MTU bytes prefixed with a 16 bit checksum and
+ * is answered with a single byte: 0xC6 (ACK) or 0x46 (checksum error). The
+ * answers carry no sequence number, so they are matched to the datagrams in
+ * the order they were sent.
+ *
+ * With a window of 1 every datagram waits for its answer, like RDWorks does.
+ * A larger window keeps that many datagrams in flight. If an answer takes
+ * much longer than the measured round trip time the controller is not
+ * keeping up, and the window is halved (down to 1) until answers are in time
+ * again. A datagram answered with a checksum error is sent again, but only
+ * if nothing was sent after it: the controller may already have accepted the
+ * following datagrams, so in that case the upload fails.
+ */
 class UdpStream extends OutputStream
 {
-  private Integer port = 80;
-  private String hostname = "";
-  private DatagramSocket socket;
-  private InetAddress address;
   public static final int NETWORK_TIMEOUT = 3000;
   public static final int SOURCE_PORT = 40200; // used by rdworks in Windows
   public static final int DEST_PORT = 50200; // fixed UDP port
   public static final int MTU = 998; // max data length per datagram (minus checksum)
-  public static final int BUFLEN = 4096;
+  public static final int MAX_RETRIES = 3; // resends of a datagram after checksum errors
+  private static final byte ACK = (byte)0xc6;
+  private static final byte NAK = (byte)0x46;
+  private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long MAX_RTO = TimeUnit.MILLISECONDS.toNanos(NETWORK_TIMEOUT);
+
+  private final DatagramSocket socket;
+  // ring of reusable datagrams, datagram n lives in slot n % packets.length
+  private final DatagramPacket[] packets;
+  private final long[] sentAt;
+  private final boolean[] resent;
+  private final DatagramPacket response = new DatagramPacket(new byte[MTU+2], MTU+2);
+  private int window; // current limit of datagrams in flight
+  private int timelyAcks = 0;
+  private long sent = 0; // datagrams sent, also the number of the one being filled
+  private long answered = 0;
+  private int fill = 2; // bytes in the datagram being filled, including the checksum
+  private int retries = 0;
+  private long srtt = -1;
+  private long rttvar = 0;
+  private boolean failed = false; // the controller did not accept the data, don't flush on close
 
-  byte[] receiveData = new byte[MTU+2];
-  byte[] buffer = new byte[BUFLEN];
-  int bsize = 0;
+  public UdpStream(String hostname) throws IOException
+  {
+    this(hostname, 1);
+  }
 
-  private int checksum(byte[] data, int start, int length)
+  public UdpStream(String hostname, int window) throws IOException
   {
-    int sum = 0;
-    for (int i = start; i < start+length; i++) {
-      sum += data[i] & 0xff; // unsigned !
-    }
-    return sum;
+    this(InetAddress.getByName(hostname), DEST_PORT, SOURCE_PORT, window);
   }
 
-  public UdpStream(String hostname) throws IOException
+  UdpStream(InetAddress address, int destPort, int sourcePort, int window) throws IOException
   {
-    this.hostname = hostname;
-    this.port = DEST_PORT;
-//    System.out.println("UdpStream(" + hostname + ", " + port + ")");
+    this.window = Math.max(1, window);
+    packets = new DatagramPacket[this.window];
+    sentAt = new long[this.window];
+    resent = new boolean[this.window];
+    for (int i = 0; i < packets.length; i++)
+    {
+      packets[i] = new DatagramPacket(new byte[MTU+2], MTU+2, address, destPort);
+    }
     try {
       socket = new DatagramSocket(null);
       socket.setReuseAddress(true); 	// allow to retry, after failure
-      socket.bind(new InetSocketAddress(SOURCE_PORT));
-      socket.setSoTimeout(NETWORK_TIMEOUT);
-      address = InetAddress.getByName(hostname);
+      socket.bind(new InetSocketAddress(sourcePort));
     }
     catch (BindException e) {
       throw new IOException(e.getMessage());
     }
   }
 
-  public void write(int i) throws IOException
+  private int slot(long datagram)
   {
-    if (bsize < BUFLEN) {
-      buffer[bsize] = (byte)i;
-      bsize = bsize + 1;
-    }
-    if (bsize >= BUFLEN) {
-      flushbuf();
+    return (int) (datagram % packets.length);
+  }
+
+  /**
+   * once a datagram was not accepted nothing may follow it, the controller
+   * would run the job with a hole in it
+   */
+  private void checkFailed() throws IOException
+  {
+    if (failed) {
+      throw new IOException("UdpStream failed, nothing more is sent");
     }
   }
 
-  private void flushbuf() throws IOException
+  @Override
+  public void write(int i) throws IOException
   {
-    write(buffer);
-    bsize = 0;
+    checkFailed();
+    packets[slot(sent)].getData()[fill++] = (byte)i;
+    if (fill == MTU+2) {
+      sendDatagram();
+    }
   }
 
-  public void write(byte[] data) throws IOException
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException
   {
-    int start = 0;
-    int l = data.length;
-    do {
-      int chunk = l - start;
-      if (chunk > MTU) {
-        chunk = MTU;
+    checkFailed();
+    while (len > 0) {
+      int chunk = Math.min(len, MTU+2 - fill);
+      System.arraycopy(data, off, packets[slot(sent)].getData(), fill, chunk);
+      fill += chunk;
+      off += chunk;
+      len -= chunk;
+      if (fill == MTU+2) {
+        sendDatagram();
       }
-      int chksum = checksum(data, start, chunk);
-      byte[] buf = new byte[2 + chunk];
-      buf[0] = (byte)((chksum & 0xff00) >> 8);
-      buf[1] = (byte)(chksum & 0xff);
-      System.arraycopy(data, start, buf, 2, chunk);
-//    System.out.println("UdpStream.write(buf " + buf.length + " bytes)");
-      send(buf);
-      start += chunk;
-    } while (start < l);
-  }
-
-  private void send(byte[] ary) throws IOException
-  {
-//    System.out.println("UdpStream.send(ary " + ary.length + " bytes)");
-    DatagramPacket packet = new DatagramPacket(ary, ary.length, address, port);
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-    socket.send(packet);
-    socket.setSoTimeout(NETWORK_TIMEOUT);
-    try {
-      socket.receive(receivePacket);
     }
-    catch (SocketTimeoutException e) {
-      System.out.println("IOException: UdpStream.send Response timeout in UdpStream");
-      throw new IOException("Response timeout in UdpStream");
+  }
+
+  private void sendDatagram() throws IOException
+  {
+    checkFailed();
+    int s = slot(sent);
+    byte[] buf = packets[s].getData();
+    int sum = 0;
+    for (int i = 2; i < fill; i++) {
+      sum += buf[i] & 0xff; // unsigned !
     }
-    int l = receivePacket.getLength();
-    if (l == 0) {
-      System.out.println("received nothing");
+    buf[0] = (byte)((sum & 0xff00) >> 8);
+    buf[1] = (byte)(sum & 0xff);
+    packets[s].setLength(fill);
+    resent[s] = false;
+    transmit(s);
+    sent++;
+    fill = 2;
+    while (sent - answered >= window) {
+      awaitAnswer();
     }
-    else if (l > 1) {
-      System.out.println(String.format("received %d bytes\n", l));
+  }
+
+  private void transmit(int s) throws IOException
+  {
+    sentAt[s] = System.nanoTime();
+    socket.send(packets[s]);
+  }
+
+  /**
+   * retransmission timeout as in RFC 6298, before the first sample the
+   * network timeout is used
+   */
+  private long rto()
+  {
+    if (srtt < 0) {
+      return MAX_RTO;
     }
-    else {
-      // l == 1
-      byte[] data = receivePacket.getData();
-      if (data[0] == (byte)0x46) {
-        throw new IOException("checksum error");
+    return Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + 4 * rttvar));
+  }
+
+  /**
+   * waits for the answer to the oldest datagram in flight
+   */
+  private void awaitAnswer() throws IOException
+  {
+    int s = slot(answered);
+    long deadline = sentAt[s] + MAX_RTO;
+    long slow = sentAt[s] + rto();
+    while (true) {
+      long now = System.nanoTime();
+      if (window > 1 && now >= slow) {
+        window = Math.max(1, window / 2);
+        timelyAcks = 0;
+        slow = now + rto();
+        continue;
       }
-      else if (data[0] == (byte)0xc6) {
-        // ACK
+      long wait = (window > 1 ? Math.min(slow, deadline) : deadline) - now;
+      if (wait <= 0) {
+        failed = true;
+        System.out.println("IOException: UdpStream.send Response timeout in UdpStream");
+        throw new IOException("Response timeout in UdpStream");
+      }
+      socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+      try {
+        socket.receive(response);
+      }
+      catch (SocketTimeoutException e) {
+        continue;
+      }
+      int l = response.getLength();
+      if (l == 1 && response.getData()[0] == NAK) {
+        failed = sent - answered > 1 || retries >= MAX_RETRIES;
+        if (sent - answered > 1) {
+          throw new IOException("checksum error, datagrams after it were already sent (use a UDP window of 1)");
+        }
+        if (++retries > MAX_RETRIES) {
+          throw new IOException("checksum error");
+        }
+        resent[s] = true;
+        transmit(s);
+        deadline = sentAt[s] + MAX_RTO;
+        slow = sentAt[s] + rto();
+        continue;
+      }
+      if (l == 0) {
+        System.out.println("received nothing");
+      }
+      else if (l > 1) {
+        System.out.println(String.format("received %d bytes\n", l));
+      }
+      else if (response.getData()[0] != ACK) {
+        System.out.println(String.format("unknown response %02x\n", response.getData()[0]));
+      }
+      acknowledged(s, System.nanoTime());
+      return;
+    }
+  }
+
+  private void acknowledged(int s, long now)
+  {
+    long rtt = now - sentAt[s];
+    boolean timely = rtt <= rto();
+    if (!resent[s]) { // Karn: no samples from resent datagrams
+      if (srtt < 0) {
+        srtt = rtt;
+        rttvar = rtt / 2;
       }
       else {
-        System.out.println(String.format("unknown response %02x\n", data[0]));
+        rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+        srtt = (7 * srtt + rtt) / 8;
       }
     }
+    if (timely && window < packets.length && ++timelyAcks >= window) {
+      window++;
+      timelyAcks = 0;
+    }
+    retries = 0;
+    answered++;
+  }
+
+  /**
+   * sends the partially filled datagram and waits until all are answered
+   */
+  @Override
+  public void flush() throws IOException
+  {
+    checkFailed();
+    if (fill > 2) {
+      sendDatagram();
+    }
+    while (answered < sent) {
+      awaitAnswer();
+    }
+  }
+
+  /**
+   * current limit of datagrams in flight
+   */
+  int getWindow()
+  {
+    return window;
   }
 
+  /**
+   * number of datagrams sent so far, not counting resends
+   */
+  long getSent()
+  {
+    return sent;
+  }
+
+  @Override
   public void close() throws IOException
   {
-    if (bsize > 0) {
-      flushbuf();
+    try {
+      if (!failed) {
+        flush();
+      }
+    }
+    finally {
+      socket.close();
     }
-    socket.close();
   }
 }
 
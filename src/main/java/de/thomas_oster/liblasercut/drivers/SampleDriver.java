@@ -26,7 +26,6 @@ import de.thomas_oster.liblasercut.LaserJob;
 import de.thomas_oster.liblasercut.LaserProperty;
 import de.thomas_oster.liblasercut.PowerSpeedFocusFrequencyProperty;
 import de.thomas_oster.liblasercut.ProgressListener;
-import de.thomas_oster.liblasercut.VectorCommand;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Util;
 import java.util.Arrays;
@@ -77,7 +76,8 @@ public class SampleDriver extends LaserCutter
         //so, we know it's a VectorPart. We cast it, so we get the real interface
         VectorPart vp = (VectorPart) p;
         //A VectorPart consists of a command List. So let's iterate over this list
-        for (VectorCommand cmd : vp.getCommandList())
+        VectorPart.Cursor cmd = vp.cursor();
+        while (cmd.next())
         {
           //There are three types of commands: MOVETO, LINETO and SETPROPERTY
           switch (cmd.getType())
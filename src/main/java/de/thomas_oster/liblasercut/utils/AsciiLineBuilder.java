@@ -0,0 +1,295 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reusable buffer for building one line of an ASCII machine language
+ * like G-Code, including fast number formatting.
+ *
+ * The numbers look exactly like the output of DecimalFormat and
+ * String.format in Locale.US, but are written without creating any
+ * objects. Values too close to a rounding boundary to decide them with
+ * double arithmetic are passed on to the JDK formatters.
+ *
+ * Not thread safe, every writer needs its own instance.
+ */
+public class AsciiLineBuilder
+{
+  /** Values with more digits than this take the slow path. */
+  private static final double MAX_FAST_VALUE = 1e15;
+
+  private static final long[] POWERS_OF_TEN = new long[16];
+  static
+  {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++)
+    {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private byte[] data = new byte[64];
+  private int length = 0;
+  private final byte[] digits = new byte[20];
+  private DecimalFormat decimalFormat;
+  private int decimalFormatDigits = -1;
+
+  public AsciiLineBuilder clear()
+  {
+    length = 0;
+    return this;
+  }
+
+  public int length()
+  {
+    return length;
+  }
+
+  public AsciiLineBuilder append(char c)
+  {
+    ensureCapacity(1);
+    data[length++] = (byte) (c < 128 ? c : '?');
+    return this;
+  }
+
+  /**
+   * Returns true if every character of s can be appended unchanged
+   */
+  public static boolean isAscii(String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      if (s.charAt(i) >= 128)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Appends the string. Characters which are not ASCII are replaced by '?',
+   * use isAscii() to check for them first.
+   */
+  public AsciiLineBuilder append(String s)
+  {
+    int n = s.length();
+    ensureCapacity(n);
+    for (int i = 0; i < n; i++)
+    {
+      char c = s.charAt(i);
+      data[length++] = (byte) (c < 128 ? c : '?');
+    }
+    return this;
+  }
+
+  /**
+   * Appends the value like String.valueOf(long)
+   */
+  public AsciiLineBuilder append(long value)
+  {
+    if (value == Long.MIN_VALUE)
+    {
+      return append(Long.toString(value));
+    }
+    if (value < 0)
+    {
+      append('-');
+      value = -value;
+    }
+    appendDigits(value, 1);
+    return this;
+  }
+
+  /**
+   * Appends the value like a DecimalFormat with pattern "###.##" and the given
+   * maximum number of fraction digits in Locale.US would: rounded half even,
+   * without trailing zeros in the fraction and without grouping.
+   */
+  public AsciiLineBuilder appendDecimal(double value, int maxFractionDigits)
+  {
+    long scaled = scale(value, maxFractionDigits);
+    if (scaled < 0)
+    {
+      if (decimalFormat == null)
+      {
+        decimalFormat = new DecimalFormat("###.##", DecimalFormatSymbols.getInstance(Locale.US));
+      }
+      if (decimalFormatDigits != maxFractionDigits)
+      {
+        decimalFormat.setMaximumFractionDigits(maxFractionDigits);
+        decimalFormatDigits = maxFractionDigits;
+      }
+      return append(decimalFormat.format(value));
+    }
+    appendSign(value);
+    long pow = POWERS_OF_TEN[maxFractionDigits];
+    appendDigits(scaled / pow, 1);
+    long fraction = scaled % pow;
+    if (fraction != 0)
+    {
+      int fractionDigits = maxFractionDigits;
+      while (fraction % 10 == 0)
+      {
+        fraction /= 10;
+        fractionDigits--;
+      }
+      append('.');
+      appendDigits(fraction, fractionDigits);
+    }
+    return this;
+  }
+
+  /**
+   * Appends the value like String.format(Locale.US, "%.Nf", value) with
+   * N = fractionDigits: rounded half up, with exactly N fraction digits.
+   */
+  public AsciiLineBuilder appendFixed(double value, int fractionDigits)
+  {
+    long scaled = scale(value, fractionDigits);
+    if (scaled < 0)
+    {
+      return append(String.format(Locale.US, "%." + fractionDigits + "f", value));
+    }
+    appendSign(value);
+    long pow = POWERS_OF_TEN[fractionDigits];
+    appendDigits(scaled / pow, 1);
+    if (fractionDigits > 0)
+    {
+      append('.');
+      appendDigits(scaled % pow, fractionDigits);
+    }
+    return this;
+  }
+
+  /**
+   * Removes every occurrence of the given character from the line.
+   */
+  public AsciiLineBuilder remove(char c)
+  {
+    int to = 0;
+    for (int i = 0; i < length; i++)
+    {
+      if (data[i] != c)
+      {
+        data[to++] = data[i];
+      }
+    }
+    length = to;
+    return this;
+  }
+
+  public void writeTo(OutputStream out) throws IOException
+  {
+    out.write(data, 0, length);
+  }
+
+  public byte[] toByteArray()
+  {
+    return Arrays.copyOf(data, length);
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(data, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Returns |value| * 10^fractionDigits rounded to a long, or -1 if that
+   * can not be decided safely with doubles and the JDK has to format the
+   * value.
+   */
+  private static long scale(double value, int fractionDigits)
+  {
+    if (fractionDigits < 0 || fractionDigits >= POWERS_OF_TEN.length)
+    {
+      return -1;
+    }
+    double abs = Math.abs(value) * POWERS_OF_TEN[fractionDigits];
+    if (!(abs < MAX_FAST_VALUE))
+    {
+      // also catches NaN and infinity
+      return -1;
+    }
+    double floor = Math.floor(abs);
+    double fraction = abs - floor;
+    // the product and the JDK's shortest decimal representation may both be
+    // a few ulps away from the exact value, so stay away from ties. Everywhere
+    // else half even and half up rounding agree.
+    if (Math.abs(fraction - 0.5) <= 8 * Math.ulp(abs))
+    {
+      return -1;
+    }
+    long result = (long) floor;
+    if (fraction > 0.5)
+    {
+      result++;
+    }
+    return result;
+  }
+
+  private void appendSign(double value)
+  {
+    // like the JDK formatters, keep the sign of -0.0 and of values which round to zero
+    if (Double.doubleToRawLongBits(value) < 0)
+    {
+      append('-');
+    }
+  }
+
+  /**
+   * Appends a non-negative value with at least minDigits digits
+   */
+  private void appendDigits(long value, int minDigits)
+  {
+    int n = 0;
+    do
+    {
+      digits[n++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    while (value != 0);
+    while (n < minDigits)
+    {
+      digits[n++] = '0';
+    }
+    ensureCapacity(n);
+    while (n > 0)
+    {
+      data[length++] = digits[--n];
+    }
+  }
+
+  private void ensureCapacity(int additional)
+  {
+    if (length + additional > data.length)
+    {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, length + additional));
+    }
+  }
+}
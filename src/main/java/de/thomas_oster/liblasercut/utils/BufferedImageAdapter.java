@@ -25,6 +25,7 @@ package de.thomas_oster.liblasercut.utils;
 import de.thomas_oster.liblasercut.GreyscaleRaster;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 
 /**
  *
@@ -33,9 +34,33 @@ import java.awt.image.BufferedImage;
 public class BufferedImageAdapter implements GreyscaleRaster
 {
 
+  /**
+   * contributions of each color channel to the luminance. Looking them up
+   * gives exactly the same doubles as computing 0.3 * r + 0.59 * g + 0.11 * b,
+   * so the result does not change by a single grey level.
+   */
+  private static final double[] LUMINANCE_RED = new double[256];
+  private static final double[] LUMINANCE_GREEN = new double[256];
+  private static final double[] LUMINANCE_BLUE = new double[256];
+
+  static
+  {
+    for (int i = 0; i < 256; i++)
+    {
+      LUMINANCE_RED[i] = 0.3 * i;
+      LUMINANCE_GREEN[i] = 0.59 * i;
+      LUMINANCE_BLUE[i] = 0.11 * i;
+    }
+  }
+
   private final BufferedImage img;
   private int colorShift = 0;
   private final boolean invertColors;
+  /**
+   * luminance for each possible pixel value of a TYPE_BYTE_GRAY image,
+   * which getRGB() would convert to sRGB first
+   */
+  private final int[] grayLuminance;
 
   public BufferedImageAdapter(BufferedImage img)
   {
@@ -46,6 +71,30 @@ public class BufferedImageAdapter implements GreyscaleRaster
   {
     this.img = img;
     this.invertColors = invertColors;
+    if (img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+    {
+      ColorModel cm = img.getColorModel();
+      grayLuminance = new int[256];
+      for (int i = 0; i < 256; i++)
+      {
+        grayLuminance[i] = luminance(cm.getRGB(new byte[]{(byte) i}));
+      }
+    }
+    else
+    {
+      grayLuminance = null;
+    }
+  }
+
+  private static int luminance(int rgb)
+  {
+    return (int) (LUMINANCE_RED[(rgb >> 16) & 0xff] + LUMINANCE_GREEN[(rgb >> 8) & 0xff] + LUMINANCE_BLUE[rgb & 0xff]);
+  }
+
+  private int toGreyScale(int luminance)
+  {
+    int value = colorShift + luminance;
+    return invertColors ? 255-Math.max(Math.min(value, 255), 0) : Math.max(Math.min(value, 255), 0);
   }
 
   public void setColorShift(int cs){
@@ -58,9 +107,52 @@ public class BufferedImageAdapter implements GreyscaleRaster
 
   public int getGreyScale(int x, int line)
   {
-    Color c = new Color(img.getRGB(x, line));
-    int value = colorShift+(int) (0.3 * c.getRed() + 0.59 * c.getGreen() + 0.11 * c.getBlue());
-    return invertColors ? 255-Math.max(Math.min(value, 255), 0) : Math.max(Math.min(value, 255), 0);
+    return toGreyScale(luminance(img.getRGB(x, line)));
+  }
+
+  /**
+   * Reads the row from the image raster in one call for the common image
+   * types instead of going through the color model pixel by pixel.
+   */
+  @Override
+  public void getGreyScaleRow(int y, int[] dst)
+  {
+    int width = img.getWidth();
+    switch (img.getType())
+    {
+      case BufferedImage.TYPE_BYTE_GRAY:
+      {
+        byte[] row = (byte[]) img.getRaster().getDataElements(0, y, width, 1, null);
+        for (int x = 0; x < width; x++)
+        {
+          dst[x] = toGreyScale(grayLuminance[row[x] & 0xff]);
+        }
+        break;
+      }
+      case BufferedImage.TYPE_INT_RGB:
+      case BufferedImage.TYPE_INT_ARGB:
+      {
+        // alpha is ignored, just like getGreyScale() does
+        int[] row = (int[]) img.getRaster().getDataElements(0, y, width, 1, null);
+        for (int x = 0; x < width; x++)
+        {
+          dst[x] = toGreyScale(luminance(row[x]));
+        }
+        break;
+      }
+      case BufferedImage.TYPE_3BYTE_BGR:
+      {
+        // the raster returns the samples in band order: red, green, blue
+        byte[] row = (byte[]) img.getRaster().getDataElements(0, y, width, 1, null);
+        for (int x = 0, i = 0; x < width; x++, i += 3)
+        {
+          dst[x] = toGreyScale((int) (LUMINANCE_RED[row[i] & 0xff] + LUMINANCE_GREEN[row[i + 1] & 0xff] + LUMINANCE_BLUE[row[i + 2] & 0xff]));
+        }
+        break;
+      }
+      default:
+        GreyscaleRaster.super.getGreyScaleRow(y, dst);
+    }
   }
 
   public void setGreyScale(int x, int y, int grey)
@@ -0,0 +1,93 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+/**
+ * Summed-area table (integral image) of a raster: the sum of the values
+ * in any rectangle is available in constant time after one pass over
+ * the raster.
+ *
+ * The sums are kept in ints and may wrap around for large rasters. This
+ * does not matter, because the sum of a rectangle is still exact as long
+ * as the result itself fits into an int.
+ */
+public class SummedAreaTable
+{
+  /**
+   * Supplies the values of one row of the raster.
+   */
+  public interface RowSource
+  {
+    void getRow(int y, int[] row);
+  }
+
+  private final int width;
+  private final int height;
+  // (width+1)*(height+1) entries, sums[y*(width+1)+x] is the sum of all values left of x and above y
+  private final int[] sums;
+
+  public SummedAreaTable(int width, int height, RowSource source)
+  {
+    this.width = width;
+    this.height = height;
+    int stride = width + 1;
+    sums = new int[stride * (height + 1)];
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++)
+    {
+      source.getRow(y, row);
+      int rowSum = 0;
+      int above = y * stride;
+      int current = above + stride;
+      for (int x = 0; x < width; x++)
+      {
+        rowSum += row[x];
+        sums[current + x + 1] = sums[above + x + 1] + rowSum;
+      }
+    }
+  }
+
+  public int getWidth()
+  {
+    return width;
+  }
+
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /**
+   * Sum of the values with x0 &lt;= x &lt; x1 and y0 &lt;= y &lt; y1.
+   * The rectangle is clipped to the raster, outside values count as 0.
+   */
+  public int sum(int x0, int y0, int x1, int y1)
+  {
+    x0 = Math.max(x0, 0);
+    y0 = Math.max(y0, 0);
+    x1 = Math.min(x1, width);
+    y1 = Math.min(y1, height);
+    if (x1 <= x0 || y1 <= y0)
+    {
+      return 0;
+    }
+    int stride = width + 1;
+    return sums[y1 * stride + x1] - sums[y0 * stride + x1] - sums[y1 * stride + x0] + sums[y0 * stride + x0];
+  }
+}
@@ -18,53 +18,420 @@
  */
 package de.thomas_oster.liblasercut.vectoroptimizers;
 
-import java.util.LinkedList;
+import de.thomas_oster.liblasercut.platform.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
- * This VectorOptimizer removes all duplicate (identical) Elements
- * and sorts the remaining (unique) elements with a NearestVectorOptimizer
+ * This VectorOptimizer removes all duplicate Elements
+ * and sorts the remaining (unique) elements with a NearestVectorOptimizer.
+ *
+ * Two Elements are duplicates if they have the same points (within
+ * getTolerance()), regardless of their direction and, for closed paths,
+ * of the start point. Of several duplicates, the first one is kept.
+ *
+ * Additionally, line segments that are collinear and (partially) overlap
+ * a previous segment are shortened or removed, so that no line is cut twice.
+ * Paths are split if a segment in the middle is removed.
+ *
+ * Both steps use hashing and take O(n) expected time.
+ * Laser properties are not compared.
  * @author René Bohne
  */
 public class DeleteDuplicatePathsOptimizer extends VectorOptimizer
 {
 
+  /**
+   * angular resolution of the hash for collinear segments (in rad)
+   */
+  private static final double ANGLE_BUCKET = 1e-3;
+  private static final int ANGLE_BUCKETS = (int) Math.ceil(Math.PI / ANGLE_BUCKET);
+
+  private double tolerance = 0.01;
+
+  /**
+   * Points closer than this distance (in pixels) are considered equal
+   */
+  public double getTolerance()
+  {
+    return tolerance;
+  }
+
+  public void setTolerance(double tolerance)
+  {
+    if (!(tolerance > 0))
+    {
+      throw new IllegalArgumentException("tolerance must be positive");
+    }
+    this.tolerance = tolerance;
+  }
+
   @Override
   protected List<Element> sort(List<Element> e)
   {
-    List<Element> result = new LinkedList<>();
     if (e.isEmpty())
     {
-      return result;
+      return new ArrayList<>();
+    }
+    List<Element> unique = removeOverlappingSegments(removeDuplicatePaths(e));
+    NearestVectorOptimizer vo = new NearestVectorOptimizer();
+    return vo.sort(unique);
+  }
+
+  /**
+   * Remove all Elements whose points equal those of a previous Element,
+   * in either direction.
+   */
+  List<Element> removeDuplicatePaths(List<Element> e)
+  {
+    List<Element> result = new ArrayList<>(e.size());
+    Set<PathKey> seen = new HashSet<>(e.size() * 2);
+    for (Element element : e)
+    {
+      if (seen.add(new PathKey(element, tolerance)))
+      {
+        result.add(element);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Hash key of a path: its quantised points in a canonical order, so that
+   * reversed paths (and rotated closed paths) have the same key.
+   */
+  private static class PathKey
+  {
+
+    // x0, y0, x1, y1, ...
+    private final long[] coordinates;
+    private final int hash;
+
+    PathKey(Element e, double tolerance)
+    {
+      List<Point> moves = e.getMoves();
+      long[] forward = new long[2 * (moves.size() + 1)];
+      forward[0] = Math.round(e.start.x / tolerance);
+      forward[1] = Math.round(e.start.y / tolerance);
+      for (int i = 0; i < moves.size(); i++)
+      {
+        forward[2 * i + 2] = Math.round(moves.get(i).x / tolerance);
+        forward[2 * i + 3] = Math.round(moves.get(i).y / tolerance);
+      }
+      int n = forward.length / 2;
+      boolean closed = n > 2 && forward[0] == forward[2 * n - 2] && forward[1] == forward[2 * n - 1];
+      coordinates = closed ? canonicalLoop(forward, n - 1) : canonicalLine(forward, n);
+      hash = Arrays.hashCode(coordinates);
+    }
+
+    /**
+     * the lexicographically smaller one of the points in forward or reverse order
+     */
+    private static long[] canonicalLine(long[] points, int n)
+    {
+      long[] reverse = new long[points.length];
+      for (int i = 0; i < n; i++)
+      {
+        reverse[2 * i] = points[2 * (n - 1 - i)];
+        reverse[2 * i + 1] = points[2 * (n - 1 - i) + 1];
+      }
+      return Arrays.compare(points, reverse) <= 0 ? points : reverse;
     }
-    
-    List<Element> doubleEntries = new LinkedList<>();
-    
-    for(int i=0;i<e.size();i++)
+
+    /**
+     * Closed path with n distinct points (the last point, which equals
+     * the first one, is omitted): lexicographically smallest sequence of
+     * all rotations that start at the smallest point, in both directions
+     */
+    private static long[] canonicalLoop(long[] points, int n)
     {
-      for(int j=0;j<e.size();j++)
+      int min = 0;
+      for (int i = 1; i < n; i++)
+      {
+        if (comparePoints(points, i, min) < 0)
+        {
+          min = i;
+        }
+      }
+      long[] best = null;
+      long[] candidate = new long[2 * n];
+      for (int start = 0; start < n; start++)
       {
-        if(i!=j)
+        if (comparePoints(points, start, min) != 0)
+        {
+          continue;
+        }
+        for (int direction : new int[] {1, -1})
         {
-         if(e.get(i).equals(e.get(j)))
-         {
-           if(!doubleEntries.contains(e.get(j)))
-           {
-            doubleEntries.add(e.get(i));
-           }
-         }
+          for (int i = 0; i < n; i++)
+          {
+            int p = Math.floorMod(start + direction * i, n);
+            candidate[2 * i] = points[2 * p];
+            candidate[2 * i + 1] = points[2 * p + 1];
+          }
+          if (best == null || Arrays.compare(candidate, best) < 0)
+          {
+            best = candidate.clone();
+          }
         }
       }
+      return best;
     }
-    
-    for(Element doubleEntry : doubleEntries)
+
+    private static int comparePoints(long[] points, int a, int b)
     {
-      e.remove(doubleEntry);
+      int result = Long.compare(points[2 * a], points[2 * b]);
+      return result != 0 ? result : Long.compare(points[2 * a + 1], points[2 * b + 1]);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof PathKey && hash == ((PathKey) o).hash && Arrays.equals(coordinates, ((PathKey) o).coordinates);
+    }
+  }
+
+  /**
+   * Shorten or remove segments that overlap a collinear segment which
+   * appeared before. Elements are split where segments are removed.
+   */
+  List<Element> removeOverlappingSegments(List<Element> e)
+  {
+    List<Element> result = new ArrayList<>(e.size());
+    Map<Long, List<Line>> lines = new HashMap<>();
+    List<double[]> pieces = new ArrayList<>();
+    for (Element element : e)
+    {
+      Element current = null;
+      boolean changed = false;
+      List<Element> split = new ArrayList<>();
+      Point last = element.start;
+      for (Point next : element.getMoves())
+      {
+        pieces.clear();
+        boolean kept = addSegment(lines, last, next, pieces);
+        if (!kept)
+        {
+          changed = true;
+        }
+        for (double[] piece : pieces)
+        {
+          Point from = new Point(piece[0], piece[1]);
+          Point to = new Point(piece[2], piece[3]);
+          if (current == null || !current.getEnd().equals(from))
+          {
+            current = new Element();
+            current.prop = element.prop;
+            current.start = from;
+            split.add(current);
+          }
+          current.addPoint(to);
+        }
+        last = next;
+      }
+      if (!changed)
+      {
+        // nothing removed, keep the original object
+        result.add(element);
+      }
+      else
+      {
+        result.addAll(split);
+      }
     }
-    
-    NearestVectorOptimizer vo = new NearestVectorOptimizer();
-    result = vo.sort(e);
-    
     return result;
   }
+
+  /**
+   * A line on which segments were found, with the intervals covered by them.
+   */
+  private static class Line
+  {
+
+    // point on the line
+    final double ox, oy;
+    // unit direction
+    final double ux, uy;
+    // covered intervals (start -> end), in units along the direction, disjoint
+    final TreeMap<Double, Double> covered = new TreeMap<>();
+
+    Line(double ox, double oy, double ux, double uy)
+    {
+      this.ox = ox;
+      this.oy = oy;
+      this.ux = ux;
+      this.uy = uy;
+    }
+
+    double distance(Point p)
+    {
+      return Math.abs(-uy * (p.x - ox) + ux * (p.y - oy));
+    }
+
+    double position(Point p)
+    {
+      return ux * (p.x - ox) + uy * (p.y - oy);
+    }
+  }
+
+  /**
+   * Add the segment from a to b to the collinear line it belongs to.
+   * The parts of the segment that were not covered before are added to
+   * pieces as {x1, y1, x2, y2}, in the direction from a to b.
+   * @return true if the segment was not covered at all (pieces contains
+   * exactly the segment a-b)
+   */
+  private boolean addSegment(Map<Long, List<Line>> lines, Point a, Point b, List<double[]> pieces)
+  {
+    double dx = b.x - a.x;
+    double dy = b.y - a.y;
+    double length = Math.sqrt(dx * dx + dy * dy);
+    if (length <= tolerance)
+    {
+      // too short for a direction, keep as it is
+      pieces.add(new double[] {a.x, a.y, b.x, b.y});
+      return true;
+    }
+    // canonical direction: angle in [0, pi)
+    double ux = dx / length;
+    double uy = dy / length;
+    if (uy < 0 || (uy == 0 && ux < 0))
+    {
+      ux = -ux;
+      uy = -uy;
+    }
+    double angle = Math.atan2(uy, ux);
+    int angleBucket = Math.min(ANGLE_BUCKETS - 1, (int) (angle / ANGLE_BUCKET));
+    double offset = -uy * a.x + ux * a.y;
+    Line line = findLine(lines, angleBucket, offset, a, b);
+    if (line == null)
+    {
+      line = new Line(a.x, a.y, ux, uy);
+      lines.computeIfAbsent(bucketKey(angleBucket, (long) Math.floor(offset / tolerance)), k -> new ArrayList<>()).add(line);
+    }
+    double ta = line.position(a);
+    double tb = line.position(b);
+    double from = Math.min(ta, tb);
+    double to = Math.max(ta, tb);
+
+    // uncovered parts of [from, to]
+    List<double[]> uncovered = new ArrayList<>(1);
+    double pos = from;
+    Map.Entry<Double, Double> entry = line.covered.floorEntry(from);
+    if (entry == null)
+    {
+      entry = line.covered.ceilingEntry(from);
+    }
+    while (entry != null && entry.getKey() < to)
+    {
+      if (entry.getKey() > pos)
+      {
+        uncovered.add(new double[] {pos, entry.getKey()});
+      }
+      pos = Math.max(pos, entry.getValue());
+      entry = line.covered.higherEntry(entry.getKey());
+    }
+    if (pos < to)
+    {
+      uncovered.add(new double[] {pos, to});
+    }
+
+    // merge [from, to] into the covered intervals
+    double mergedFrom = from;
+    double mergedTo = to;
+    Map.Entry<Double, Double> before = line.covered.floorEntry(from);
+    if (before != null && before.getValue() >= from)
+    {
+      mergedFrom = before.getKey();
+      mergedTo = Math.max(mergedTo, before.getValue());
+    }
+    Map<Double, Double> overlapping = line.covered.subMap(mergedFrom, true, to, true);
+    for (double end : overlapping.values())
+    {
+      mergedTo = Math.max(mergedTo, end);
+    }
+    overlapping.clear();
+    line.covered.put(mergedFrom, mergedTo);
+
+    if (uncovered.size() == 1 && uncovered.get(0)[0] == from && uncovered.get(0)[1] == to)
+    {
+      pieces.add(new double[] {a.x, a.y, b.x, b.y});
+      return true;
+    }
+    // output in the direction a -> b, dropping slivers
+    boolean reverse = ta > tb;
+    for (int i = 0; i < uncovered.size(); i++)
+    {
+      double[] interval = uncovered.get(reverse ? uncovered.size() - 1 - i : i);
+      if (interval[1] - interval[0] <= tolerance)
+      {
+        continue;
+      }
+      double s = reverse ? interval[1] : interval[0];
+      double t = reverse ? interval[0] : interval[1];
+      pieces.add(new double[] {
+        line.ox + s * line.ux, line.oy + s * line.uy,
+        line.ox + t * line.ux, line.oy + t * line.uy
+      });
+    }
+    return false;
+  }
+
+  /**
+   * Find an existing line within tolerance of the segment a-b, also looking
+   * into the neighboring hash buckets.
+   */
+  private Line findLine(Map<Long, List<Line>> lines, int angleBucket, double offset, Point a, Point b)
+  {
+    for (int da = -1; da <= 1; da++)
+    {
+      int bucket = angleBucket + da;
+      double o = offset;
+      // the direction flips when wrapping around at angle 0 / pi
+      if (bucket < 0)
+      {
+        bucket += ANGLE_BUCKETS;
+        o = -o;
+      }
+      else if (bucket >= ANGLE_BUCKETS)
+      {
+        bucket -= ANGLE_BUCKETS;
+        o = -o;
+      }
+      long offsetBucket = (long) Math.floor(o / tolerance);
+      for (long dOffset = -1; dOffset <= 1; dOffset++)
+      {
+        List<Line> candidates = lines.get(bucketKey(bucket, offsetBucket + dOffset));
+        if (candidates == null)
+        {
+          continue;
+        }
+        for (Line line : candidates)
+        {
+          if (line.distance(a) <= tolerance && line.distance(b) <= tolerance)
+          {
+            return line;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static long bucketKey(int angleBucket, long offsetBucket)
+  {
+    return offsetBucket * ANGLE_BUCKETS + angleBucket;
+  }
 }
@@ -0,0 +1,359 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.vectoroptimizers;
+
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer.Element;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the start and end points of a list of Elements, used to
+ * find the start/end point nearest to a given point without scanning all
+ * Elements.
+ *
+ * Elements are referenced by their index in the list given to the
+ * constructor. Removed elements are only marked as removed and are dropped
+ * from the grid cells when the cells are visited the next time.
+ *
+ * Ties are resolved exactly like a linear scan over the list would do:
+ * smallest distance first, then lowest element index, then start point
+ * before end point.
+ */
+class EndpointGrid
+{
+
+  /**
+   * average number of points per grid cell
+   */
+  private static final int POINTS_PER_CELL = 2;
+
+  // point i is the start (i even) or end (i odd) of element i/2
+  private final double[] px;
+  private final double[] py;
+  private final boolean[] removed;
+  private int remaining;
+  private int remainingPoints;
+
+  private final double minX;
+  private final double minY;
+  private final double width;
+  private final double height;
+  private double cellSize;
+  private int nx;
+  private int ny;
+  // cell c contains the points cellPoints[cellStart[c]] ... cellPoints[cellStart[c] + cellCount[c] - 1]
+  private int[] cellStart;
+  private int[] cellCount;
+  private int[] cellPoints;
+
+  private boolean nearestIsEnd;
+  // search result, see search()
+  private int[] foundPoint;
+  private double[] foundDistance;
+
+  EndpointGrid(List<Element> elements)
+  {
+    int n = elements.size();
+    px = new double[2 * n];
+    py = new double[2 * n];
+    removed = new boolean[n];
+    remaining = n;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    double minimumX = Double.POSITIVE_INFINITY;
+    double minimumY = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < n; i++)
+    {
+      Element e = elements.get(i);
+      Point start = e.start;
+      Point end = e.getEnd();
+      px[2 * i] = start.x;
+      py[2 * i] = start.y;
+      px[2 * i + 1] = end.x;
+      py[2 * i + 1] = end.y;
+      minimumX = Math.min(minimumX, Math.min(start.x, end.x));
+      minimumY = Math.min(minimumY, Math.min(start.y, end.y));
+      maxX = Math.max(maxX, Math.max(start.x, end.x));
+      maxY = Math.max(maxY, Math.max(start.y, end.y));
+    }
+    if (n == 0)
+    {
+      minimumX = minimumY = maxX = maxY = 0;
+    }
+    minX = minimumX;
+    minY = minimumY;
+    width = maxX - minimumX;
+    height = maxY - minimumY;
+    build();
+  }
+
+  /**
+   * (re-)distribute all remaining points into a grid sized for their number
+   */
+  private void build()
+  {
+    remainingPoints = 0;
+    for (int p = 0; p < px.length; p++)
+    {
+      if (isIndexed(p))
+      {
+        remainingPoints++;
+      }
+    }
+    int targetCells = Math.max(1, remainingPoints / POINTS_PER_CELL);
+    // the second term limits the number of cells if all points are (almost) on one line
+    cellSize = Math.max(Math.sqrt(width * height / targetCells), Math.max(width, height) / targetCells);
+    if (!(cellSize > 0))
+    {
+      // all points are identical
+      cellSize = 1;
+    }
+    nx = (int) (width / cellSize) + 1;
+    ny = (int) (height / cellSize) + 1;
+    cellStart = new int[nx * ny + 1];
+    cellCount = new int[nx * ny];
+    cellPoints = new int[remainingPoints];
+    for (int p = 0; p < px.length; p++)
+    {
+      if (isIndexed(p))
+      {
+        cellCount[cellOf(p)]++;
+      }
+    }
+    for (int c = 0; c < cellCount.length; c++)
+    {
+      cellStart[c + 1] = cellStart[c] + cellCount[c];
+    }
+    Arrays.fill(cellCount, 0);
+    for (int p = 0; p < px.length; p++)
+    {
+      if (isIndexed(p))
+      {
+        int c = cellOf(p);
+        cellPoints[cellStart[c] + cellCount[c]++] = p;
+      }
+    }
+  }
+
+  /**
+   * A point is in the grid if its element was not removed.
+   * The end point of an element is not indexed separately if it is equal to the start point.
+   */
+  private boolean isIndexed(int p)
+  {
+    if (removed[p / 2])
+    {
+      return false;
+    }
+    return p % 2 == 0 || px[p] != px[p - 1] || py[p] != py[p - 1];
+  }
+
+  private int cellX(double x)
+  {
+    return Math.min(nx - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+  }
+
+  private int cellY(double y)
+  {
+    return Math.min(ny - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+  }
+
+  private int cellOf(int p)
+  {
+    return cellY(py[p]) * nx + cellX(px[p]);
+  }
+
+  boolean isEmpty()
+  {
+    return remaining == 0;
+  }
+
+  /**
+   * Remove an element from the grid. Subsequent calls to nearest() will not return it.
+   */
+  void remove(int element)
+  {
+    if (removed[element])
+    {
+      return;
+    }
+    removed[element] = true;
+    remaining--;
+    remainingPoints -= (px[2 * element] != px[2 * element + 1] || py[2 * element] != py[2 * element + 1]) ? 2 : 1;
+    // Shrink the grid if most of it is empty, so that searches don't need
+    // to visit too many empty cells
+    if (remainingPoints > 0 && remainingPoints * 4 * POINTS_PER_CELL < cellCount.length && cellCount.length > 64)
+    {
+      build();
+    }
+  }
+
+  /**
+   * Find the remaining element whose start or end point is nearest to the given point.
+   * Use isNearestEnd() afterwards to find out if the end point was the nearest one.
+   * @return index of the element, or -1 if no elements remain
+   */
+  int nearest(Point point)
+  {
+    if (search(point, 1, -1) == 0)
+    {
+      return -1;
+    }
+    nearestIsEnd = foundPoint[0] % 2 == 1;
+    return foundPoint[0] / 2;
+  }
+
+  /**
+   * Find the k remaining elements whose start or end points are nearest to
+   * the given point.
+   * @param exclude index of an element to ignore, or -1
+   * @return element indices, nearest first. Fewer than k if not enough elements remain.
+   */
+  int[] nearestElements(Point point, int k, int exclude)
+  {
+    int count = search(point, k, exclude);
+    int[] result = new int[count];
+    for (int i = 0; i < count; i++)
+    {
+      result[i] = foundPoint[i] / 2;
+    }
+    return result;
+  }
+
+  /**
+   * Ring-wise search around the given point. The result is stored in
+   * foundPoint[0...return value - 1], sorted by (distance, point index).
+   * Each element occurs at most once.
+   */
+  private int search(Point point, int k, int exclude)
+  {
+    if (foundPoint == null || foundPoint.length < k)
+    {
+      foundPoint = new int[k];
+      foundDistance = new double[k];
+    }
+    int found = 0;
+    int cx = cellX(point.x);
+    int cy = cellY(point.y);
+    int maxRing = Math.max(Math.max(cx, nx - 1 - cx), Math.max(cy, ny - 1 - cy));
+    for (int ring = 0; ring <= maxRing; ring++)
+    {
+      // all points in this ring are at least this far away
+      if (found == k && (ring - 1) * cellSize > foundDistance[k - 1])
+      {
+        break;
+      }
+      for (int y = cy - ring; y <= cy + ring; y++)
+      {
+        if (y < 0 || y >= ny)
+        {
+          continue;
+        }
+        boolean fullRow = y == cy - ring || y == cy + ring;
+        for (int x = cx - ring; x <= cx + ring; x += fullRow ? 1 : 2 * ring)
+        {
+          if (x >= 0 && x < nx)
+          {
+            int c = y * nx + x;
+            int start = cellStart[c];
+            for (int i = start; i < start + cellCount[c]; i++)
+            {
+              int p = cellPoints[i];
+              if (removed[p / 2])
+              {
+                // lazy deletion: drop the point from the cell
+                cellPoints[i] = cellPoints[start + cellCount[c] - 1];
+                cellCount[c]--;
+                i--;
+                continue;
+              }
+              if (p / 2 == exclude)
+              {
+                continue;
+              }
+              double dx = px[p] - point.x;
+              double dy = py[p] - point.y;
+              found = insert(found, k, p, Math.sqrt(dx * dx + dy * dy));
+            }
+          }
+          if (ring == 0)
+          {
+            break;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Insert a point into the sorted list of found points, keeping only the
+   * nearest point of each element.
+   * Point numbering implies the tie-breaking order (element index, start before end).
+   * @return new number of found points
+   */
+  private int insert(int found, int k, int p, double distance)
+  {
+    for (int j = 0; j < found; j++)
+    {
+      if (foundPoint[j] / 2 == p / 2)
+      {
+        if (isBefore(foundDistance[j], foundPoint[j], distance, p))
+        {
+          return found;
+        }
+        // remove the other point of the same element
+        System.arraycopy(foundPoint, j + 1, foundPoint, j, found - j - 1);
+        System.arraycopy(foundDistance, j + 1, foundDistance, j, found - j - 1);
+        found--;
+        break;
+      }
+    }
+    int i = found;
+    while (i > 0 && isBefore(distance, p, foundDistance[i - 1], foundPoint[i - 1]))
+    {
+      i--;
+    }
+    if (i >= k)
+    {
+      return found;
+    }
+    int moved = Math.min(found, k - 1) - i;
+    System.arraycopy(foundPoint, i, foundPoint, i + 1, moved);
+    System.arraycopy(foundDistance, i, foundDistance, i + 1, moved);
+    foundPoint[i] = p;
+    foundDistance[i] = distance;
+    return Math.min(found + 1, k);
+  }
+
+  private static boolean isBefore(double distance, int p, double otherDistance, int otherP)
+  {
+    return distance < otherDistance || (distance == otherDistance && p < otherP);
+  }
+
+  /**
+   * @return true if the end point (not the start point) of the element
+   * returned by the last call of nearest() is the nearest point
+   */
+  boolean isNearestEnd()
+  {
+    return nearestIsEnd;
+  }
+}
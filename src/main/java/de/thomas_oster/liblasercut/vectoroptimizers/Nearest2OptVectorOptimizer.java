@@ -0,0 +1,406 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.vectoroptimizers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sorts like NearestVectorOptimizer and then improves the result with a
+ * local search, which reduces the distance travelled with the laser off.
+ *
+ * Two kinds of moves are tried, each only between paths whose start/end
+ * points are near each other:
+ * - 2-opt: reverse the order (and direction) of a sequence of paths,
+ *   including reversing a single path
+ * - Or-opt: move a single path to another position, in either direction
+ *
+ * The search stops if no move improves the result any more, after
+ * getMaxIterations() passes over all paths or after getTimeLimit() ms,
+ * whichever comes first.
+ * The reduction of travel distance is reported to the progress listeners
+ * and is available via getSavedTravelDistance().
+ */
+public class Nearest2OptVectorOptimizer extends NearestVectorOptimizer
+{
+
+  /**
+   * number of nearby paths considered as candidates for each path end
+   */
+  private static final int NEIGHBORS = 8;
+  /**
+   * minimum improvement per move, avoids endless loops due to rounding errors
+   */
+  private static final double EPSILON = 1e-9;
+
+  private int maxIterations = 50;
+  private long timeLimit = 2000;
+  private double savedTravelDistance = 0;
+
+  /**
+   * Maximum number of passes of the local search over all paths
+   */
+  public int getMaxIterations()
+  {
+    return maxIterations;
+  }
+
+  public void setMaxIterations(int maxIterations)
+  {
+    this.maxIterations = maxIterations;
+  }
+
+  /**
+   * Time budget of the local search in milliseconds
+   */
+  public long getTimeLimit()
+  {
+    return timeLimit;
+  }
+
+  public void setTimeLimit(long timeLimit)
+  {
+    this.timeLimit = timeLimit;
+  }
+
+  /**
+   * Travel distance (laser off, in pixels) saved by the last call of sort()
+   * compared to the greedy NearestVectorOptimizer result
+   */
+  public double getSavedTravelDistance()
+  {
+    return savedTravelDistance;
+  }
+
+  @Override
+  protected List<Element> sort(List<Element> e)
+  {
+    List<Element> greedy = super.sort(e);
+    savedTravelDistance = 0;
+    if (greedy.size() < 3)
+    {
+      return greedy;
+    }
+    fireTaskChanged("optimizing travel distance");
+    Tour tour = new Tour(greedy);
+    double before = tour.travelDistance();
+    long deadline = System.nanoTime() + timeLimit * 1000000;
+    boolean improved = true;
+    for (int iteration = 0; iteration < maxIterations && improved; iteration++)
+    {
+      improved = false;
+      for (int p = 0; p < tour.n; p++)
+      {
+        // checking the time is not free, so only do it now and then
+        if ((p & 255) == 0 && System.nanoTime() > deadline)
+        {
+          improved = false;
+          break;
+        }
+        if (tour.improveTwoOpt(p) || tour.improveOrOpt(p))
+        {
+          improved = true;
+        }
+      }
+      setProgress(100 * (iteration + 1) / maxIterations);
+    }
+    setProgress(100);
+    double after = tour.travelDistance();
+    savedTravelDistance = before - after;
+    fireTaskChanged(String.format("travel distance reduced by %.0f px (%.1f%%)", savedTravelDistance, before > 0 ? 100 * savedTravelDistance / before : 0));
+    return tour.toList();
+  }
+
+  /**
+   * Order and direction of the paths. Paths are only inverted in toList(),
+   * during the search only the flag is toggled.
+   */
+  private static class Tour
+  {
+
+    final int n;
+    final List<Element> elements;
+    // start/end point of each element, in its original direction
+    final double[] sx, sy, ex, ey;
+    // element at each position
+    final int[] order;
+    // position of each element
+    final int[] pos;
+    // element is inverted
+    final boolean[] flipped;
+    // nearby elements of each element
+    final int[][] neighbors;
+
+    Tour(List<Element> elements)
+    {
+      this.elements = elements;
+      n = elements.size();
+      sx = new double[n];
+      sy = new double[n];
+      ex = new double[n];
+      ey = new double[n];
+      order = new int[n];
+      pos = new int[n];
+      flipped = new boolean[n];
+      neighbors = new int[n][];
+      for (int i = 0; i < n; i++)
+      {
+        Element e = elements.get(i);
+        sx[i] = e.start.x;
+        sy[i] = e.start.y;
+        ex[i] = e.getEnd().x;
+        ey[i] = e.getEnd().y;
+        order[i] = i;
+        pos[i] = i;
+      }
+      EndpointGrid grid = new EndpointGrid(elements);
+      for (int i = 0; i < n; i++)
+      {
+        Element e = elements.get(i);
+        int[] nearStart = grid.nearestElements(e.start, NEIGHBORS, i);
+        int[] nearEnd = grid.nearestElements(e.getEnd(), NEIGHBORS, i);
+        neighbors[i] = new int[nearStart.length + nearEnd.length];
+        System.arraycopy(nearStart, 0, neighbors[i], 0, nearStart.length);
+        System.arraycopy(nearEnd, 0, neighbors[i], nearStart.length, nearEnd.length);
+      }
+    }
+
+    double startX(int p)
+    {
+      int e = order[p];
+      return flipped[e] ? ex[e] : sx[e];
+    }
+
+    double startY(int p)
+    {
+      int e = order[p];
+      return flipped[e] ? ey[e] : sy[e];
+    }
+
+    double endX(int p)
+    {
+      int e = order[p];
+      return flipped[e] ? sx[e] : ex[e];
+    }
+
+    double endY(int p)
+    {
+      int e = order[p];
+      return flipped[e] ? sy[e] : ey[e];
+    }
+
+    static double distance(double x1, double y1, double x2, double y2)
+    {
+      double dx = x1 - x2;
+      double dy = y1 - y2;
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * travel from the end of position p to the start of position p+1
+     */
+    double gap(int p)
+    {
+      if (p + 1 >= n)
+      {
+        return 0;
+      }
+      return distance(endX(p), endY(p), startX(p + 1), startY(p + 1));
+    }
+
+    double travelDistance()
+    {
+      double result = 0;
+      for (int p = 0; p < n - 1; p++)
+      {
+        result += gap(p);
+      }
+      return result;
+    }
+
+    /**
+     * Try 2-opt moves which connect the end of position p or the start of
+     * position p+1 to a nearby path. Applies the first improving move.
+     */
+    boolean improveTwoOpt(int p)
+    {
+      if (p + 1 >= n)
+      {
+        return false;
+      }
+      // end of p -> end of a neighbor
+      for (int other : neighbors[order[p]])
+      {
+        if (tryTwoOpt(Math.min(p, pos[other]), Math.max(p, pos[other])))
+        {
+          return true;
+        }
+      }
+      // start of p+1 -> start of a neighbor
+      for (int other : neighbors[order[p + 1]])
+      {
+        int q = pos[other] - 1;
+        if (q >= 0 && tryTwoOpt(Math.min(p, q), Math.max(p, q)))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Replace the gaps after lo and after hi by reversing positions lo+1...hi.
+     * @return true if this shortened the tour and was applied
+     */
+    boolean tryTwoOpt(int lo, int hi)
+    {
+      if (lo >= hi)
+      {
+        return false;
+      }
+      double delta = distance(endX(lo), endY(lo), endX(hi), endY(hi)) - gap(lo) - gap(hi);
+      if (hi + 1 < n)
+      {
+        delta += distance(startX(lo + 1), startY(lo + 1), startX(hi + 1), startY(hi + 1));
+      }
+      if (delta < -EPSILON)
+      {
+        reverse(lo + 1, hi);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * reverse the order and direction of positions from...to (inclusive)
+     */
+    void reverse(int from, int to)
+    {
+      for (int i = from; i <= to; i++)
+      {
+        flipped[order[i]] = !flipped[order[i]];
+      }
+      while (from < to)
+      {
+        int tmp = order[from];
+        order[from] = order[to];
+        order[to] = tmp;
+        pos[order[from]] = from;
+        pos[order[to]] = to;
+        from++;
+        to--;
+      }
+    }
+
+    /**
+     * Try to move the path at position k next to a nearby path.
+     * The first path is never moved. Applies the first improving move.
+     */
+    boolean improveOrOpt(int k)
+    {
+      if (k == 0)
+      {
+        return false;
+      }
+      // travel saved by taking k out
+      double removeGain = distance(endX(k - 1), endY(k - 1), startX(k), startY(k)) + gap(k);
+      if (k + 1 < n)
+      {
+        removeGain -= distance(endX(k - 1), endY(k - 1), startX(k + 1), startY(k + 1));
+      }
+      if (removeGain <= EPSILON)
+      {
+        return false;
+      }
+      for (int other : neighbors[order[k]])
+      {
+        // insert before or after the neighbor
+        for (int p = pos[other] - 1; p <= pos[other]; p++)
+        {
+          if (p < 0 || p == k || p == k - 1)
+          {
+            continue;
+          }
+          for (boolean flip : new boolean[] {false, true})
+          {
+            // start/end of the moved path in its new direction
+            double ax = flip ? endX(k) : startX(k);
+            double ay = flip ? endY(k) : startY(k);
+            double bx = flip ? startX(k) : endX(k);
+            double by = flip ? startY(k) : endY(k);
+            double insertCost = distance(endX(p), endY(p), ax, ay);
+            if (p + 1 < n)
+            {
+              insertCost += distance(bx, by, startX(p + 1), startY(p + 1)) - gap(p);
+            }
+            if (insertCost - removeGain < -EPSILON)
+            {
+              move(k, p, flip);
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * move the path at position k so that it follows the path that is now at position p
+     */
+    void move(int k, int p, boolean flip)
+    {
+      int e = order[k];
+      if (flip)
+      {
+        flipped[e] = !flipped[e];
+      }
+      int target;
+      if (p < k)
+      {
+        target = p + 1;
+        System.arraycopy(order, target, order, target + 1, k - target);
+      }
+      else
+      {
+        target = p;
+        System.arraycopy(order, k + 1, order, k, p - k);
+      }
+      order[target] = e;
+      for (int i = Math.min(k, target); i <= Math.max(k, target); i++)
+      {
+        pos[order[i]] = i;
+      }
+    }
+
+    List<Element> toList()
+    {
+      List<Element> result = new ArrayList<>(n);
+      for (int p = 0; p < n; p++)
+      {
+        Element e = elements.get(order[p]);
+        if (flipped[order[p]])
+        {
+          e.invert();
+        }
+        result.add(e);
+      }
+      return result;
+    }
+  }
+}
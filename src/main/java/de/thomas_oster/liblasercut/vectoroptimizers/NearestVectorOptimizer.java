@@ -18,8 +18,7 @@
  */
 package de.thomas_oster.liblasercut.vectoroptimizers;
 
-import de.thomas_oster.liblasercut.platform.Point;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,7 +32,7 @@ public class NearestVectorOptimizer extends VectorOptimizer
   protected List<Element> sort(List<Element> e)
   {
     // nothing to do if input is empty
-    List<Element> result = new LinkedList<>();
+    List<Element> result = new ArrayList<>(e.size());
     if (e.isEmpty())
     {
       return result;
@@ -51,52 +50,23 @@ public class NearestVectorOptimizer extends VectorOptimizer
 
     // Sort paths so that the gap between one endpoint and the next startpoint is minimized greedily.
     // Start at the first path.
-    result.add(e.remove(0));
-    while (!e.isEmpty())
+    // The grid is used to find the nearest start/end point without scanning all remaining paths.
+    EndpointGrid grid = new EndpointGrid(e);
+    Element current = e.get(0);
+    grid.remove(0);
+    result.add(current);
+    while (!grid.isEmpty())
     {
-      Point end = result.get(result.size() - 1).getEnd();
       //find the start (or end) point nearest to the end point of the current path
-      int next = 0;
+      int next = grid.nearest(current.getEnd());
+      grid.remove(next);
+      current = e.get(next);
       //invert element direction if endpoint is nearer
-      boolean invert = false;
-      double dst = Double.POSITIVE_INFINITY;
-      for (int i = 0; i < e.size(); i++)
+      if (grid.isNearestEnd())
       {
-        // check distance to next startpoint
-        double nd = e.get(i).start.hypotTo(end);
-        if (nd < dst)
-        {
-          next = i;
-          dst = nd;
-          invert = false;
-        }
-        if (!e.get(i).start.equals(e.get(i).getEnd()))
-        {
-          // check distance to next endpoint
-          nd = e.get(i).getEnd().hypotTo(end);
-          if (nd < dst)
-          {
-            next = i;
-            dst = nd;
-            invert = true;
-          }
-        }
-        if (dst == 0)
-        {
-          break;
-        }
-      }
-      //add next
-      if (invert)
-      {
-        Element m = e.remove(next);
-        m.invert();
-        result.add(m);
-      }
-      else
-      {
-        result.add(e.remove(next));
+        current.invert();
       }
+      result.add(current);
     }
     return result;
   }
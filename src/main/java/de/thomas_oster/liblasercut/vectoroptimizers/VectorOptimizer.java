@@ -19,7 +19,7 @@
 package de.thomas_oster.liblasercut.vectoroptimizers;
 
 import de.thomas_oster.liblasercut.LaserProperty;
-import de.thomas_oster.liblasercut.VectorCommand;
+import de.thomas_oster.liblasercut.TimeIntensiveOperation;
 import de.thomas_oster.liblasercut.VectorPart;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Rectangle;
@@ -32,13 +32,14 @@ import java.util.Objects;
  *
  * @author Thomas Oster <thomas.oster@rwth-aachen.de>
  */
-public abstract class VectorOptimizer
+public abstract class VectorOptimizer extends TimeIntensiveOperation
 {
 
   public enum OrderStrategy
   {
     FILE,
     NEAREST,
+    NEAREST_2OPT,
     INNER_FIRST,
     SMALLEST_FIRST,
     DELETE_DUPLICATE_PATHS
@@ -200,6 +201,8 @@ public abstract class VectorOptimizer
         return new FileVectorOptimizer();
       case NEAREST:
         return new NearestVectorOptimizer();
+      case NEAREST_2OPT:
+        return new Nearest2OptVectorOptimizer();
       case INNER_FIRST:
         return new InnerFirstVectorOptimizer();
       case SMALLEST_FIRST:
@@ -217,7 +220,8 @@ public abstract class VectorOptimizer
     Point lastMove = null;
     LaserProperty lastProp = null;
     boolean stop = false;
-    for (VectorCommand cmd : vp.getCommandList())
+    VectorPart.Cursor cmd = vp.cursor();
+    while (cmd.next())
     {
       switch (cmd.getType())
       {
@@ -0,0 +1,116 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Random;
+import org.junit.Test;
+
+public class ByteArrayListTest
+{
+
+  private static ByteArrayList list(byte[] content)
+  {
+    ByteArrayList l = new ByteArrayList(content.length);
+    for (byte b : content)
+    {
+      l.add(b);
+    }
+    return l;
+  }
+
+  private static byte[] content(ByteArrayList l)
+  {
+    byte[] result = new byte[l.size()];
+    l.toByteArray(result);
+    return result;
+  }
+
+  /**
+   * The list shifted like an unsigned integer of the same length
+   */
+  private static byte[] shifted(byte[] content, int shift)
+  {
+    BigInteger v = new BigInteger(1, content);
+    v = shift >= 0 ? v.shiftLeft(shift) : v.shiftRight(-shift);
+    byte[] bytes = v.toByteArray();
+    byte[] result = new byte[content.length];
+    int n = Math.min(bytes.length, content.length);
+    System.arraycopy(bytes, bytes.length - n, result, content.length - n, n);
+    return result;
+  }
+
+  @Test
+  public void testShiftBits()
+  {
+    Random r = new Random(1);
+    for (int length = 0; length < 6; length++)
+    {
+      byte[] c = new byte[length];
+      r.nextBytes(c);
+      for (int shift = -50; shift <= 50; shift++)
+      {
+        ByteArrayList l = list(c);
+        l.leftShiftBits(shift);
+        assertArrayEquals("length " + length + " shift " + shift, shifted(c, shift), content(l));
+      }
+    }
+  }
+
+  @Test
+  public void testReverseAndInvertBits()
+  {
+    byte[] c = {(byte) 0b11000000, (byte) 0b01111000, (byte) 0b10000001};
+    ByteArrayList l = list(c);
+    l.reverseBits();
+    assertArrayEquals(new byte[] {(byte) 0b10000001, (byte) 0b00011110, (byte) 0b00000011}, content(l));
+    l.invertBits();
+    assertArrayEquals(new byte[] {(byte) 0b01111110, (byte) 0b11100001, (byte) 0b11111100}, content(l));
+    l.reverseBits();
+    l.invertBits();
+    assertArrayEquals(c, content(l));
+  }
+
+  @Test
+  public void testTrimAndPad()
+  {
+    ByteArrayList l = list(new byte[] {0, 0, 0, 5, 0, 6, 0, 0});
+    assertEquals(3, l.trimLeading((byte) 0));
+    assertEquals(2, l.trimTrailing((byte) 0));
+    assertArrayEquals(new byte[] {5, 0, 6}, content(l));
+    l.padFront(100);
+    l.padBack(70);
+    assertEquals(173, l.size());
+    assertEquals(100, l.trimLeading((byte) 0));
+    assertEquals(70, l.trimTrailing((byte) 0));
+    assertArrayEquals(new byte[] {5, 0, 6}, content(l));
+    l.add(0, (byte) 1);
+    l.add((byte) 2);
+    assertArrayEquals(new byte[] {1, 5, 0, 6, 2}, content(l));
+    l.clear(2);
+    l.add((byte) 0);
+    assertEquals(1, l.trimTrailing((byte) 0));
+    assertEquals(0, l.trimLeading((byte) 0));
+    assertEquals(0, l.size());
+  }
+
+}
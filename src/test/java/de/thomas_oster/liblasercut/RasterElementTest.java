@@ -0,0 +1,123 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the word based line scans of RasterElement with plain getPixel()
+ * loops
+ */
+public class RasterElementTest
+{
+
+  private static RasterElement createRaster(Random r, int width, int height, int bitDepth)
+  {
+    RasterElement raster = new RasterElement(width, height, bitDepth);
+    int max = (1 << bitDepth) - 1;
+    for (int y = 0; y < height; y++)
+    {
+      // long runs of one value with a few different pixels in between
+      int background = r.nextInt(max + 1);
+      for (int x = 0; x < width; x++)
+      {
+        raster.setPixel(x, y, r.nextInt(40) == 0 ? r.nextInt(max + 1) : background);
+      }
+    }
+    return raster;
+  }
+
+  @Test
+  public void testScansMatchPixelLoops()
+  {
+    Random r = new Random(7);
+    for (int bitDepth : new int[]{1, 2, 4, 8, 3})
+    {
+      for (int width : new int[]{1, 7, 63, 64, 65, 200, 333})
+      {
+        RasterElement raster = createRaster(r, width, 20, bitDepth);
+        for (int y = 0; y < raster.getHeight(); y++)
+        {
+          for (int value : new int[]{0, (1 << bitDepth) - 1, raster.getPixel(0, y), 255})
+          {
+            boolean uniform = true;
+            for (int x = 0; x < width; x++)
+            {
+              uniform &= raster.getPixel(x, y) == value;
+            }
+            assertEquals(uniform, raster.isLineUniform(y, value));
+            for (int from = -1; from <= width; from++)
+            {
+              int first = -1;
+              for (int x = Math.max(from, 0); x < width; x++)
+              {
+                if (raster.getPixel(x, y) != value)
+                {
+                  first = x;
+                  break;
+                }
+              }
+              assertEquals(first, raster.findFirstNot(y, value, from));
+              int last = -1;
+              for (int x = Math.min(from, width - 1); x >= 0; x--)
+              {
+                if (raster.getPixel(x, y) != value)
+                {
+                  last = x;
+                  break;
+                }
+              }
+              assertEquals(last, raster.findLastNot(y, value, from));
+            }
+          }
+          for (int x = 0; x < width; x++)
+          {
+            int end = x;
+            while (end < width && raster.getPixel(end, y) == raster.getPixel(x, y))
+            {
+              end++;
+            }
+            assertEquals(end, raster.nextRunEnd(y, x));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testModificationCountChangesOncePerBatch()
+  {
+    RasterElement raster = new RasterElement(100, 64, 1);
+    int before = raster.getModificationCount();
+    IntStream.range(0, raster.getHeight()).parallel().forEach(y ->
+    {
+      for (int x = 0; x < raster.getWidth(); x++)
+      {
+        raster.setPixel(x, y, 1);
+      }
+    });
+    assertEquals(before, raster.getModificationCount());
+    raster.modified();
+    assertEquals(before + 1, raster.getModificationCount());
+  }
+
+}
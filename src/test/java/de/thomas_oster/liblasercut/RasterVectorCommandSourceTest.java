@@ -0,0 +1,199 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import de.thomas_oster.liblasercut.drivers.GenericGcodeDriver;
+import de.thomas_oster.liblasercut.platform.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class RasterVectorCommandSourceTest
+{
+
+  private static List<String> record(VectorCommandSource source)
+  {
+    List<String> result = new ArrayList<>();
+    source.forEachCommand(new VectorCommandVisitor<RuntimeException>()
+    {
+      @Override
+      public void moveTo(double x, double y)
+      {
+        result.add("M " + x + " " + y);
+      }
+
+      @Override
+      public void lineTo(double x, double y)
+      {
+        result.add("L " + x + " " + y);
+      }
+
+      @Override
+      public void property(LaserProperty p)
+      {
+        result.add("P " + p.getPower() + " " + p.getSpeed());
+      }
+    });
+    return result;
+  }
+
+  private static List<String> record(VectorCommandCursor c)
+  {
+    List<String> result = new ArrayList<>();
+    while (c.next())
+    {
+      switch (c.getType())
+      {
+        case MOVETO:
+          result.add("M " + c.getX() + " " + c.getY());
+          break;
+        case LINETO:
+          result.add("L " + c.getX() + " " + c.getY());
+          break;
+        case SETPROPERTY:
+          result.add("P " + c.getProperty().getPower() + " " + c.getProperty().getSpeed());
+          break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 8x3 pixels at 25.4 DPI (1 px = 1 mm), starting at (10, 20):
+   * <pre>
+   * ..XX.X..
+   * ........
+   * .XXXXXX.
+   * </pre>
+   */
+  private static RasterPart createSmallPart(GenericGcodeDriver driver)
+  {
+    GreyRaster image = new GreyRaster(8, 3);
+    for (int y = 0; y < 3; y++)
+    {
+      for (int x = 0; x < 8; x++)
+      {
+        image.setGreyScale(x, y, 255);
+      }
+    }
+    image.setGreyScale(2, 0, 0);
+    image.setGreyScale(3, 0, 0);
+    image.setGreyScale(5, 0, 0);
+    for (int x = 1; x <= 6; x++)
+    {
+      image.setGreyScale(x, 2, 0);
+    }
+    LaserProperty prop = driver.getLaserPropertyForRasterPart();
+    prop.setProperty("power", 100f);
+    prop.setProperty("speed", 50f);
+    return new RasterPart(image, prop, new Point(10, 20), 25.4);
+  }
+
+  private static void assertCommands(List<String> expected, RasterVectorCommandSource source)
+  {
+    assertEquals(expected, record(source));
+    assertEquals(expected, record(source.cursor()));
+    // every pass starts in the same direction
+    assertEquals(expected, record(source));
+  }
+
+  @Test
+  public void testBidirectionalWithLinetoForWhite()
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    driver.setRasterPadding(2);
+    RasterVectorCommandSource source = driver.convertRasterizableToVectorCommands(createSmallPart(driver),
+      new LaserJob("test", "test", "test"), true, false, false);
+    assertCommands(Arrays.asList(
+      "P 100.0 50.0",
+      // left to right, padding of 2 px
+      "M 10.0 20.0",
+      "P 0.0 50.0", "L 12.0 20.0",
+      "P 100.0 50.0", "L 14.0 20.0",
+      "P 0.0 50.0", "L 15.0 20.0",
+      "P 100.0 50.0", "L 16.0 20.0",
+      "P 0.0 50.0", "L 18.0 20.0",
+      // blank line skipped, right to left, shifted by one pixel
+      "M 19.0 22.0",
+      "P 0.0 50.0", "L 17.0 22.0",
+      "P 100.0 50.0", "L 11.0 22.0",
+      "P 0.0 50.0", "L 9.0 22.0"), source);
+    assertEquals(9, source.getMinX(), 0);
+    assertEquals(19, source.getMaxX(), 0);
+    assertEquals(20, source.getMinY(), 0);
+    assertEquals(22, source.getMaxY(), 0);
+    assertFalse(source.isEmpty());
+  }
+
+  @Test
+  public void testUnidirectionalWithMovetoForWhiteAndPadding()
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    driver.setRasterPadding(2);
+    RasterVectorCommandSource source = driver.convertRasterizableToVectorCommands(createSmallPart(driver),
+      new LaserJob("test", "test", "test"), false, true, true);
+    assertCommands(Arrays.asList(
+      "P 100.0 50.0",
+      "M 10.0 20.0",
+      "M 12.0 20.0",
+      "P 100.0 50.0", "L 14.0 20.0",
+      "M 15.0 20.0",
+      "P 100.0 50.0", "L 16.0 20.0",
+      "M 18.0 20.0",
+      "M 9.0 22.0",
+      "M 11.0 22.0",
+      "P 100.0 50.0", "L 17.0 22.0",
+      "M 19.0 22.0"), source);
+  }
+
+  @Test
+  public void testPaddingIsClampedToTheBed()
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    driver.setRasterPadding(15);
+    driver.setBedWidth(25.0);
+    RasterVectorCommandSource source = driver.convertRasterizableToVectorCommands(createSmallPart(driver),
+      new LaserJob("test", "test", "test"), false, true, true);
+    List<String> commands = record(source.cursor());
+    assertEquals("M 0.0 20.0", commands.get(1));
+    assertEquals("M 25.0 20.0", commands.get(8));
+  }
+
+  @Test
+  public void testBlankRasterIsEmpty()
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    RasterPart rp = new RasterPart(new GreyRaster(10, 10), driver.getLaserPropertyForRasterPart(), new Point(0, 0), 254);
+    for (int y = 0; y < 10; y++)
+    {
+      for (int x = 0; x < 10; x++)
+      {
+        rp.getImage().setGreyScale(x, y, 255);
+      }
+    }
+    RasterVectorCommandSource source = driver.convertRasterizableToVectorCommands(rp, new LaserJob("test", "test", "test"), true, false, false);
+    assertTrue(source.isEmpty());
+    assertEquals(1, record(source).size());
+  }
+}
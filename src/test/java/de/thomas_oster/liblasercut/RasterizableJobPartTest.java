@@ -18,6 +18,7 @@
  */
 package de.thomas_oster.liblasercut;
 
+import de.thomas_oster.liblasercut.dithering.FloydSteinberg;
 import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.utils.BufferedImageAdapter;
 import java.awt.image.BufferedImage;
@@ -447,8 +448,57 @@ public class RasterizableJobPartTest
     assertTrue(done);
   }
   
+  /**
+   * The cached line information has to follow changes of the image
+   */
+  @Test
+  public void testLineIndexFollowsImageChanges() throws InterruptedException
+  {
+    GreyRaster image = new GreyRaster(100, 3);
+    for (int y = 0; y < 3; y++)
+    {
+      for (int x = 0; x < 100; x++)
+      {
+        image.setGreyScale(x, y, 255);
+      }
+    }
+    RasterPart part = new RasterPart(image, new AbstractLaserProperty(), new Point(0, 0), 500);
+    assertTrue(part.isEmpty());
+    assertTrue(part.lineIsBlank(1));
+
+    image.setGreyScale(70, 1, 0);
+    image.setGreyScale(71, 1, 0);
+    image.getRaster().modified();
+    assertFalse(part.isEmpty());
+    assertFalse(part.lineIsBlank(1));
+    assertEquals(70, part.leftMostNonWhitePixel(1));
+    assertEquals(71, part.rightMostNonWhitePixel(1));
+    assertEquals(72, part.nextColorChangeHeadingRight(70, 1));
+
+    image.setGreyScale(10, 1, 0);
+    part.invalidateLineIndex();
+    assertEquals(10, part.leftMostNonWhitePixel(1));
+    assertEquals(11, part.nextColorChangeHeadingRight(10, 1));
+    assertEquals(69, part.nextColorChangeHeadingLeft(71, 1));
+
+    // dithering in place marks the raster as modified
+    assertTrue(part.lineIsBlank(2));
+    for (int x = 0; x < 100; x++)
+    {
+      image.setGreyScale(x, 2, 100);
+    }
+    new FloydSteinberg().ditherDirect(image);
+    assertFalse(part.lineIsBlank(2));
+
+    // changes of images without a RasterElement need an explicit invalidation
+    RasterizableJobPartImpl instance = new RasterizableJobPartImpl();
+    assertTrue(instance.lineIsBlank(4));
+    instance.getImage().setGreyScale(5, 4, 0);
+    instance.invalidateLineIndex();
+    assertFalse(instance.lineIsBlank(4));
+    assertEquals(5, instance.leftMostNonWhitePixel(4));
+  }
 
-  
   public static class RasterizableJobPartImpl extends RasterizableJobPart
   {
     public RasterizableJobPartImpl()
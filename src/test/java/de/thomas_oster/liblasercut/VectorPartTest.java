@@ -0,0 +1,157 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test class for VectorPart
+ */
+public class VectorPartTest
+{
+
+  private static VectorPart createTestPart(LaserProperty p1, LaserProperty p2)
+  {
+    VectorPart vp = new VectorPart(p1, 500);
+    vp.moveto(1, 2);
+    vp.lineto(3, 4);
+    vp.setProperty(p2);
+    // more commands than the initial capacity of the backing arrays
+    for (int i = 0; i < 100; i++)
+    {
+      vp.linetoOrMoveto(i, -i, i % 3 != 0);
+    }
+    return vp;
+  }
+
+  @Test
+  public void testCursorMatchesCommandList()
+  {
+    LaserProperty p1 = new PowerSpeedFocusProperty();
+    LaserProperty p2 = new FloatPowerSpeedFocusProperty();
+    VectorPart vp = createTestPart(p1, p2);
+    VectorCommand[] cmds = vp.getCommandList();
+    assertEquals(104, cmds.length);
+    assertEquals(cmds.length, vp.getCommandCount());
+
+    VectorPart.Cursor c = vp.cursor();
+    for (VectorCommand cmd : cmds)
+    {
+      assertTrue(c.next());
+      assertEquals(cmd.getType(), c.getType());
+      if (cmd.getType() == VectorCommand.CmdType.SETPROPERTY)
+      {
+        assertSame(cmd.getProperty(), c.getProperty());
+      }
+      else
+      {
+        assertEquals(cmd.getX(), c.getX(), 0);
+        assertEquals(cmd.getY(), c.getY(), 0);
+      }
+    }
+    assertFalse(c.next());
+
+    assertSame(p1, cmds[0].getProperty());
+    assertEquals(VectorCommand.CmdType.MOVETO, cmds[1].getType());
+    assertEquals(3, cmds[2].getX(), 0);
+    assertSame(p2, cmds[3].getProperty());
+    assertEquals(VectorCommand.CmdType.MOVETO, cmds[4].getType());
+    assertEquals(VectorCommand.CmdType.LINETO, cmds[5].getType());
+    assertEquals(-99, cmds[103].getY(), 0);
+  }
+
+  @Test
+  public void testForEachCommandMatchesCursor()
+  {
+    VectorPart vp = createTestPart(new PowerSpeedFocusProperty(), new FloatPowerSpeedFocusProperty());
+    VectorPart.Cursor c = vp.cursor();
+    vp.forEachCommand(new VectorCommandVisitor<RuntimeException>()
+    {
+      @Override
+      public void moveTo(double x, double y)
+      {
+        assertTrue(c.next());
+        assertEquals(VectorCommand.CmdType.MOVETO, c.getType());
+        assertEquals(c.getX(), x, 0);
+        assertEquals(c.getY(), y, 0);
+      }
+
+      @Override
+      public void lineTo(double x, double y)
+      {
+        assertTrue(c.next());
+        assertEquals(VectorCommand.CmdType.LINETO, c.getType());
+        assertEquals(c.getX(), x, 0);
+        assertEquals(c.getY(), y, 0);
+      }
+
+      @Override
+      public void property(LaserProperty p)
+      {
+        assertTrue(c.next());
+        assertSame(c.getProperty(), p);
+      }
+    });
+    assertFalse(c.next());
+  }
+
+  @Test
+  public void testBoundingBoxAndEmpty()
+  {
+    VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 500);
+    assertTrue(vp.isEmpty());
+    vp.moveto(5, 6);
+    assertTrue(vp.isEmpty());
+    vp.lineto(-1, 10);
+    assertFalse(vp.isEmpty());
+    assertEquals(-1, vp.getMinX(), 0);
+    assertEquals(5, vp.getMaxX(), 0);
+    assertEquals(6, vp.getMinY(), 0);
+    assertEquals(10, vp.getMaxY(), 0);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLinetoWithoutMoveto()
+  {
+    VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 500);
+    vp.lineto(1, 1);
+  }
+
+  @Test
+  public void testApplyStartPoint()
+  {
+    VectorPart vp = new VectorPart(new PowerSpeedFocusProperty(), 25.4);
+    // applyStartPoint() rounds towards zero, so use coordinates that are not at integer boundaries
+    vp.moveto(10.5, 20.5);
+    vp.lineto(30.5, 40.5);
+    LaserJob job = new LaserJob("test", "test", "test");
+    job.addPart(vp);
+    job.setStartPoint(1, 2);
+    job.applyStartPoint();
+    VectorPart.Cursor c = vp.cursor();
+    assertTrue(c.next());
+    assertTrue(c.next());
+    assertEquals(9, c.getX(), 0);
+    assertEquals(18, c.getY(), 0);
+    assertTrue(c.next());
+    assertEquals(29, c.getX(), 0);
+    assertEquals(38, c.getY(), 0);
+  }
+}
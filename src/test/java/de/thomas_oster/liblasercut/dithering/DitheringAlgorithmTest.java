@@ -0,0 +1,104 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.dithering;
+
+import de.thomas_oster.liblasercut.BlackWhiteRaster;
+import de.thomas_oster.liblasercut.GreyRaster;
+import de.thomas_oster.liblasercut.GreyscaleRaster;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that dithering on several threads gives the same result as on one
+ */
+public class DitheringAlgorithmTest
+{
+
+  private static GreyRaster createImage(int width, int height)
+  {
+    java.util.Random r = new java.util.Random(3);
+    GreyRaster image = new GreyRaster(width, height);
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        int grey = (int) (127 + 120 * Math.sin(x * 0.013 + y * 0.007)) + r.nextInt(9) - 4;
+        image.setGreyScale(x, y, Math.max(0, Math.min(255, grey)));
+      }
+    }
+    return image;
+  }
+
+  private static void assertSameAsSerial(DitheringAlgorithm serial, DitheringAlgorithm parallel, GreyRaster image) throws InterruptedException
+  {
+    BlackWhiteRaster expected = serial.dither(image);
+    BlackWhiteRaster result = parallel.dither(image);
+    assertArrayEquals(serial.toString(), expected.getImageData(), result.getImageData());
+  }
+
+  @Test
+  public void testParallelFloydSteinbergIsIdentical() throws InterruptedException
+  {
+    // more threads than rows in flight, chunks not dividing the width
+    for (int threads : new int[]{2, 3, 7})
+    {
+      FloydSteinberg serial = new FloydSteinberg()
+      {
+        @Override
+        protected int getParallelism(GreyscaleRaster src)
+        {
+          return 1;
+        }
+      };
+      FloydSteinberg parallel = new FloydSteinberg()
+      {
+        @Override
+        protected int getParallelism(GreyscaleRaster src)
+        {
+          return threads;
+        }
+      };
+      assertSameAsSerial(serial, parallel, createImage(613, 97));
+      assertSameAsSerial(serial, parallel, createImage(5, 40));
+    }
+  }
+
+  @Test
+  public void testParallelOrderedIsIdentical() throws InterruptedException
+  {
+    Halftone serial = new Halftone()
+    {
+      @Override
+      protected int getParallelism(GreyscaleRaster src)
+      {
+        return 1;
+      }
+    };
+    Halftone parallel = new Halftone()
+    {
+      @Override
+      protected int getParallelism(GreyscaleRaster src)
+      {
+        return 4;
+      }
+    };
+    assertSameAsSerial(serial, parallel, createImage(301, 203));
+  }
+
+}
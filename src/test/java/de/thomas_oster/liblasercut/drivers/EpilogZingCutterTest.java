@@ -18,13 +18,32 @@
  */
 package de.thomas_oster.liblasercut.drivers;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import de.thomas_oster.liblasercut.ByteArrayList;
+import de.thomas_oster.liblasercut.GreyRaster;
 import de.thomas_oster.liblasercut.LaserJob;
 import de.thomas_oster.liblasercut.LaserProperty;
+import de.thomas_oster.liblasercut.ProgressListener;
+import de.thomas_oster.liblasercut.RasterPart;
+import de.thomas_oster.liblasercut.RasterizableJobPartTest;
 import de.thomas_oster.liblasercut.VectorPart;
+import de.thomas_oster.liblasercut.platform.Point;
 import de.thomas_oster.liblasercut.platform.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public class EpilogZingCutterTest extends EpilogZing
@@ -83,4 +102,158 @@ public class EpilogZingCutterTest extends EpilogZing
       // Raster3dPart is not explicitly tested, it uses almost the same codepath as RasterPart.
     }
   }
+
+  private LaserJob createJob(EpilogZing zing)
+  {
+    LaserJob job = new LaserJob("test", "name", "user");
+    RasterPart rp = new RasterPart(new GreyRaster(RasterizableJobPartTest.getTest1bitRasterElement()),
+      zing.getLaserPropertyForRasterPart(), new Point(13, 37), 500);
+    job.addPart(rp);
+    VectorPart vp = new VectorPart(zing.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(10, 10);
+    vp.lineto(500, 1000);
+    vp.lineto(1000, 0);
+    job.addPart(vp);
+    return job;
+  }
+
+  private static String readLine(InputStream in) throws IOException
+  {
+    StringBuilder line = new StringBuilder();
+    for (int c = in.read(); c != '\n'; c = in.read())
+    {
+      if (c == -1)
+      {
+        throw new IOException("End of Stream");
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Receives one LPD job like the laser cutter does and returns its data file
+   */
+  private static byte[] receiveLpdJob(ServerSocket server) throws IOException
+  {
+    try (Socket s = server.accept())
+    {
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      // receive job
+      readLine(in);
+      out.write(0);
+      // control file
+      String header = readLine(in);
+      out.write(0);
+      in.readFully(new byte[Integer.parseInt(header.substring(1, header.indexOf(' '))) + 1]);
+      out.write(0);
+      // data file
+      header = readLine(in);
+      assertEquals(3, header.charAt(0));
+      out.write(0);
+      byte[] data = new byte[Integer.parseInt(header.substring(1, header.indexOf(' ')))];
+      in.readFully(data);
+      out.write(0);
+      return data;
+    }
+  }
+
+  @Test
+  public void testSendJobTransfersSpooledData() throws Exception
+  {
+    EpilogZing zing = new EpilogZing("127.0.0.1");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    zing.saveJob(expected, createJob(zing));
+
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+    {
+      zing.setPort(server.getLocalPort());
+      CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() ->
+      {
+        try
+        {
+          return receiveLpdJob(server);
+        }
+        catch (IOException e)
+        {
+          throw new RuntimeException(e);
+        }
+      });
+      zing.sendJob(createJob(zing), new ProgressListener()
+      {
+        @Override
+        public void progressChanged(Object source, int percent)
+        {
+        }
+
+        @Override
+        public void taskChanged(Object source, String taskName)
+        {
+        }
+      }, new ArrayList<>());
+      assertArrayEquals(expected.toByteArray(), received.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testByteArrayEncodeMatchesListEncode()
+  {
+    Random random = new Random(42);
+    byte[] line = new byte[1000];
+    byte[] encoded = new byte[maxEncodedLength(line.length)];
+    ByteArrayList expected = new ByteArrayList(line.length);
+    for (int i = 0; i < 200; i++)
+    {
+      // mix long runs, short runs and noise to hit both packet types and their limits
+      int n = 0;
+      while (n < line.length)
+      {
+        int run = random.nextInt(4) == 0 ? random.nextInt(300) : 1 + random.nextInt(3);
+        byte value = (byte) random.nextInt(i % 2 == 0 ? 256 : 2);
+        for (int k = 0; k < run && n < line.length; k++)
+        {
+          line[n++] = value;
+        }
+      }
+      int from = random.nextInt(line.length);
+      int to = from + random.nextInt(line.length - from + 1);
+      ByteArrayList list = new ByteArrayList(to - from);
+      for (int k = from; k < to; k++)
+      {
+        list.add(line[k]);
+      }
+      encode(list, expected);
+      int len = encode(line, from, to, encoded);
+      assertArrayEquals(expected.toByteArray(null), Arrays.copyOf(encoded, len));
+    }
+  }
+
+  @Test
+  public void testEncodeWorstCaseFitsBuffer()
+  {
+    // [x, y, y] alternates 1 byte literals and 2 byte runs: 3 bytes become 4
+    byte[] line = new byte[300];
+    for (int n = 0; n < line.length; n++)
+    {
+      line[n] = (byte) (n % 3 == 0 ? 0x55 : 0xAA);
+    }
+    byte[] encoded = new byte[maxEncodedLength(line.length)];
+    assertEquals(400, encode(line, 0, line.length, encoded));
+
+    // every line of up to 14 bytes with only two different values
+    for (int length = 0; length <= 14; length++)
+    {
+      byte[] bits = new byte[length];
+      for (int pattern = 0; pattern < (1 << length); pattern++)
+      {
+        for (int n = 0; n < length; n++)
+        {
+          bits[n] = (byte) ((pattern >> n) & 1);
+        }
+        encoded = new byte[maxEncodedLength(length)];
+        encode(bits, 0, length, encoded);
+      }
+    }
+  }
 }
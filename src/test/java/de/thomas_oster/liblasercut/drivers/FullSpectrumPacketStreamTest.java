@@ -0,0 +1,138 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+public class FullSpectrumPacketStreamTest
+{
+
+  /**
+   * The load as it was computed before, one subpacket after the other.
+   */
+  private static byte[] referenceLoad(byte[] rawCmds) throws IOException
+  {
+    byte numberSubpackets = (byte) ((rawCmds.length + 8) / 0x40000);
+    int remainder = ((rawCmds.length % 0x40000) / 4);
+    ByteArrayOutputStream jobrawload = new ByteArrayOutputStream();
+    ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    bb.put(new byte[] {2, 0, 0, 0});
+    bb.putShort((short) remainder);
+    bb.put(numberSubpackets);
+    bb.put((byte) 0);
+    jobrawload.write(bb.array());
+    jobrawload.write(rawCmds);
+    byte[] rawJob = jobrawload.toByteArray();
+    ByteArrayOutputStream jobload = new ByteArrayOutputStream();
+    ByteBuffer bb1 = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    bb1.putShort((short) (numberSubpackets + 1));
+    jobload.write(bb1.array());
+    for (int kk = 0; kk < numberSubpackets; kk++)
+    {
+      referenceCompress(Arrays.copyOfRange(rawJob, kk * 0x40000, (kk + 1) * 0x40000), jobload);
+    }
+    referenceCompress(Arrays.copyOfRange(rawJob, numberSubpackets * 0x40000, numberSubpackets * 0x40000 + (remainder + 2) * 4), jobload);
+    return jobload.toByteArray();
+  }
+
+  private static void referenceCompress(byte[] tmpsub, ByteArrayOutputStream jobload) throws IOException
+  {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    deflater.setInput(tmpsub);
+    deflater.finish();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while (!deflater.finished())
+    {
+      bos.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    byte[] zlibString = bos.toByteArray();
+    ByteBuffer bb2 = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    bb2.putShort((short) (zlibString.length - 2));
+    jobload.write(bb2.array());
+    jobload.write(Arrays.copyOfRange(zlibString, 2, zlibString.length));
+  }
+
+  private static byte[] commands(int length)
+  {
+    // compressible like real jobs, with some noise
+    Random r = new Random(length);
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i += 4)
+    {
+      result[i] = (byte) r.nextInt(4);
+      result[i + 1] = (byte) (r.nextInt(8) == 0 ? 1 : 0);
+      result[i + 2] = (byte) (i / 4000 % 3);
+      result[i + 3] = (byte) 0xff;
+    }
+    return result;
+  }
+
+  @Test
+  public void testLoadMatchesSequentialCompression() throws IOException
+  {
+    int c = FullSpectrumPacketStream.SUBPACKET_SIZE;
+    int[] lengths = {0, 4, 1000, c - 12, c - 8, c - 4, c, c + 4, 3 * c - 8, 3 * c + 400, 7 * c - 4};
+    for (int length : lengths)
+    {
+      byte[] raw = commands(length);
+      FullSpectrumPacketStream stream = new FullSpectrumPacketStream();
+      // mix single bytes and blocks
+      int split = Math.min(length, 37);
+      for (int i = 0; i < split; i++)
+      {
+        stream.write(raw[i]);
+      }
+      stream.write(raw, split, length - split);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      stream.writeLoadTo(out);
+      byte[] expected = referenceLoad(raw);
+      assertArrayEquals("length " + length, expected, out.toByteArray());
+      assertEquals(expected.length, stream.getLoadLength());
+    }
+  }
+
+  @Test
+  public void testCommandsAreLittleEndian() throws IOException
+  {
+    int c = FullSpectrumPacketStream.SUBPACKET_SIZE;
+    byte[] raw = commands(2 * c + 64);
+    FullSpectrumPacketStream stream = new FullSpectrumPacketStream();
+    ByteBuffer in = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    while (in.hasRemaining())
+    {
+      stream.writeCommand(in.getInt());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stream.writeLoadTo(out);
+    assertArrayEquals(referenceLoad(raw), out.toByteArray());
+  }
+
+}
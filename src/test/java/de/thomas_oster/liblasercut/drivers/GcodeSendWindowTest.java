@@ -0,0 +1,247 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import de.thomas_oster.liblasercut.GreyRaster;
+import de.thomas_oster.liblasercut.LaserJob;
+import de.thomas_oster.liblasercut.ProgressListenerDummy;
+import de.thomas_oster.liblasercut.RasterPart;
+import de.thomas_oster.liblasercut.RasterizableJobPartTest;
+import de.thomas_oster.liblasercut.VectorPart;
+import de.thomas_oster.liblasercut.platform.Point;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class GcodeSendWindowTest
+{
+
+  /**
+   * Pretends to be a controller with a receive buffer: records the lines it
+   * gets and answers them one after another from a separate thread.
+   */
+  private static class FakeController extends OutputStream
+  {
+    final List<String> received = new ArrayList<>();
+    final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final StringBuilder current = new StringBuilder();
+    private final int failingLine;
+    private int pendingBytes = 0;
+    private int pendingLines = 0;
+    int maxPendingBytes = 0;
+    int maxPendingLines = 0;
+
+    FakeController(int failingLine)
+    {
+      this.failingLine = failingLine;
+      Thread t = new Thread(this::respond);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    @Override
+    public synchronized void write(int b)
+    {
+      current.append((char) b);
+      pendingBytes++;
+      maxPendingBytes = Math.max(maxPendingBytes, pendingBytes);
+      if (b == '\r')
+      {
+        String line = current.toString();
+        current.setLength(0);
+        received.add(line);
+        pendingLines++;
+        maxPendingLines = Math.max(maxPendingLines, pendingLines);
+        pending.add(line);
+      }
+    }
+
+    private void respond()
+    {
+      Random random = new Random(1);
+      try
+      {
+        for (int n = 1;; n++)
+        {
+          String line = pending.take();
+          if (random.nextInt(8) == 0)
+          {
+            Thread.sleep(1);
+          }
+          synchronized (this)
+          {
+            pendingBytes -= line.length();
+            pendingLines--;
+          }
+          responses.add(n == failingLine ? "error:20" : "ok");
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // test finished
+      }
+    }
+
+    String readLine() throws IOException
+    {
+      try
+      {
+        return responses.poll(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private static List<String> randomLines(int count)
+  {
+    Random random = new Random(42);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+    {
+      StringBuilder b = new StringBuilder("G1X");
+      int digits = 1 + random.nextInt(50);
+      for (int k = 0; k < digits; k++)
+      {
+        b.append((char) ('0' + random.nextInt(10)));
+      }
+      lines.add(b.append('\r').toString());
+    }
+    return lines;
+  }
+
+  @Test
+  public void testCharacterCountingStaysWithinRxBuffer() throws IOException
+  {
+    FakeController grbl = new FakeController(-1);
+    List<String> lines = randomLines(2000);
+    try (GcodeSendWindow window = new GcodeSendWindow(grbl, grbl::readLine, Integer.MAX_VALUE, Grbl.RX_BUFFER_SIZE))
+    {
+      for (String line : lines)
+      {
+        window.send(line);
+      }
+      window.drain();
+      assertEquals(lines.size(), window.getLinesSent());
+    }
+    synchronized (grbl)
+    {
+      assertEquals(lines, grbl.received);
+      assertTrue("Buffer overflow: " + grbl.maxPendingBytes, grbl.maxPendingBytes <= Grbl.RX_BUFFER_SIZE);
+      assertTrue("Lines were not streamed", grbl.maxPendingLines > 1);
+    }
+  }
+
+  @Test
+  public void testErrorNamesFailingLine()
+  {
+    FakeController grbl = new FakeController(7);
+    try (GcodeSendWindow window = new GcodeSendWindow(grbl, grbl::readLine, Integer.MAX_VALUE, Grbl.RX_BUFFER_SIZE))
+    {
+      for (String line : randomLines(100))
+      {
+        window.send(line);
+      }
+      window.drain();
+      fail("Error response was not reported");
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().contains("'error:20' to line 7 "));
+    }
+  }
+
+  @Test
+  public void testLineWindowLimitsUnansweredLines() throws IOException
+  {
+    FakeController controller = new FakeController(-1);
+    List<String> lines = randomLines(500);
+    try (GcodeSendWindow window = new GcodeSendWindow(controller, controller::readLine, 4, Integer.MAX_VALUE))
+    {
+      for (String line : lines)
+      {
+        window.send(line);
+      }
+      window.drain();
+    }
+    synchronized (controller)
+    {
+      assertEquals(lines, controller.received);
+      assertTrue("Window overflow: " + controller.maxPendingLines, controller.maxPendingLines <= 4);
+    }
+  }
+
+  private static List<String> sendJobThroughDriver(int windowLines) throws IOException
+  {
+    FakeController controller = new FakeController(-1);
+    GenericGcodeDriver driver = new GenericGcodeDriver()
+    {
+      @Override
+      protected String waitForResponse() throws IOException
+      {
+        return controller.readLine();
+      }
+    };
+    driver.setLineend("CR");
+    driver.setSendWindowLines(windowLines);
+    driver.in = new BufferedReader(new StringReader(""));
+    driver.out = new PrintStream(controller, true, StandardCharsets.US_ASCII);
+
+    LaserJob job = new LaserJob("test", "name", "user");
+    job.addPart(new RasterPart(new GreyRaster(RasterizableJobPartTest.getTest1bitRasterElement()),
+      driver.getLaserPropertyForRasterPart(), new Point(13, 37), 500));
+    VectorPart vp = new VectorPart(driver.getLaserPropertyForVectorPart(), 500);
+    vp.moveto(10, 10);
+    vp.lineto(500, 1000);
+    vp.lineto(1000, 0);
+    job.addPart(vp);
+    driver.writeJobCode(job, new ProgressListenerDummy());
+    synchronized (controller)
+    {
+      assertTrue(controller.maxPendingLines <= windowLines);
+      assertEquals(windowLines > 1, controller.maxPendingLines > 1);
+      return new ArrayList<>(controller.received);
+    }
+  }
+
+  @Test
+  public void testDriverSendsSameLinesWithWindow() throws IOException
+  {
+    List<String> expected = sendJobThroughDriver(1);
+    assertTrue(expected.size() > 10);
+    assertEquals(expected, sendJobThroughDriver(8));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class GenericGcodeDriverTest
+{
+
+  private static String send(GenericGcodeDriver driver, String text, Object... parameters) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    driver.setWaitForOKafterEachLine(false);
+    driver.out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+    driver.sendLine(text, parameters);
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testCustomGcodeKeepsCharset() throws IOException
+  {
+    GenericGcodeDriver driver = new GenericGcodeDriver();
+    assertEquals("; Grüße" + driver.LINEEND(), send(driver, "; Grüße"));
+    assertEquals("M3 ; ±1" + driver.LINEEND(), send(driver, "M3 ; %s1", "±"));
+    assertEquals("G21" + driver.LINEEND(), send(driver, "G21"));
+    Grbl grbl = new Grbl();
+    assertEquals(";Grüße" + grbl.LINEEND(), send(grbl, "; Grüße"));
+    assertEquals("G0X1" + grbl.LINEEND(), send(grbl, "G0 X1"));
+  }
+
+}
@@ -0,0 +1,237 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import de.thomas_oster.liblasercut.drivers.K40NanoDriver.MockUsb;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.junit.Test;
+
+public class K40NanoDriverTest
+{
+
+  private static String payload(int i)
+  {
+    StringBuilder result = new StringBuilder("I" + i + "N");
+    while (result.length() < MockUsb.PAYLOAD_LENGTH)
+    {
+      result.append('F');
+    }
+    return result.toString();
+  }
+
+  @Test
+  public void testRejectedPacketsAreResentInOrder()
+  {
+    MockUsb usb = new MockUsb(0, 7, false);
+    StringBuilder expected = new StringBuilder();
+    usb.open();
+    for (int i = 0; i < 200; i++)
+    {
+      usb.send_packet(payload(i).getBytes(StandardCharsets.US_ASCII));
+      expected.append(payload(i));
+    }
+    usb.wait_for_finish();
+    usb.close();
+    assertArrayEquals(expected.toString().getBytes(StandardCharsets.US_ASCII), usb.getReceived());
+    assertEquals(200, usb.getPacketsSent());
+    assertEquals(200 + 200 / 6, usb.getTransmissions());
+  }
+
+  /**
+   * A device whose transfers only finish when the test lets them
+   */
+  private static class GatedUsb extends K40NanoDriver.PacketPipeline
+  {
+    final Semaphore started = new Semaphore(0);
+    final Semaphore gate = new Semaphore(0);
+
+    @Override
+    protected void openDevice()
+    {
+    }
+
+    @Override
+    protected void closeDevice()
+    {
+    }
+
+    @Override
+    protected int transmit(ByteBuffer packet)
+    {
+      started.release();
+      gate.acquireUninterruptibly();
+      return STATUS_OK;
+    }
+
+    @Override
+    protected int poll()
+    {
+      return STATUS_OK;
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testPreparationOverlapsTransmission() throws InterruptedException
+  {
+    GatedUsb usb = new GatedUsb();
+    usb.open();
+    usb.send_packet(payload(0).getBytes(StandardCharsets.US_ASCII));
+    usb.started.acquire();
+    // the first transfer is still running, the next packets are prepared meanwhile
+    int ring = K40NanoDriver.PacketPipeline.RING_SIZE;
+    for (int i = 1; i < ring; i++)
+    {
+      usb.send_packet(payload(i).getBytes(StandardCharsets.US_ASCII));
+    }
+    assertEquals(0, usb.getPacketsSent());
+    assertEquals(0, usb.started.availablePermits());
+    usb.gate.release(ring);
+    usb.flush();
+    assertEquals(ring, usb.getPacketsSent());
+    usb.close();
+  }
+
+  @Test
+  public void testQueuePadsLinesAndStreamsFullPackets()
+  {
+    K40NanoDriver.K40Queue queue = new K40NanoDriver().new K40Queue();
+    MockUsb usb = new MockUsb(0, 0, false);
+    queue.usb = usb;
+    usb.open();
+    queue.add("IPP\n");
+    StringBuilder move = new StringBuilder();
+    for (int i = 0; i < 50; i++)
+    {
+      move.append("B1");
+    }
+    queue.add(move);
+    usb.flush();
+    // the complete packets of the unfinished line are on their way already
+    assertEquals(1 + 3, usb.getPacketsSent());
+    queue.add("S1P\n");
+    usb.wait_for_finish();
+    usb.close();
+    String expected = "IPP" + "FFFFFFFFFFFFFFFFFFFFFFFFFFF" + move + "S1P" + "FFFFFFFFFFFFFFFFF";
+    assertEquals(expected, new String(usb.getReceived(), StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * A device which never reports the wanted status
+   */
+  private static class StuckUsb extends K40NanoDriver.PacketPipeline
+  {
+    private final boolean failOpen;
+    boolean closed = false;
+
+    StuckUsb(boolean failOpen)
+    {
+      this.failOpen = failOpen;
+    }
+
+    @Override
+    protected void openDevice()
+    {
+      if (failOpen)
+      {
+        throw new LibUsbException("no device", LibUsb.ERROR_NO_DEVICE);
+      }
+    }
+
+    @Override
+    protected void closeDevice()
+    {
+      closed = true;
+    }
+
+    @Override
+    protected int transmit(ByteBuffer packet)
+    {
+      return STATUS_OK;
+    }
+
+    @Override
+    protected int poll()
+    {
+      return STATUS_BUSY;
+    }
+  }
+
+  @Test
+  public void testCloseAfterFailedOpen()
+  {
+    StuckUsb usb = new StuckUsb(true);
+    try
+    {
+      usb.open();
+      fail("open must fail");
+    }
+    catch (LibUsbException e)
+    {
+      usb.close();
+    }
+    assertTrue(usb.closed);
+  }
+
+  @Test
+  public void testInterruptStopsWaitingForTheDevice() throws InterruptedException
+  {
+    StuckUsb usb = new StuckUsb(false);
+    usb.open();
+    AtomicReference<LibUsbException> thrown = new AtomicReference<>();
+    Thread caller = new Thread(() ->
+    {
+      try
+      {
+        usb.wait_for_finish();
+      }
+      catch (LibUsbException e)
+      {
+        thrown.set(e);
+      }
+      try
+      {
+        usb.close();
+      }
+      catch (LibUsbException e)
+      {
+        //the interrupt is still pending, so close() cannot flush either
+      }
+    });
+    caller.start();
+    Thread.sleep(3 * K40NanoDriver.PacketPipeline.POLL_INTERVAL);
+    caller.interrupt();
+    caller.join(5000);
+    assertFalse(caller.isAlive());
+    assertEquals(LibUsb.ERROR_INTERRUPTED, thrown.get().getErrorCode());
+    assertTrue(usb.closed);
+    assertEquals(K40NanoDriver.PacketPipeline.STATUS_BUSY, usb.getStatus());
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import de.thomas_oster.liblasercut.ByteArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LaserToolsTechnicsCutterTest
+{
+
+  private static byte[] decompress(byte[] compressed, int length)
+  {
+    ByteArrayList c = new ByteArrayList(length);
+    for (int i = 0; i < length; i++)
+    {
+      c.add(compressed[i]);
+    }
+    return LaserToolsTechnicsCutter.decompressData(c).toByteArray(null);
+  }
+
+  /**
+   * Random raster lines: runs of random length, mostly of zero bytes,
+   * and single bytes from the whole range including escaped ones
+   */
+  private static byte[] randomLine(Random r)
+  {
+    byte[] line = new byte[r.nextInt(600)];
+    int i = 0;
+    while (i < line.length)
+    {
+      int run = Math.min(line.length - i, r.nextBoolean() ? 1 : 1 + r.nextInt(200));
+      byte value = (byte) (r.nextInt(3) == 0 ? 0 : r.nextInt(256));
+      for (int j = 0; j < run; j++)
+      {
+        line[i++] = value;
+      }
+    }
+    return line;
+  }
+
+  @Test
+  public void testCompressionRoundTrip()
+  {
+    Random r = new Random(42);
+    byte[] compressed = new byte[0];
+    for (int k = 0; k < 2000; k++)
+    {
+      byte[] line = randomLine(r);
+      int bound = LaserToolsTechnicsCutter.maxCompressedLength(line.length);
+      if (compressed.length < bound)
+      {
+        compressed = new byte[bound];
+      }
+      int length = LaserToolsTechnicsCutter.compressData(line, line.length, compressed);
+      assertTrue(length <= bound);
+      assertArrayEquals(line, decompress(compressed, length));
+    }
+  }
+
+  @Test
+  public void testWorstCaseFitsExactly()
+  {
+    // every byte needs an escape and no two neighbours are equal
+    byte[] line = new byte[100];
+    for (int i = 0; i < line.length; i++)
+    {
+      line[i] = (byte) (0xC0 + i % 2);
+    }
+    byte[] compressed = new byte[LaserToolsTechnicsCutter.maxCompressedLength(line.length)];
+    assertEquals(compressed.length, LaserToolsTechnicsCutter.compressData(line, line.length, compressed));
+    assertArrayEquals(line, decompress(compressed, compressed.length));
+  }
+
+  @Test
+  public void testListApiMatchesArrayApi()
+  {
+    Random r = new Random(7);
+    for (int k = 0; k < 100; k++)
+    {
+      byte[] line = randomLine(r);
+      ByteArrayList list = new ByteArrayList(line.length);
+      for (byte b : line)
+      {
+        list.add(b);
+      }
+      byte[] compressed = new byte[LaserToolsTechnicsCutter.maxCompressedLength(line.length)];
+      int length = LaserToolsTechnicsCutter.compressData(line, line.length, compressed);
+      ByteArrayList fromList = LaserToolsTechnicsCutter.compressData(list);
+      assertEquals(length, fromList.size());
+      assertArrayEquals(Arrays.copyOf(compressed, length), fromList.toByteArray(null));
+    }
+  }
+
+}
@@ -0,0 +1,327 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.drivers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class RuidaUdpStreamTest
+{
+
+  /**
+   * Pretends to be a Ruida controller on localhost: checks the checksum of
+   * every datagram, keeps the data of the good ones and answers after a
+   * configurable latency.
+   */
+  private static class FakeRuida implements AutoCloseable
+  {
+    final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final ScheduledExecutorService answers = Executors.newSingleThreadScheduledExecutor();
+    private final Thread thread = new Thread(this::run, "fake Ruida");
+    private final long latencyMillis;
+    private final int nakDatagram;
+    private final int slowDatagram;
+    private int datagrams = 0;
+    private final AtomicInteger unanswered = new AtomicInteger();
+    private volatile int maxUnanswered = 0;
+    final List<Integer> payloadLengths = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param nakDatagram number of the datagram to answer with a checksum error once, or -1
+     * @param slowDatagram number of the datagram to answer after 300 ms, or -1
+     */
+    FakeRuida(long latencyMillis, int nakDatagram, int slowDatagram) throws SocketException
+    {
+      this.latencyMillis = latencyMillis;
+      this.nakDatagram = nakDatagram;
+      this.slowDatagram = slowDatagram;
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void run()
+    {
+      byte[] buf = new byte[2000];
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      try
+      {
+        while (true)
+        {
+          packet.setLength(buf.length);
+          socket.receive(packet);
+          int sum = 0;
+          for (int i = 2; i < packet.getLength(); i++)
+          {
+            sum += buf[i] & 0xff;
+          }
+          boolean good = ((buf[0] & 0xff) << 8 | (buf[1] & 0xff)) == (sum & 0xffff);
+          int n = datagrams++;
+          payloadLengths.add(packet.getLength() - 2);
+          maxUnanswered = Math.max(maxUnanswered, unanswered.incrementAndGet());
+          if (n == nakDatagram)
+          {
+            good = false;
+          }
+          if (good)
+          {
+            synchronized (received)
+            {
+              received.write(buf, 2, packet.getLength() - 2);
+            }
+          }
+          byte[] answer = new byte[]{(byte) (good ? 0xc6 : 0x46)};
+          DatagramPacket reply = new DatagramPacket(answer, 1, packet.getSocketAddress());
+          answers.schedule(() -> {
+            unanswered.decrementAndGet();
+            try
+            {
+              socket.send(reply);
+            }
+            catch (IOException e)
+            {
+            }
+          }, n == slowDatagram ? 300 : latencyMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+      catch (IOException e)
+      {
+        // closed
+      }
+    }
+
+    UdpStream connect(int window) throws IOException
+    {
+      return new UdpStream(InetAddress.getLoopbackAddress(), socket.getLocalPort(), 0, window);
+    }
+
+    byte[] getReceived()
+    {
+      synchronized (received)
+      {
+        return received.toByteArray();
+      }
+    }
+
+    /**
+     * Largest number of datagrams that were received but not yet answered
+     */
+    int getMaxUnanswered()
+    {
+      return maxUnanswered;
+    }
+
+    @Override
+    public void close()
+    {
+      socket.close();
+      // the receiver must not schedule answers after the executor is shut down
+      try
+      {
+        thread.join(5000);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      answers.shutdownNow();
+    }
+  }
+
+  private static byte[] randomData(int length)
+  {
+    byte[] data = new byte[length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  private static void send(FakeRuida ruida, int window, byte[] data) throws IOException
+  {
+    try (UdpStream out = ruida.connect(window))
+    {
+      out.write(data, 0, 1234);
+      for (int i = 1234; i < 5000; i++)
+      {
+        out.write(data[i]);
+      }
+      out.write(data, 5000, data.length - 5000);
+    }
+  }
+
+  @Test
+  public void testStopAndWaitResendsAfterChecksumError() throws IOException
+  {
+    byte[] data = randomData(20 * UdpStream.MTU + 17);
+    try (FakeRuida ruida = new FakeRuida(0, 3, -1))
+    {
+      send(ruida, 1, data);
+      assertArrayEquals(data, ruida.getReceived());
+    }
+  }
+
+  @Test
+  public void testWindowKeepsDataInOrder() throws IOException
+  {
+    byte[] data = randomData(100 * UdpStream.MTU + 5);
+    try (FakeRuida ruida = new FakeRuida(1, -1, -1))
+    {
+      send(ruida, 8, data);
+      assertArrayEquals(data, ruida.getReceived());
+    }
+  }
+
+  @Test
+  public void testWindowHidesLatency() throws IOException
+  {
+    byte[] data = randomData(12 * UdpStream.MTU);
+    try (FakeRuida ruida = new FakeRuida(40, -1, -1))
+    {
+      send(ruida, 1, data);
+      assertArrayEquals(data, ruida.getReceived());
+      assertEquals(1, ruida.getMaxUnanswered());
+    }
+    try (FakeRuida ruida = new FakeRuida(40, -1, -1))
+    {
+      send(ruida, 8, data);
+      assertArrayEquals(data, ruida.getReceived());
+      int inFlight = ruida.getMaxUnanswered();
+      assertTrue("at most " + inFlight + " datagrams in flight", inFlight > 1 && inFlight <= 8);
+    }
+  }
+
+  @Test
+  public void testChecksumErrorInsideWindowFails() throws IOException
+  {
+    byte[] data = randomData(30 * UdpStream.MTU);
+    try (FakeRuida ruida = new FakeRuida(5, 10, -1))
+    {
+      send(ruida, 8, data);
+      fail("a checksum error with later datagrams in flight must not be resent");
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage().startsWith("checksum error"));
+    }
+  }
+
+  @Test
+  public void testNothingIsSentAfterChecksumErrorInsideWindow() throws IOException, InterruptedException
+  {
+    byte[] data = randomData(30 * UdpStream.MTU);
+    try (FakeRuida ruida = new FakeRuida(5, 10, -1))
+    {
+      UdpStream out = ruida.connect(8);
+      try
+      {
+        out.write(data, 0, data.length);
+        fail("a checksum error with later datagrams in flight must not be resent");
+      }
+      catch (IOException e)
+      {
+        assertTrue(e.getMessage().startsWith("checksum error"));
+      }
+      long sent = out.getSent();
+      try
+      {
+        out.write(data, 0, 3 * UdpStream.MTU);
+        fail("writing after a failure must throw");
+      }
+      catch (IOException e)
+      {
+        // expected
+      }
+      try
+      {
+        out.write(0);
+        fail("writing after a failure must throw");
+      }
+      catch (IOException e)
+      {
+        // expected
+      }
+      out.close();
+      assertEquals(sent, out.getSent());
+      // datagrams sent before the failure may still be queued at the receiver
+      for (int i = 0; i < 100 && ruida.payloadLengths.size() < sent; i++)
+      {
+        Thread.sleep(10);
+      }
+      Thread.sleep(100);
+      assertEquals(sent, ruida.payloadLengths.size());
+    }
+  }
+
+  @Test
+  public void testSlowAnswerShrinksWindow() throws IOException
+  {
+    byte[] data = randomData(20 * UdpStream.MTU);
+    try (FakeRuida ruida = new FakeRuida(0, -1, 19))
+    {
+      UdpStream out = ruida.connect(8);
+      out.write(data, 0, data.length);
+      out.close();
+      assertEquals(1, out.getWindow());
+      assertArrayEquals(data, ruida.getReceived());
+    }
+  }
+
+  @Test
+  public void testByteStreamFillsWholeDatagrams() throws IOException
+  {
+    int length = 5 * 8192 + 100;
+    try (FakeRuida ruida = new FakeRuida(1, -1, -1))
+    {
+      UdpStream udp = ruida.connect(8);
+      ByteStream stream = new ByteStream(udp, (byte) 0x88);
+      for (int i = 0; i < length; i++)
+      {
+        stream.byteint(i);
+      }
+      stream.flush();
+      udp.close();
+      assertEquals(length, ruida.getReceived().length);
+      // only the explicit flush may send a short datagram
+      List<Integer> lengths = new ArrayList<>(ruida.payloadLengths);
+      assertEquals((length + UdpStream.MTU - 1) / UdpStream.MTU, lengths.size());
+      for (int i = 0; i < lengths.size() - 1; i++)
+      {
+        assertEquals(UdpStream.MTU, (int) lengths.get(i));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+public class AsciiLineBuilderTest
+{
+
+  private static List<Double> testValues()
+  {
+    List<Double> values = new ArrayList<>();
+    double[] special = {0, -0.0, 0.5, -0.5, 1.5, 2.5, 0.125, 0.0000005, 0.0000015, -0.0000001,
+      1e-7, 3.0000005, -3.0000005, 1234567.25, 1e14, 1e15, 1e20, -1e20,
+      Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    for (double d : special)
+    {
+      values.add(d);
+    }
+    Random random = new Random(7);
+    for (int i = 0; i < 8000; i++)
+    {
+      switch (i % 4)
+      {
+        case 0:
+          // typical coordinates in mm
+          values.add((random.nextDouble() - 0.2) * 1000);
+          break;
+        case 1:
+          // pixel positions converted from 500 dpi, as the drivers produce them
+          values.add(random.nextInt(20000) * 25.4 / 500);
+          break;
+        case 2:
+          // ties and near-ties at various digits
+          values.add((random.nextInt(100000) + 0.5) / Math.pow(10, random.nextInt(7)));
+          break;
+        default:
+          values.add(random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+      }
+    }
+    return values;
+  }
+
+  @Test
+  public void testAppendDecimalMatchesDecimalFormat()
+  {
+    AsciiLineBuilder b = new AsciiLineBuilder();
+    for (int digits = 0; digits <= 8; digits++)
+    {
+      // this is how GenericGcodeDriver.formatDouble used to format numbers
+      DecimalFormat format = (DecimalFormat) NumberFormat.getNumberInstance(new Locale("en", "US"));
+      format.applyPattern("###.##");
+      format.setMaximumFractionDigits(digits);
+      for (double value : testValues())
+      {
+        // infinity is formatted as a non-ASCII symbol, which becomes '?' in G-Code files anyway
+        String expected = format.format(value).replace('\u221E', '?');
+        assertEquals(value + " with " + digits + " digits", expected, b.clear().appendDecimal(value, digits).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testAppendFixedMatchesStringFormat()
+  {
+    AsciiLineBuilder b = new AsciiLineBuilder();
+    for (int digits = 0; digits <= 8; digits++)
+    {
+      for (double value : testValues())
+      {
+        assertEquals(value + " with " + digits + " digits", String.format(Locale.US, "%." + digits + "f", value), b.clear().appendFixed(value, digits).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testAppendAndRemove()
+  {
+    AsciiLineBuilder b = new AsciiLineBuilder();
+    b.append("G1 X").append(-42L).append(' ').append("Y").append(Long.MIN_VALUE).append(" ä");
+    assertEquals("G1 X-42 Y" + Long.MIN_VALUE + " ?", b.toString());
+    assertEquals("G1X-42Y" + Long.MIN_VALUE + "?", b.remove(' ').toString());
+    StringBuilder expected = new StringBuilder();
+    b.clear();
+    for (int i = 0; i < 1000; i++)
+    {
+      expected.append(i).append(',');
+      b.append(i).append(',');
+    }
+    assertEquals(expected.toString(), b.toString());
+  }
+}
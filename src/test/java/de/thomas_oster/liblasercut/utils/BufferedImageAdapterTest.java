@@ -0,0 +1,71 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that reading whole rows gives the same grey values as reading
+ * pixel by pixel
+ */
+public class BufferedImageAdapterTest
+{
+
+  private static void assertRowsMatchPixels(BufferedImageAdapter adapter)
+  {
+    int[] row = new int[adapter.getWidth()];
+    for (int y = 0; y < adapter.getHeight(); y++)
+    {
+      adapter.getGreyScaleRow(y, row);
+      for (int x = 0; x < adapter.getWidth(); x++)
+      {
+        assertEquals(adapter.getGreyScale(x, y), row[x]);
+      }
+    }
+  }
+
+  @Test
+  public void testGetGreyScaleRow()
+  {
+    int[] types = new int[]{BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB,
+      BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_USHORT_GRAY};
+    Random r = new Random(5);
+    for (int type : types)
+    {
+      BufferedImage img = new BufferedImage(67, 13, type);
+      for (int y = 0; y < img.getHeight(); y++)
+      {
+        for (int x = 0; x < img.getWidth(); x++)
+        {
+          img.setRGB(x, y, r.nextInt());
+        }
+      }
+      assertRowsMatchPixels(new BufferedImageAdapter(img));
+      BufferedImageAdapter inverted = new BufferedImageAdapter(img, true);
+      inverted.setColorShift(-20);
+      assertRowsMatchPixels(inverted);
+      // shares the data buffer of the whole image
+      assertRowsMatchPixels(new BufferedImageAdapter(img.getSubimage(5, 3, 40, 7)));
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class SummedAreaTableTest
+{
+
+  private static int bruteForce(int[][] raster, int x0, int y0, int x1, int y1)
+  {
+    int sum = 0;
+    for (int y = Math.max(y0, 0); y < Math.min(y1, raster.length); y++)
+    {
+      for (int x = Math.max(x0, 0); x < Math.min(x1, raster[y].length); x++)
+      {
+        sum += raster[y][x];
+      }
+    }
+    return sum;
+  }
+
+  @Test
+  public void testMatchesBruteForceIncludingClipping()
+  {
+    Random r = new Random(7);
+    int width = 37;
+    int height = 23;
+    int[][] raster = new int[height][width];
+    for (int[] row : raster)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        row[x] = r.nextInt(256) - 128;
+      }
+    }
+    SummedAreaTable table = new SummedAreaTable(width, height, (y, row) -> System.arraycopy(raster[y], 0, row, 0, width));
+    for (int i = 0; i < 2000; i++)
+    {
+      int x0 = r.nextInt(width + 10) - 5;
+      int y0 = r.nextInt(height + 10) - 5;
+      int x1 = x0 + r.nextInt(20) - 2;
+      int y1 = y0 + r.nextInt(20) - 2;
+      assertEquals(bruteForce(raster, x0, y0, x1, y1), table.sum(x0, y0, x1, y1));
+    }
+  }
+
+  @Test
+  public void testWindowsStayExactWhenTotalOverflows()
+  {
+    int width = 3000;
+    int height = 3000;
+    SummedAreaTable table = new SummedAreaTable(width, height, (y, row) -> Arrays.fill(row, 255));
+    assertEquals(255 * 50 * 50, table.sum(2900, 2900, 2950, 2950));
+    assertEquals(255 * 100 * 100, table.sum(2900, 2900, 3100, 3100));
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.vectoroptimizers;
+
+import de.thomas_oster.liblasercut.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer.Element;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DeleteDuplicatePathsOptimizerTest
+{
+
+  private static Element newElem(double... coordinates)
+  {
+    Element ret = new Element();
+    ret.prop = new PowerSpeedFocusProperty();
+    ret.start = new Point(coordinates[0], coordinates[1]);
+    for (int i = 2; i < coordinates.length; i += 2)
+    {
+      ret.addPoint(new Point(coordinates[i], coordinates[i + 1]));
+    }
+    return ret;
+  }
+
+  @Test
+  public void removesIdenticalAndReversedPaths()
+  {
+    List<Element> elements = new ArrayList<>();
+    elements.add(newElem(0, 0, 10, 0, 10, 10));
+    elements.add(newElem(0, 0, 10, 0, 10, 10));
+    elements.add(newElem(10, 10, 10, 0, 0, 0));
+    elements.add(newElem(10, 10.001, 10, 0, 0, 0.002));
+    elements.add(newElem(0, 0, 10, 0, 10, 20));
+    List<Element> result = new DeleteDuplicatePathsOptimizer().removeDuplicatePaths(elements);
+    assertEquals(2, result.size());
+    assertSame(elements.get(0), result.get(0));
+    assertSame(elements.get(4), result.get(1));
+  }
+
+  @Test
+  public void removesRotatedClosedPaths()
+  {
+    List<Element> elements = new ArrayList<>();
+    elements.add(newElem(0, 0, 10, 0, 10, 10, 0, 10, 0, 0));
+    elements.add(newElem(10, 10, 0, 10, 0, 0, 10, 0, 10, 10));
+    elements.add(newElem(10, 0, 0, 0, 0, 10, 10, 10, 10, 0));
+    List<Element> result = new DeleteDuplicatePathsOptimizer().removeDuplicatePaths(elements);
+    assertEquals(1, result.size());
+  }
+
+  @Test
+  public void trimsOverlappingCollinearSegments()
+  {
+    List<Element> elements = new ArrayList<>();
+    elements.add(newElem(0, 0, 10, 0));
+    // partially overlapping, in the other direction
+    elements.add(newElem(15, 0, 5, 0));
+    // completely covered
+    elements.add(newElem(2, 0, 8, 0));
+    // parallel, but not collinear
+    elements.add(newElem(0, 1, 10, 1));
+    // polyline with a covered segment in the middle
+    elements.add(newElem(-5, 5, -5, 0, 12, 0, 12, 5));
+    List<Element> result = new DeleteDuplicatePathsOptimizer().removeOverlappingSegments(elements);
+    assertEquals(5, result.size());
+    assertSame(elements.get(0), result.get(0));
+    assertEquals(newElem(15, 0, 10, 0), result.get(1));
+    assertSame(elements.get(3), result.get(2));
+    assertEquals(newElem(-5, 5, -5, 0, 0, 0), result.get(3));
+    assertEquals(newElem(12, 0, 12, 5), result.get(4));
+  }
+
+  @Test
+  public void keepsConsecutiveCollinearSegments()
+  {
+    List<Element> elements = new ArrayList<>();
+    Element e = newElem(0, 0, 5, 5, 10, 10, 20, 20);
+    elements.add(e);
+    List<Element> result = new DeleteDuplicatePathsOptimizer().removeOverlappingSegments(elements);
+    assertEquals(1, result.size());
+    assertSame(e, result.get(0));
+  }
+}
@@ -0,0 +1,115 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.vectoroptimizers;
+
+import de.thomas_oster.liblasercut.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer.Element;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Nearest2OptVectorOptimizerTest
+{
+
+  private static List<Element> randomLines(long seed, int count)
+  {
+    Random r = new Random(seed);
+    PowerSpeedFocusProperty prop = new PowerSpeedFocusProperty();
+    List<Element> result = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+    {
+      Element e = new Element();
+      e.prop = prop;
+      e.start = new Point(r.nextDouble() * 1000, r.nextDouble() * 1000);
+      e.addPoint(new Point(e.start.x + r.nextDouble() * 20, e.start.y + r.nextDouble() * 20));
+      result.add(e);
+    }
+    return result;
+  }
+
+  private static double travelDistance(List<Element> elements)
+  {
+    double result = 0;
+    for (int i = 0; i + 1 < elements.size(); i++)
+    {
+      result += elements.get(i).getEnd().hypotTo(elements.get(i + 1).start);
+    }
+    return result;
+  }
+
+  /**
+   * the same path regardless of direction
+   */
+  private static String canonical(Element e)
+  {
+    Element copy = new Element();
+    copy.start = e.start;
+    for (Point p : e.getMoves())
+    {
+      copy.addPoint(p);
+    }
+    String forward = copy.toString();
+    copy.invert();
+    String backward = copy.toString();
+    return forward.compareTo(backward) < 0 ? forward : backward;
+  }
+
+  @Test
+  public void shorterThanGreedyAndSamePaths()
+  {
+    for (long seed = 0; seed < 5; seed++)
+    {
+      List<Element> greedy = new NearestVectorOptimizer().sort(randomLines(seed, 1000));
+      Nearest2OptVectorOptimizer optimizer = new Nearest2OptVectorOptimizer();
+      List<Element> improved = optimizer.sort(randomLines(seed, 1000));
+
+      assertEquals(greedy.size(), improved.size());
+      Set<String> greedyPaths = new HashSet<>();
+      Set<String> improvedPaths = new HashSet<>();
+      greedy.forEach(e -> greedyPaths.add(canonical(e)));
+      improved.forEach(e -> improvedPaths.add(canonical(e)));
+      assertEquals(greedyPaths, improvedPaths);
+      // the first path is kept
+      assertEquals(canonical(greedy.get(0)), canonical(improved.get(0)));
+
+      double before = travelDistance(greedy);
+      double after = travelDistance(improved);
+      assertTrue(after < before);
+      assertEquals(before - after, optimizer.getSavedTravelDistance(), 1e-6);
+    }
+  }
+
+  @Test
+  public void iterationLimit()
+  {
+    Nearest2OptVectorOptimizer optimizer = new Nearest2OptVectorOptimizer();
+    optimizer.setMaxIterations(0);
+    List<Element> greedy = new NearestVectorOptimizer().sort(randomLines(42, 300));
+    List<Element> result = optimizer.sort(randomLines(42, 300));
+    assertEquals(greedy, result);
+    assertEquals(0, optimizer.getSavedTravelDistance(), 0);
+  }
+}
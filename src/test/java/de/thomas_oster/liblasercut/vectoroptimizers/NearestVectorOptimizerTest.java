@@ -0,0 +1,134 @@
+/*
+  This file is part of LibLaserCut.
+  Copyright (C) 2011 - 2014 Thomas Oster <mail@thomas-oster.de>
+
+  LibLaserCut is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Lesser General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  LibLaserCut is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License
+  along with LibLaserCut. If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package de.thomas_oster.liblasercut.vectoroptimizers;
+
+import de.thomas_oster.liblasercut.PowerSpeedFocusProperty;
+import de.thomas_oster.liblasercut.platform.Point;
+import de.thomas_oster.liblasercut.vectoroptimizers.VectorOptimizer.Element;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NearestVectorOptimizerTest
+{
+
+  /**
+   * Generate random paths on a coarse integer grid, so that there are many
+   * ties between start/end points with the same distance.
+   */
+  private static List<Element> randomElements(long seed, int count, int range)
+  {
+    Random r = new Random(seed);
+    PowerSpeedFocusProperty prop = new PowerSpeedFocusProperty();
+    List<Element> result = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+    {
+      Element e = new Element();
+      e.prop = prop;
+      e.start = new Point(r.nextInt(range), r.nextInt(range));
+      int moves = 1 + r.nextInt(3);
+      for (int j = 0; j < moves; j++)
+      {
+        e.addPoint(new Point(r.nextInt(range), r.nextInt(range)));
+      }
+      result.add(e);
+    }
+    return result;
+  }
+
+  /**
+   * Greedy nearest-first ordering by scanning all remaining elements.
+   */
+  private static List<Element> linearScanSort(List<Element> e)
+  {
+    List<Element> result = new ArrayList<>();
+    e = OptimizerUtils.joinContiguousLoopElements(e, 0.9);
+    result.add(e.remove(0));
+    while (!e.isEmpty())
+    {
+      Point end = result.get(result.size() - 1).getEnd();
+      int next = 0;
+      boolean invert = false;
+      double dst = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < e.size(); i++)
+      {
+        double nd = e.get(i).start.hypotTo(end);
+        if (nd < dst)
+        {
+          next = i;
+          dst = nd;
+          invert = false;
+        }
+        if (!e.get(i).start.equals(e.get(i).getEnd()))
+        {
+          nd = e.get(i).getEnd().hypotTo(end);
+          if (nd < dst)
+          {
+            next = i;
+            dst = nd;
+            invert = true;
+          }
+        }
+      }
+      Element m = e.remove(next);
+      if (invert)
+      {
+        m.invert();
+      }
+      result.add(m);
+    }
+    return result;
+  }
+
+  @Test
+  public void sameOrderAsLinearScan()
+  {
+    for (int range : new int[] {5, 40, 1000})
+    {
+      for (long seed = 0; seed < 5; seed++)
+      {
+        List<Element> expected = linearScanSort(randomElements(seed, 500, range));
+        List<Element> sorted = new NearestVectorOptimizer().sort(randomElements(seed, 500, range));
+        assertEquals(expected, sorted);
+      }
+    }
+  }
+
+  @Test
+  public void collinearPoints()
+  {
+    List<Element> elements = new ArrayList<>();
+    List<Element> elementsCopy = new ArrayList<>();
+    for (List<Element> list : List.of(elements, elementsCopy))
+    {
+      for (int i = 0; i < 200; i++)
+      {
+        Element e = new Element();
+        e.prop = new PowerSpeedFocusProperty();
+        e.start = new Point((i * 37) % 200, 3);
+        e.addPoint(new Point((i * 37) % 200 + 0.5, 3));
+        list.add(e);
+      }
+    }
+    assertEquals(linearScanSort(elements), new NearestVectorOptimizer().sort(elementsCopy));
+  }
+}